@@ -2,6 +2,7 @@ package gui;
 
 import model.Database;
 import model.Record;
+import model.Snapshot;
 
 import javax.swing.*;
 import javax.swing.table.DefaultTableModel;
@@ -35,7 +36,6 @@ public class MainWindow extends JFrame implements Database.DatabaseListener {
 
         tableModel = new DefaultTableModel(columns, 0);
         table = new JTable(tableModel);
-        refreshTable();
 
         JPanel mainPanel = createMainPanel();
 
@@ -53,6 +53,28 @@ public class MainWindow extends JFrame implements Database.DatabaseListener {
 
         add(tabs);
         setVisible(true);
+        openTracking();
+    }
+
+    // Таблица, представления Мониторинга, история и точки заказа читают все записи, а load() страницы
+    // не читает. Окно показывается пустым, страницы загружают представления и история в фоне,
+    // и только потом EDT заполняет таблицу уже из памяти
+    private void openTracking() {
+        Thread t = new Thread(() -> {
+            monitoring.openViews();
+            try {
+                db.openHistory();
+                db.openReorderAlerts(5);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            SwingUtilities.invokeLater(() -> {
+                refreshTable();
+                monitoring.refresh();
+            });
+        }, "open-tracking");
+        t.setDaemon(true);
+        t.start();
     }
 
     private JPanel createMainPanel() {
@@ -97,20 +119,25 @@ public class MainWindow extends JFrame implements Database.DatabaseListener {
 
     private void refreshTable() {
         tableModel.setRowCount(0);
-        for (Record r : db.getAll()) {
-            tableModel.addRow(new Object[]{
-                    r.id, r.name, r.quantity, r.price, r.supplier
-            });
+        try (Snapshot snapshot = db.snapshot()) {
+            for (Record r : snapshot) {
+                tableModel.addRow(new Object[]{
+                        r.id, r.name, r.quantity, r.price, r.supplier
+                });
+            }
         }
     }
 
+    // Изменения приходят и из потока очереди продаж, а таблицу и вкладки трогают только в EDT
     @Override
     public void onDatabaseChanged() {
-        refreshTable();
+        SwingUtilities.invokeLater(() -> {
+            refreshTable();
 
-        if (tabs.getSelectedComponent() == monitoring) {
-            monitoring.refresh();
-        }
+            if (tabs.getSelectedComponent() == monitoring) {
+                monitoring.refresh();
+            }
+        });
     }
 
     private void addRecord() {
@@ -1,14 +1,16 @@
 package gui;
 
 import model.Database;
+import model.IndexAdvisor;
+import model.MaterializedView;
 import model.Record;
+import model.ReorderAlerts;
+import model.StockHistory;
 
 import javax.swing.*;
 import java.awt.*;
 import java.io.*;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -16,14 +18,25 @@ public class Monitoring extends JPanel {
 
     private final Database db;
 
+    // Итоги и топы поддерживаются базой при каждом изменении, refresh() только читает готовые строки.
+    // Начальный расчёт читает все страницы, поэтому представления открывает openViews(), а не конструктор
+    private volatile MaterializedView totals;
+    private volatile MaterializedView topQtySuppliers;
+    private volatile MaterializedView topValueSuppliers;
+
     private final JLabel lblUniqueItems;
     private final JLabel lblTotalUnits;
     private final JLabel lblTotalValue;
     private final JLabel lblLowStock;
+    private final JLabel lblQueryCache;
 
     private final JTextArea logArea;
     private final JLabel topStatsLabelSup;
     private final JLabel topStatsLabelItem;
+    private final JLabel reorderLabel;
+    private final JLabel indexLabel;
+    private final TrendChart trendChart;
+    private final JComboBox<String> trendPeriod;
 
 
 
@@ -31,16 +44,18 @@ public class Monitoring extends JPanel {
         this.db = db;
         setLayout(new BorderLayout());
 
-        JPanel statsPanel = new JPanel(new GridLayout(2, 2));
+        JPanel statsPanel = new JPanel(new GridLayout(3, 2));
         lblUniqueItems = new JLabel();
         lblTotalUnits = new JLabel();
         lblTotalValue = new JLabel();
         lblLowStock = new JLabel();
+        lblQueryCache = new JLabel();
 
         statsPanel.add(lblUniqueItems);
         statsPanel.add(lblTotalUnits);
         statsPanel.add(lblTotalValue);
         statsPanel.add(lblLowStock);
+        statsPanel.add(lblQueryCache);
 
         add(statsPanel, BorderLayout.NORTH);
 
@@ -62,6 +77,40 @@ public class Monitoring extends JPanel {
 
         tabbedPane.addTab("Статистика", statsMainPanel);
 
+        reorderLabel = new JLabel();
+        reorderLabel.setVerticalAlignment(SwingConstants.TOP);
+        JScrollPane reorderScrollPane = new JScrollPane(reorderLabel);
+        reorderScrollPane.setBorder(BorderFactory.createTitledBorder("Товары ниже точки заказа"));
+        tabbedPane.addTab("К заказу", reorderScrollPane);
+
+        indexLabel = new JLabel();
+        indexLabel.setVerticalAlignment(SwingConstants.TOP);
+        JScrollPane indexScrollPane = new JScrollPane(indexLabel);
+        indexScrollPane.setBorder(BorderFactory.createTitledBorder("Советник индексов"));
+        // По умолчанию советник только советует; создавать и удалять индексы сам он начинает по выбору пользователя
+        JCheckBox autoIndexes = new JCheckBox("Создавать и удалять индексы автоматически",
+                db.getIndexAdvisor().getMode() == IndexAdvisor.Mode.AUTO);
+        autoIndexes.addActionListener(e -> {
+            db.getIndexAdvisor().setMode(autoIndexes.isSelected() ? IndexAdvisor.Mode.AUTO : IndexAdvisor.Mode.RECOMMEND);
+            refreshIndexes();
+        });
+        JPanel indexPanel = new JPanel(new BorderLayout());
+        indexPanel.add(autoIndexes, BorderLayout.NORTH);
+        indexPanel.add(indexScrollPane, BorderLayout.CENTER);
+        tabbedPane.addTab("Индексы", indexPanel);
+
+        JPanel trendPanel = new JPanel(new BorderLayout());
+        trendPeriod = new JComboBox<>(new String[]{"Последний час", "Сутки", "7 дней", "30 дней"});
+        trendPeriod.setSelectedIndex(1);
+        trendPeriod.addActionListener(e -> refreshTrend());
+        JPanel trendTop = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        trendTop.add(new JLabel("Период:"));
+        trendTop.add(trendPeriod);
+        trendPanel.add(trendTop, BorderLayout.NORTH);
+        trendChart = new TrendChart();
+        trendPanel.add(trendChart, BorderLayout.CENTER);
+        tabbedPane.addTab("Динамика остатков", trendPanel);
+
         logArea = new JTextArea();
         logArea.setEditable(false);
         JScrollPane logScrollPane = new JScrollPane(logArea);
@@ -73,61 +122,58 @@ public class Monitoring extends JPanel {
         refresh();
     }
 
-    public void refresh() {
-
-        List<Record> all = db.getAll();
-
-        lblUniqueItems.setText("Уникальных товаров: " + all.size());
-
-        int totalUnits = all.stream().mapToInt(r -> r.quantity).sum();
-        lblTotalUnits.setText("Всего единиц товара: " + totalUnits);
-
-        double totalValue = all.stream().mapToDouble(r -> r.quantity * r.price).sum();
-        lblTotalValue.setText(String.format("Общая стоимость запасов: %.2f", totalValue));
-
-        long low = all.stream().filter(r -> r.quantity < 5).count();
-        lblLowStock.setText("Товаров с низким остатком (<5): " + low);
+    // Можно вызывать не из EDT: показ вкладки не ждёт загрузки страниц
+    public void openViews() {
+        topQtySuppliers = db.materialize(db.groupBy("supplier")
+                .aggregate("SUM(quantity)")
+                .orderBy("SUM(quantity)", true)
+                .limit(5));
+
+        topValueSuppliers = db.materialize(db.groupBy("supplier")
+                .aggregate("SUM(quantity*price)")
+                .orderBy("SUM(quantity*price)", true)
+                .limit(5));
+
+        // totals последним: refresh() по нему решает, что представления готовы
+        totals = db.materialize(db.groupBy()
+                .aggregate("COUNT(*)")
+                .aggregate("SUM(quantity)")
+                .aggregate("SUM(quantity*price)"));
+    }
 
-        Map<String, Integer> quantityBySupplier = new HashMap<>();
-        Map<String, Double> valueBySupplier = new HashMap<>();
+    public void refresh() {
 
-        for (Record r : all) {
-            quantityBySupplier.merge(r.supplier, r.quantity, Integer::sum);
-            valueBySupplier.merge(r.supplier, r.quantity * r.price, Double::sum);
+        if (totals == null) {
+            lblUniqueItems.setText("Уникальных товаров: загрузка...");
+            lblTotalUnits.setText("Всего единиц товара: загрузка...");
+            lblTotalValue.setText("Общая стоимость запасов: загрузка...");
+            return;
         }
 
-        var topQtySuppliers = quantityBySupplier.entrySet()
-                .stream()
-                .sorted((a, b) -> Integer.compare(b.getValue(), a.getValue()))
-                .limit(5)
-                .toList();
+        Object[] total = totals.rows().get(0);
 
-        var topValueSuppliers = valueBySupplier.entrySet()
-                .stream()
-                .sorted((a, b) -> Double.compare(b.getValue(), a.getValue()))
-                .limit(5)
-                .toList();
+        lblUniqueItems.setText("Уникальных товаров: " + total[0]);
+        lblTotalUnits.setText("Всего единиц товара: " + total[1]);
+        lblTotalValue.setText(String.format("Общая стоимость запасов: %.2f", total[2]));
+        refreshReorder();
+        lblQueryCache.setText("Кэш запросов: попаданий " + db.getQueryCacheHits()
+                + ", промахов " + db.getQueryCacheMisses()
+                + ", сброшено " + db.getQueryCacheInvalidations());
 
-        var topExpensiveItems = all.stream()
-                .sorted((a, b) -> Double.compare(b.price, a.price))
-                .limit(5)
-                .toList();
+        var topExpensiveItems = db.getTop("price", 5, true);
 
-        var topQuantityItems = all.stream()
-                .sorted((a, b) -> Integer.compare(b.quantity, a.quantity))
-                .limit(5)
-                .toList();
+        var topQuantityItems = db.getTop("quantity", 5, true);
 
         StringBuilder StrBuildSup = new StringBuilder("<html>");
         StringBuilder StrBuildItem = new StringBuilder("<html>");
 
         StrBuildSup.append("<b>ТОП поставщиков (по стоимости):</b><br>");
-        for (var e : topValueSuppliers)
-            StrBuildSup.append(e.getKey()).append(" — ").append(String.format("%.2f", e.getValue())).append("<br>");
+        for (Object[] row : topValueSuppliers.rows())
+            StrBuildSup.append(row[0]).append(" — ").append(String.format("%.2f", row[1])).append("<br>");
 
         StrBuildSup.append("<br><b>ТОП поставщиков (по количеству товаров):</b><br>");
-        for (var e : topQtySuppliers)
-            StrBuildSup.append(e.getKey()).append(" — ").append(e.getValue()).append("<br>");
+        for (Object[] row : topQtySuppliers.rows())
+            StrBuildSup.append(row[0]).append(" — ").append(row[1]).append("<br>");
 
         StrBuildItem.append("<b>Самые дорогие товары:</b><br>");
         for (Record r : topExpensiveItems)
@@ -143,9 +189,127 @@ public class Monitoring extends JPanel {
         topStatsLabelSup.setText(StrBuildSup.toString());
         topStatsLabelItem.setText(StrBuildItem.toString());
 
+        refreshTrend();
+        refreshIndexes();
         loadLogTail();
     }
 
+    private void refreshIndexes() {
+        IndexAdvisor advisor = db.getIndexAdvisor();
+        StringBuilder sb = new StringBuilder("<html>");
+        sb.append("<b>Режим:</b> ").append(advisor.getMode())
+                .append(", запросов ").append(advisor.getQueries())
+                .append(String.format(", сэкономлено ~%.1f мс<br>", advisor.getEstimatedSavedMillis()));
+        sb.append("<b>Индексы:</b> ").append(advisor.getIndexes().isEmpty() ? "нет" : advisor.getIndexes()).append("<br>");
+
+        sb.append("<br><b>Рекомендации:</b><br>");
+        List<IndexAdvisor.Recommendation> recommendations = advisor.recommendations();
+        if (recommendations.isEmpty()) sb.append("нет<br>");
+        for (IndexAdvisor.Recommendation r : recommendations) sb.append(r).append("<br>");
+
+        sb.append("<br><b>Условия запросов:</b><br>");
+        for (IndexAdvisor.ShapeStats st : advisor.getStats()) sb.append(st).append("<br>");
+        sb.append("</html>");
+        indexLabel.setText(sb.toString());
+    }
+
+    // Набор товаров к заказу поддерживает база, список стоит столько, сколько в нём товаров
+    private void refreshReorder() {
+        ReorderAlerts alerts = db.getReorderAlerts();
+        if (alerts == null) {
+            lblLowStock.setText("Товаров с низким остатком (<5): " + db.getLowStockCount(5));
+            reorderLabel.setText("Точки заказа не открыты");
+            return;
+        }
+
+        List<Record> low = alerts.lowStock();
+        lblLowStock.setText("Товаров ниже точки заказа: " + low.size());
+
+        StringBuilder sb = new StringBuilder("<html>");
+        for (Record r : low)
+            sb.append(r.id).append(" ").append(r.name).append(" — ").append(r.quantity)
+                    .append(" (порог ").append(alerts.getThreshold(r.id)).append(")<br>");
+        sb.append("</html>");
+        reorderLabel.setText(sb.toString());
+    }
+
+    // График строится из готовых интервалов истории, сама история не просматривается
+    private void refreshTrend() {
+        StockHistory history = db.getHistory();
+        if (history == null) {
+            trendChart.setData(List.of(), "История остатков не открыта");
+            return;
+        }
+
+        long[] periods = {3_600_000L, 86_400_000L, 7 * 86_400_000L, 30 * 86_400_000L};
+        long to = System.currentTimeMillis();
+        long from = to - periods[trendPeriod.getSelectedIndex()];
+        trendChart.setData(history.trend(from, to, 60), null);
+    }
+
+    // Остаток на конец интервала — линия, поступления и расход — столбики вверх и вниз
+    private static class TrendChart extends JPanel {
+        private static final long serialVersionUID = 1L;
+
+        private List<StockHistory.Trend> points = List.of();
+        private String message;
+
+        void setData(List<StockHistory.Trend> points, String message) {
+            this.points = points;
+            this.message = message;
+            repaint();
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            int w = getWidth() - 80, h = getHeight() - 40;
+            if (message != null || points.isEmpty() || w <= 0 || h <= 0) {
+                g.drawString(message != null ? message : "Нет данных", 20, 20);
+                return;
+            }
+
+            long maxQty = 1, maxMove = 1;
+            for (StockHistory.Trend t : points) {
+                maxQty = Math.max(maxQty, t.quantity);
+                maxMove = Math.max(maxMove, Math.max(t.supplied, t.sold));
+            }
+
+            int left = 60, top = 20, mid = top + h * 3 / 4;
+            double step = (double) w / points.size();
+
+            g.setColor(Color.LIGHT_GRAY);
+            g.drawLine(left, mid, left + w, mid);
+            for (int i = 0; i < points.size(); i++) {
+                StockHistory.Trend t = points.get(i);
+                int x = left + (int) (i * step);
+                int bar = Math.max(1, (int) step - 2);
+                int up = (int) (t.supplied * (h / 4) / maxMove);
+                int down = (int) (t.sold * (h / 4) / maxMove);
+                g.setColor(new Color(120, 180, 120));
+                g.fillRect(x, mid - up, bar, up);
+                g.setColor(new Color(200, 120, 120));
+                g.fillRect(x, mid, bar, down);
+            }
+
+            g.setColor(new Color(40, 80, 160));
+            int prevX = -1, prevY = -1;
+            for (int i = 0; i < points.size(); i++) {
+                int x = left + (int) (i * step + step / 2);
+                int y = mid - (int) (points.get(i).quantity * (mid - top) / maxQty);
+                if (prevX >= 0) g.drawLine(prevX, prevY, x, y);
+                prevX = x;
+                prevY = y;
+            }
+
+            g.setColor(Color.DARK_GRAY);
+            g.drawString(String.valueOf(maxQty), 5, top + 5);
+            g.drawString("0", 5, mid + 5);
+            StockHistory.Trend last = points.get(points.size() - 1);
+            g.drawString(String.format("Остаток: %d ед., стоимость %.2f", last.quantity, last.value), left, top + h + 15);
+        }
+    }
+
     private void loadLogTail() {
         File f = new File("operations.log");
         if (!f.exists()) {
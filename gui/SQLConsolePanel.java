@@ -1,15 +1,31 @@
 package gui;
 
 import model.Database;
+import model.GroupBy;
+import model.Query;
 import model.Record;
+import model.Snapshot;
 
 import javax.swing.*;
 import javax.swing.table.DefaultTableModel;
 import java.awt.*;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class SQLConsolePanel extends JPanel {
 
+    private static final Pattern ORDER_BY = Pattern.compile("\\bORDER\\s+BY\\s+(\\w+\\s*\\([^)]*\\)|\\w+)(?:\\s+(ASC|DESC))?");
+    private static final Pattern GROUP_BY = Pattern.compile("\\bGROUP\\s+BY\\s+(\\w+(?:\\s*,\\s*\\w+)*)");
+    private static final Pattern HAVING = Pattern.compile(
+            "\\bHAVING\\s+(\\w+\\s*\\([^)]*\\))\\s*(>=|<=|=|>|<)\\s*(-?[\\d.]+)");
+    private static final Pattern LIMIT = Pattern.compile("\\bLIMIT\\s+(\\d+)");
+    private static final Pattern OFFSET = Pattern.compile("\\bOFFSET\\s+(\\d+)");
+    private static final Pattern LIKE = Pattern.compile("(\\w+)\\s+LIKE\\s+(.+)", Pattern.CASE_INSENSITIVE);
+
+    private static final String[] COLUMNS = {"ID", "Название", "Количество", "Цена", "Поставщик"};
+
     private final Database db;
     private final JTextArea inputArea;
     private final DefaultTableModel tableModel;
@@ -25,8 +41,7 @@ public class SQLConsolePanel extends JPanel {
         JButton runBtn = new JButton("Выполнить");
         add(runBtn, BorderLayout.SOUTH);
 
-        String[] columns = {"ID", "Название", "Количество", "Цена", "Поставщик"};
-        tableModel = new DefaultTableModel(columns, 0);
+        tableModel = new DefaultTableModel(COLUMNS, 0);
         JTable table = new JTable(tableModel);
         add(new JScrollPane(table), BorderLayout.CENTER);
 
@@ -62,17 +77,104 @@ public class SQLConsolePanel extends JPanel {
     private void runSelect(String cmd) {
         tableModel.setRowCount(0);
 
-        if (!cmd.toUpperCase().contains("WHERE")) {
-            for (Record r : db.getAll())
-                addRow(r);
+        String upper = cmd.toUpperCase();
+        String[] where = parseWhere(cmd, upper);
+
+        List<String> select = selectList(cmd, upper);
+        if (GROUP_BY.matcher(upper).find() || select.stream().anyMatch(c -> c.contains("("))) {
+            runGroupBy(cmd, upper, select, where);
             return;
         }
 
-        String condition = cmd.substring(cmd.toUpperCase().indexOf("WHERE") + 5).trim();
+        tableModel.setColumnIdentifiers(COLUMNS);
+        Query query = db.query();
+
+        Matcher order = ORDER_BY.matcher(upper);
+        if (order.find()) {
+            String field = cmd.substring(order.start(1), order.end(1));
+            query.orderBy(field, "DESC".equals(order.group(2)));
+        }
+
+        Matcher limit = LIMIT.matcher(upper);
+        if (limit.find()) query.limit(Long.parseLong(limit.group(1)));
+
+        Matcher offset = OFFSET.matcher(upper);
+        if (offset.find()) query.offset(Long.parseLong(offset.group(1)));
+
+        if (where != null) query.where(where[0], where[1], where[2]);
+
+        query.forEach(this::addRow);
+    }
+
+    // SELECT supplier, SUM(quantity), COUNT(*) ... GROUP BY supplier HAVING ... ORDER BY ... LIMIT n
+    private void runGroupBy(String cmd, String upper, List<String> select, String[] where) {
+        String[] fields = new String[0];
+        Matcher group = GROUP_BY.matcher(upper);
+        if (group.find())
+            fields = cmd.substring(group.start(1), group.end(1)).trim().split("\\s*,\\s*");
+
+        GroupBy query = db.groupBy(fields);
+        for (String column : select)
+            if (column.contains("(")) query.aggregate(column);
+
+        if (where != null) query.where(where[0], where[1], where[2]);
+
+        Matcher having = HAVING.matcher(upper);
+        while (having.find())
+            query.having(cmd.substring(having.start(1), having.end(1)), having.group(2),
+                    Double.parseDouble(having.group(3)));
+
+        Matcher order = ORDER_BY.matcher(upper);
+        if (order.find())
+            query.orderBy(cmd.substring(order.start(1), order.end(1)), "DESC".equals(order.group(2)));
+
+        Matcher limit = LIMIT.matcher(upper);
+        if (limit.find()) query.limit(Long.parseLong(limit.group(1)));
+
+        // Столбцы выводятся в порядке списка SELECT
+        List<String> columns = query.columns();
+        int[] index = new int[select.size()];
+        for (int i = 0; i < index.length; i++) {
+            index[i] = columns.indexOf(GroupBy.label(select.get(i)));
+            if (index[i] < 0) throw new IllegalArgumentException("Поле не входит в GROUP BY: " + select.get(i));
+        }
+
+        tableModel.setColumnIdentifiers(select.toArray());
+        for (Object[] row : query.list()) {
+            Object[] out = new Object[index.length];
+            for (int i = 0; i < index.length; i++) out[i] = row[index[i]];
+            tableModel.addRow(out);
+        }
+    }
+
+    // Столбцы между SELECT и первым из WHERE / GROUP BY / ORDER BY / ...; "*" — все поля записи
+    private List<String> selectList(String cmd, String upper) {
+        int end = clausesStart(upper);
+        int where = upper.indexOf("WHERE");
+        if (where >= 0) end = Math.min(end, where);
+
+        String list = cmd.substring("SELECT".length(), end).trim();
+        List<String> res = new ArrayList<>();
+        if (list.equals("*")) return res;
+        for (String column : list.split(","))
+            if (!column.isBlank()) res.add(column.trim());
+        return res;
+    }
+
+    // Условие WHERE в виде {поле, оператор, значение}; null, если условия нет
+    private String[] parseWhere(String cmd, String upper) {
+        if (!upper.contains("WHERE")) return null;
+
+        int end = clausesStart(upper);
+        String condition = cmd.substring(upper.indexOf("WHERE") + 5, end).trim();
+
+        Matcher like = LIKE.matcher(condition);
+        if (like.matches()) {
+            String pattern = like.group(2).trim().replace("\"", "").replace("'", "");
+            return new String[]{like.group(1), "LIKE", pattern};
+        }
 
         String operator;
-        String field;
-        String value;
 
         if (condition.contains(">=")) {
             operator = ">=";
@@ -88,21 +190,31 @@ public class SQLConsolePanel extends JPanel {
 
         String[] parts = condition.split(operator);
 
-        field = parts[0].trim();
-        value = parts[1].trim().replace("\"", "");
+        String field = parts[0].trim();
+        String value = parts[1].trim().replace("\"", "");
 
-        List<Record> found = db.search(field, value, operator);
+        return new String[]{field, operator, value};
+    }
 
-        for (Record r : found)
-            addRow(r);
+    // Начало GROUP BY / HAVING / ORDER BY / LIMIT / OFFSET, которыми заканчивается условие WHERE
+    private int clausesStart(String upper) {
+        int end = upper.length();
+        for (Pattern p : new Pattern[]{GROUP_BY, HAVING, ORDER_BY, LIMIT, OFFSET}) {
+            Matcher m = p.matcher(upper);
+            if (m.find()) end = Math.min(end, m.start());
+        }
+        return end;
     }
 
     private void refreshTable() {
+        tableModel.setColumnIdentifiers(COLUMNS);
         tableModel.setRowCount(0);
-        for (Record r : db.getAll()) {
-            tableModel.addRow(new Object[]{
-                    r.id, r.name, r.quantity, r.price, r.supplier
-            });
+        try (Snapshot snapshot = db.snapshot()) {
+            for (Record r : snapshot) {
+                tableModel.addRow(new Object[]{
+                        r.id, r.name, r.quantity, r.price, r.supplier
+                });
+            }
         }
     }
 
@@ -210,6 +322,17 @@ public class SQLConsolePanel extends JPanel {
                 SELECT * WHERE <...> — выборка по параметру
                 Пример: SELECT * WHERE price>1000
                 
+                SELECT * WHERE <поле> LIKE '<шаблон>' — поиск по части строки (% — любые символы)
+                Пример: SELECT * WHERE name LIKE 'sam%'
+                
+                SELECT * ... ORDER BY <поле> [DESC] LIMIT <n> OFFSET <m> — сортировка и постраничный вывод
+                Пример: SELECT * WHERE supplier="Sony" ORDER BY price DESC LIMIT 10
+                
+                SELECT <поля>, <агрегаты> ... GROUP BY <поля> HAVING <агрегат><op><число> ORDER BY ... LIMIT <n>
+                Агрегаты: COUNT(*), SUM, AVG, MIN, MAX от поля или произведения полей
+                Пример: SELECT supplier, SUM(quantity), SUM(quantity*price), COUNT(*) GROUP BY supplier
+                        HAVING COUNT(*)>10 ORDER BY SUM(quantity*price) DESC LIMIT 5
+                
                 DELETE * — удаление всех записей
                 DELETE * WHERE <...> — удаление по параметру
                 Пример: DELETE * WHERE quantity<5
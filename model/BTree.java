@@ -0,0 +1,435 @@
+package model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+// B+дерево с ключами long и значениями до MAX_VALUE байт поверх страниц TreeFile.
+// Узел на странице:
+//   тип (1 байт) | 0 | число ключей (short) | ссылка (int) | элементы
+//   лист:       ссылка не используется (0), элемент = ключ | длина (short) | значение
+//   внутренний: ссылка — самый левый потомок, элемент = ключ | потомок справа от ключа
+// Страница закрепляется только на время чтения или записи узла, поэтому операция держит
+// в пуле не больше одной страницы. Все операции выполняются под локом файла.
+// Узел, достижимый из последнего checkpoint, не меняется на месте: изменённая копия ложится
+// на новую страницу, и путь до корня копируется вместе с ней (см. TreeFile). Поэтому листья
+// не связаны в цепочку — ссылку на соседа пришлось бы копировать вместе с ним.
+// Недозаполненные узлы не сливаются, опустевшие удаляются из родителя и освобождаются
+class BTree {
+
+    static final int MAX_VALUE = 1024;
+
+    private static final byte LEAF = 1;
+    private static final byte INNER = 2;
+    private static final int HEADER = 8;
+
+    private final TreeFile file;
+    private final BufferPool pool;
+    private final int slot;
+
+    BTree(TreeFile file, BufferPool pool, int slot) {
+        this.file = file;
+        this.pool = pool;
+        this.slot = slot;
+    }
+
+    static final class Entry {
+        final long key;
+        final byte[] value;
+
+        Entry(long key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static final class Node {
+        boolean leaf;
+        int link;
+        int size;
+        long[] keys;
+        byte[][] values;
+        int[] children;
+
+        int bytes() {
+            int total = HEADER;
+            if (leaf) {
+                for (int i = 0; i < size; i++) total += 10 + values[i].length;
+            } else {
+                total += size * 12;
+            }
+            return total;
+        }
+
+        // Первая позиция с ключом > key (для внутреннего узла — номер потомка)
+        int upper(long key) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid] <= key) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        // Позиция ключа или -(позиция вставки) - 1
+        int find(long key) {
+            return Arrays.binarySearch(keys, 0, size, key);
+        }
+    }
+
+    private static final class Split {
+        final long key;
+        final int page;
+
+        Split(long key, int page) {
+            this.key = key;
+            this.page = page;
+        }
+    }
+
+    long size() {
+        synchronized (file) {
+            return file.counts[slot];
+        }
+    }
+
+    byte[] get(long key) throws IOException {
+        synchronized (file) {
+            int page = file.roots[slot];
+            if (page == 0) return null;
+
+            Node node = read(page);
+            while (!node.leaf) node = read(child(node, node.upper(key)));
+
+            int pos = node.find(key);
+            return pos >= 0 ? node.values[pos] : null;
+        }
+    }
+
+    void put(long key, byte[] value) throws IOException {
+        if (value.length > MAX_VALUE) throw new IllegalArgumentException("Значение длиннее " + MAX_VALUE + " байт");
+
+        synchronized (file) {
+            int root = file.roots[slot];
+            if (root == 0) {
+                Node leaf = new Node();
+                leaf.leaf = true;
+                leaf.size = 1;
+                leaf.keys = new long[]{key};
+                leaf.values = new byte[][]{value};
+                file.roots[slot] = create(leaf);
+                file.counts[slot]++;
+                return;
+            }
+
+            Change change = insert(root, key, value);
+            if (change.split == null) {
+                file.roots[slot] = change.page;
+                return;
+            }
+
+            Node top = new Node();
+            top.link = change.page;
+            top.size = 1;
+            top.keys = new long[]{change.split.key};
+            top.children = new int[]{change.split.page};
+            file.roots[slot] = create(top);
+        }
+    }
+
+    boolean remove(long key) throws IOException {
+        synchronized (file) {
+            int root = file.roots[slot];
+            if (get(key) == null) return false;
+
+            root = remove(root, key);
+            // Корень из одного потомка заменяется этим потомком
+            while (root != 0) {
+                Node node = read(root);
+                if (node.leaf || node.size > 0) break;
+                release(root);
+                root = node.link;
+            }
+            file.roots[slot] = root;
+            file.counts[slot]--;
+            return true;
+        }
+    }
+
+    // Не больше max элементов с ключами из [lo, hi] по возрастанию ключа; продолжение —
+    // повторный вызов с lo = последний ключ + 1, поэтому курсор переживает расщепления узлов.
+    // Следующий лист ищется спуском от корня: его первый ключ не меньше ближайшего
+    // разделителя справа от пройденного пути
+    List<Entry> scan(long lo, long hi, int max) throws IOException {
+        List<Entry> res = new ArrayList<>();
+        synchronized (file) {
+            while (res.size() < max && lo <= hi && file.roots[slot] != 0) {
+                Node node = read(file.roots[slot]);
+                long next = Long.MAX_VALUE;
+                boolean last = true;
+                while (!node.leaf) {
+                    int i = node.upper(lo);
+                    if (i < node.size && node.keys[i] <= next) {
+                        next = node.keys[i];
+                        last = false;
+                    }
+                    node = read(child(node, i));
+                }
+
+                int pos = node.find(lo);
+                if (pos < 0) pos = -pos - 1;
+                for (; pos < node.size && res.size() < max && node.keys[pos] <= hi; pos++)
+                    res.add(new Entry(node.keys[pos], node.values[pos]));
+                if (last) break;
+                lo = next;
+            }
+        }
+        return res;
+    }
+
+    // Страницы дерева отмечаются в used. Все листья на одной глубине, поэтому читаются
+    // только внутренние узлы: номера листьев записаны в их родителях
+    void collect(BitSet used) throws IOException {
+        synchronized (file) {
+            int root = file.roots[slot];
+            if (root == 0) return;
+            int height = 1;
+            for (Node node = read(root); !node.leaf; node = read(node.link)) height++;
+            used.set(root);
+            collect(root, height, used);
+        }
+    }
+
+    private void collect(int page, int height, BitSet used) throws IOException {
+        if (height == 1) return;
+        Node node = read(page);
+        for (int i = 0; i <= node.size; i++) {
+            int child = child(node, i);
+            used.set(child);
+            collect(child, height - 1, used);
+        }
+    }
+
+    private static int child(Node node, int i) {
+        return i == 0 ? node.link : node.children[i - 1];
+    }
+
+    // Узел после изменения: страница, на которой он теперь лежит, и его расщепление
+    private static final class Change {
+        final int page;
+        final Split split;
+
+        Change(int page, Split split) {
+            this.page = page;
+            this.split = split;
+        }
+    }
+
+    private Change insert(int page, long key, byte[] value) throws IOException {
+        Node node = read(page);
+
+        if (node.leaf) {
+            int pos = node.find(key);
+            if (pos >= 0) {
+                node.values[pos] = value;
+            } else {
+                pos = -pos - 1;
+                grow(node);
+                System.arraycopy(node.keys, pos, node.keys, pos + 1, node.size - pos);
+                System.arraycopy(node.values, pos, node.values, pos + 1, node.size - pos);
+                node.keys[pos] = key;
+                node.values[pos] = value;
+                node.size++;
+                file.counts[slot]++;
+            }
+        } else {
+            int i = node.upper(key);
+            int child = child(node, i);
+            Change change = insert(child, key, value);
+            // Потомок изменён на своём месте: сам узел не меняется
+            if (change.page == child && change.split == null) return new Change(page, null);
+
+            setChild(node, i, change.page);
+            if (change.split != null) {
+                grow(node);
+                System.arraycopy(node.keys, i, node.keys, i + 1, node.size - i);
+                System.arraycopy(node.children, i, node.children, i + 1, node.size - i);
+                node.keys[i] = change.split.key;
+                node.children[i] = change.split.page;
+                node.size++;
+            }
+        }
+
+        if (node.bytes() <= TreeFile.PAGE_SIZE) return new Change(store(page, node), null);
+        return split(page, node);
+    }
+
+    // Новая страница узла после удаления ключа (он есть в дереве); 0 — узел опустел и освобождён
+    private int remove(int page, long key) throws IOException {
+        Node node = read(page);
+
+        if (node.leaf) {
+            int pos = node.find(key);
+            System.arraycopy(node.keys, pos + 1, node.keys, pos, node.size - pos - 1);
+            System.arraycopy(node.values, pos + 1, node.values, pos, node.size - pos - 1);
+            node.size--;
+        } else {
+            int i = node.upper(key);
+            int child = child(node, i);
+            int moved = remove(child, key);
+            if (moved == child) return page;
+
+            if (moved != 0) {
+                setChild(node, i, moved);
+            } else if (node.size == 0) {
+                // Единственный потомок опустел
+                release(page);
+                return 0;
+            } else if (i == 0) {
+                // Диапазон самого левого потомка отходит следующему за ним
+                node.link = node.children[0];
+                drop(node, 0);
+            } else {
+                drop(node, i - 1);
+            }
+        }
+
+        if (node.leaf && node.size == 0) {
+            release(page);
+            return 0;
+        }
+        return store(page, node);
+    }
+
+    private static void setChild(Node node, int i, int page) {
+        if (i == 0) node.link = page;
+        else node.children[i - 1] = page;
+    }
+
+    // Удаляет из внутреннего узла ключ pos вместе с потомком справа от него
+    private static void drop(Node node, int pos) {
+        System.arraycopy(node.keys, pos + 1, node.keys, pos, node.size - pos - 1);
+        System.arraycopy(node.children, pos + 1, node.children, pos, node.size - pos - 1);
+        node.size--;
+    }
+
+    private Change split(int page, Node node) throws IOException {
+        Node right = new Node();
+        right.leaf = node.leaf;
+        int mid = node.size / 2;
+        long separator;
+
+        if (node.leaf) {
+            // Лист делится пополам по байтам: значения бывают разной длины
+            int half = node.bytes() / 2, bytes = HEADER;
+            for (mid = 0; mid < node.size - 1 && bytes < half; mid++) bytes += 10 + node.values[mid].length;
+            mid = Math.max(mid, 1);
+
+            right.size = node.size - mid;
+            right.keys = Arrays.copyOfRange(node.keys, mid, node.size);
+            right.values = Arrays.copyOfRange(node.values, mid, node.size);
+            separator = right.keys[0];
+        } else {
+            // Средний ключ уходит наверх, его правый потомок становится самым левым в новом узле
+            right.size = node.size - mid - 1;
+            right.keys = Arrays.copyOfRange(node.keys, mid + 1, node.size);
+            right.children = Arrays.copyOfRange(node.children, mid + 1, node.size);
+            right.link = node.children[mid];
+            separator = node.keys[mid];
+        }
+
+        int rightPage = create(right);
+        node.size = mid;
+        return new Change(store(page, node), new Split(separator, rightPage));
+    }
+
+    private static void grow(Node node) {
+        if (node.size < node.keys.length) return;
+        int capacity = Math.max(4, node.size * 2);
+        node.keys = Arrays.copyOf(node.keys, capacity);
+        if (node.leaf) node.values = Arrays.copyOf(node.values, capacity);
+        else node.children = Arrays.copyOf(node.children, capacity);
+    }
+
+    private Node read(int page) throws IOException {
+        BufferPool.Frame f = pool.pin(file, page);
+        try {
+            ByteBuffer b = ByteBuffer.wrap(f.data);
+            Node node = new Node();
+            node.leaf = b.get() == LEAF;
+            b.get();
+            node.size = b.getShort() & 0xFFFF;
+            node.link = b.getInt();
+            node.keys = new long[node.size];
+            if (node.leaf) {
+                node.values = new byte[node.size][];
+                for (int i = 0; i < node.size; i++) {
+                    node.keys[i] = b.getLong();
+                    node.values[i] = new byte[b.getShort() & 0xFFFF];
+                    b.get(node.values[i]);
+                }
+            } else {
+                node.children = new int[node.size];
+                for (int i = 0; i < node.size; i++) {
+                    node.keys[i] = b.getLong();
+                    node.children[i] = b.getInt();
+                }
+            }
+            return node;
+        } finally {
+            pool.unpin(f, false);
+        }
+    }
+
+    // Свежая страница перезаписывается, страница последнего checkpoint заменяется копией
+    private int store(int page, Node node) throws IOException {
+        if (!file.isFresh(page)) {
+            release(page);
+            return create(node);
+        }
+        BufferPool.Frame f = pool.pin(file, page);
+        try {
+            encode(node, f.data);
+        } finally {
+            pool.unpin(f, true);
+        }
+        return page;
+    }
+
+    private void release(int page) {
+        pool.drop(file, page);
+        file.release(page);
+    }
+
+    private int create(Node node) throws IOException {
+        int page = file.allocate();
+        BufferPool.Frame f = pool.create(file, page);
+        try {
+            encode(node, f.data);
+        } finally {
+            pool.unpin(f, true);
+        }
+        return page;
+    }
+
+    private static void encode(Node node, byte[] data) {
+        ByteBuffer b = ByteBuffer.wrap(data);
+        b.put(node.leaf ? LEAF : INNER);
+        b.put((byte) 0);
+        b.putShort((short) node.size);
+        b.putInt(node.link);
+        for (int i = 0; i < node.size; i++) {
+            b.putLong(node.keys[i]);
+            if (node.leaf) {
+                b.putShort((short) node.values[i].length);
+                b.put(node.values[i]);
+            } else {
+                b.putInt(node.children[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package model;
+
+import java.io.IOException;
+import java.util.*;
+
+// Буферный пул страниц дисковых хранилищ: фиксированное число кадров на все файлы базы,
+// поэтому память не зависит от объёма данных. Вытеснение по алгоритму CLOCK; изменённые
+// страницы записываются на диск при вытеснении и при flush. Изменёнными бывают только свежие
+// страницы TreeFile, поэтому запись при вытеснении не портит состояние последнего checkpoint.
+// Закреплённый кадр (pin) не вытесняется
+class BufferPool {
+
+    static final int MIN_PAGES = 16;
+
+    static final class Frame {
+        final byte[] data = new byte[TreeFile.PAGE_SIZE];
+        private TreeFile file;
+        private int page;
+        private int pins;
+        private boolean dirty;
+        private boolean referenced;
+    }
+
+    private final Frame[] frames;
+    private final Map<TreeFile, Map<Integer, Frame>> resident = new HashMap<>();
+    private int hand;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    BufferPool(int pages) {
+        if (pages < MIN_PAGES) throw new IllegalArgumentException("Буферный пул меньше " + MIN_PAGES + " страниц");
+        frames = new Frame[pages];
+        for (int i = 0; i < pages; i++) frames[i] = new Frame();
+    }
+
+    // Чтение с диска идёт под локом пула: промахи разных потоков выполняются по очереди
+    synchronized Frame pin(TreeFile file, int page) throws IOException {
+        Frame f = resident.getOrDefault(file, Map.of()).get(page);
+        if (f != null) {
+            hits++;
+        } else {
+            misses++;
+            f = victim();
+            file.readPage(page, f.data);
+            bind(f, file, page);
+        }
+        f.pins++;
+        f.referenced = true;
+        return f;
+    }
+
+    // Новая страница: с диска не читается, будет записана при вытеснении или flush
+    synchronized Frame create(TreeFile file, int page) throws IOException {
+        Frame f = victim();
+        Arrays.fill(f.data, (byte) 0);
+        bind(f, file, page);
+        f.dirty = true;
+        f.pins++;
+        f.referenced = true;
+        return f;
+    }
+
+    synchronized void unpin(Frame f, boolean dirty) {
+        f.pins--;
+        if (dirty) f.dirty = true;
+    }
+
+    synchronized void flush(TreeFile file) throws IOException {
+        for (Frame f : resident.getOrDefault(file, Map.of()).values()) {
+            if (!f.dirty) continue;
+            file.writePage(f.page, f.data);
+            f.dirty = false;
+        }
+    }
+
+    // Кадр освобождённой страницы отбрасывается без записи: страница может достаться другому узлу
+    synchronized void drop(TreeFile file, int page) {
+        Map<Integer, Frame> pages = resident.get(file);
+        Frame f = pages == null ? null : pages.remove(page);
+        if (f == null) return;
+        f.file = null;
+        f.dirty = false;
+        f.referenced = false;
+    }
+
+    // Кадры файла освобождаются без записи (файл закрывается или подменяется)
+    synchronized void discard(TreeFile file) {
+        Map<Integer, Frame> pages = resident.remove(file);
+        if (pages == null) return;
+        for (Frame f : pages.values()) {
+            f.file = null;
+            f.dirty = false;
+            f.referenced = false;
+        }
+    }
+
+    private Frame victim() throws IOException {
+        for (int i = 0; i < frames.length * 2; i++) {
+            Frame f = frames[hand];
+            hand = (hand + 1) % frames.length;
+
+            if (f.pins > 0) continue;
+            if (f.referenced) {
+                f.referenced = false;
+                continue;
+            }
+            if (f.file != null) {
+                if (f.dirty) f.file.writePage(f.page, f.data);
+                resident.get(f.file).remove(f.page);
+                f.file = null;
+                f.dirty = false;
+                evictions++;
+            }
+            return f;
+        }
+        throw new IllegalStateException("Все страницы буферного пула закреплены");
+    }
+
+    private void bind(Frame f, TreeFile file, int page) {
+        f.file = file;
+        f.page = page;
+        resident.computeIfAbsent(file, k -> new HashMap<>()).put(page, f);
+    }
+
+    int capacity() {
+        return frames.length;
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    synchronized double hitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 1.0 : (double) hits / total;
+    }
+}
@@ -0,0 +1,418 @@
+package model;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Поток изменений базы (CDC): каждое изменение записи получает порядковый номер и попадает
+// в кольцевой буфер из capacity событий. Читатели (Cursor) читают со своих смещений в своих потоках:
+//   ChangeFeed.Cursor c = db.openChangeFeed(65536).cursor();
+//   c.start(events -> ...);   // или poll() + commit() в своём цикле
+// Событие хранится, пока его не подтвердили (commit) все курсоры. Если отстающий курсор не даёт
+// перезаписать буфер, события уходят в файл подкачки блоками по половине буфера (AES-GCM).
+// Писатель читателей не ждёт, и это выбранная политика, а не обратное давление: коммит держит
+// commit-лок, который нужен и самим читателям. Без файла подкачки теряется старшая половина буфера,
+// при исчерпании лимита — весь файл подкачки. Курсор, не успевший прочитать потерянные события,
+// получает вместо них одно событие GAP с их числом и продолжает со следующего хранимого
+public class ChangeFeed implements Closeable {
+
+    public enum Type { INSERT, UPDATE, DELETE, GAP }
+
+    public static final class Event {
+        public final long sequence;
+        // Версия коммита: события одного коммита имеют одну версию
+        public final long version;
+        public final Record before;
+        public final Record after;
+        // Для GAP: потеряны события [sequence, sequence + lost)
+        public final long lost;
+
+        Event(long sequence, long version, Record before, Record after) {
+            this(sequence, version, before, after, 0);
+        }
+
+        private Event(long sequence, long version, Record before, Record after, long lost) {
+            this.sequence = sequence;
+            this.version = version;
+            this.before = before;
+            this.after = after;
+            this.lost = lost;
+        }
+
+        public Type type() {
+            if (lost > 0) return Type.GAP;
+            if (before == null) return Type.INSERT;
+            return after == null ? Type.DELETE : Type.UPDATE;
+        }
+
+        @Override
+        public String toString() {
+            if (lost > 0) return sequence + " GAP " + lost;
+            return sequence + " " + type() + " " + (after != null ? after : before);
+        }
+    }
+
+    // Блок событий [first, first + count) в файле подкачки
+    private static final class Block {
+        final long first;
+        final int count;
+        final long offset;
+        final int length;
+        final byte[] iv;
+
+        Block(long first, int count, long offset, int length, byte[] iv) {
+            this.first = first;
+            this.count = count;
+            this.offset = offset;
+            this.length = length;
+            this.iv = iv;
+        }
+    }
+
+    private final Database db;
+    private final Event[] ring;
+    // В памяти события [memFirst, next), в файле подкачки — блоки до memFirst
+    private long memFirst = 1;
+    private long next = 1;
+
+    private final File spillFile;
+    private final long maxSpillBytes;
+    private final SecretKeySpec key;
+    private FileChannel spill;
+    private long spillSize;
+    private final ArrayDeque<Block> blocks = new ArrayDeque<>();
+
+    private final List<Cursor> cursors = new CopyOnWriteArrayList<>();
+    private long lost;
+    private volatile boolean closed;
+
+    ChangeFeed(Database db, int capacity, File spillFile, long maxSpillBytes, SecretKeySpec key) throws IOException {
+        if (capacity < 2) throw new IllegalArgumentException("Буфер CDC меньше 2 событий");
+        this.db = db;
+        this.ring = new Event[capacity];
+        this.spillFile = spillFile;
+        this.maxSpillBytes = maxSpillBytes;
+        this.key = key;
+        if (spillFile != null)
+            spill = FileChannel.open(spillFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    // Курсор с ближайшего нового события или с заданного номера из ещё хранимых
+    public Cursor cursor() {
+        synchronized (this) {
+            return cursor(next);
+        }
+    }
+
+    public synchronized Cursor cursor(long from) {
+        if (from < firstSequence() || from > next)
+            throw new IllegalArgumentException("Событие " + from + " недоступно: хранятся " + firstSequence() + ".." + (next - 1));
+        Cursor c = new Cursor(from);
+        cursors.add(c);
+        return c;
+    }
+
+    public synchronized long firstSequence() {
+        return blocks.isEmpty() ? memFirst : blocks.peekFirst().first;
+    }
+
+    public synchronized long nextSequence() {
+        return next;
+    }
+
+    // Сколько событий выброшено до того, как их прочитали все курсоры
+    public synchronized long getLostEvents() {
+        return lost;
+    }
+
+    public synchronized long getSpillSize() {
+        return spillSize;
+    }
+
+    // Вызывается под commit-локом, поэтому порядок номеров совпадает с порядком коммитов.
+    // Не блокируется: commit-лок нужен и читателям (закрытие снимка, подгрузка страниц)
+    synchronized void append(long version, List<Record[]> changes) {
+        if (closed) return;
+        for (Record[] c : changes) {
+            if (next - memFirst == ring.length) makeRoom();
+            ring[(int) (next % ring.length)] = new Event(next, version, c[0], c[1]);
+            next++;
+        }
+        notifyAll();
+    }
+
+    // Освобождает место в буфере: выбрасывает подтверждённые всеми события, сбрасывает старшую
+    // половину буфера в файл подкачки или, если сбросить некуда, теряет её
+    private void makeRoom() {
+        long needed = committed();
+        if (needed > memFirst) {
+            drop((int) Math.min(needed - memFirst, ring.length / 2));
+            return;
+        }
+        if (spill != null) {
+            // Лимит исчерпан: теряются самые старые события — весь файл подкачки
+            if (spillSize >= maxSpillBytes) {
+                for (Block b : blocks) lost += b.count;
+                blocks.clear();
+                truncateSpill();
+            }
+            if (spillHalf()) return;
+        }
+        lost += ring.length / 2;
+        blocks.clear();
+        truncateSpill();
+        drop(ring.length / 2);
+    }
+
+    private boolean spillHalf() {
+        int count = ring.length / 2;
+        try {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buf);
+            for (long s = memFirst; s < memFirst + count; s++) write(out, ring[(int) (s % ring.length)]);
+
+            byte[] iv = PageFile.newIv();
+            byte[] sealed = PageFile.encrypt(key, iv, buf.toByteArray());
+            ByteBuffer data = ByteBuffer.wrap(sealed);
+            while (data.hasRemaining()) spill.write(data, spillSize + data.position());
+
+            blocks.addLast(new Block(memFirst, count, spillSize, sealed.length, iv));
+            spillSize += sealed.length;
+        } catch (IOException | GeneralSecurityException e) {
+            return false;
+        }
+        drop(count);
+        return true;
+    }
+
+    private void truncateSpill() {
+        if (spillSize == 0) return;
+        try {
+            spill.truncate(0);
+            spillSize = 0;
+        } catch (IOException ignored) {}
+    }
+
+    private void drop(int count) {
+        for (int i = 0; i < count; i++) ring[(int) (memFirst++ % ring.length)] = null;
+    }
+
+    // Наименьшее подтверждённое смещение; без курсоров хранить ничего не нужно
+    private long committed() {
+        long min = next;
+        for (Cursor c : cursors) min = Math.min(min, c.committed);
+        return min;
+    }
+
+    // Блоки, подтверждённые всеми курсорами, удаляются; пустой файл подкачки обрезается
+    private void release() {
+        long needed = committed();
+        while (!blocks.isEmpty() && blocks.peekFirst().first + blocks.peekFirst().count <= needed)
+            blocks.removeFirst();
+        if (blocks.isEmpty()) truncateSpill();
+    }
+
+    private List<Event> readBlock(Block b) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(b.length);
+        while (data.hasRemaining())
+            if (spill.read(data, b.offset + data.position()) < 0) throw new EOFException("Файл подкачки CDC обрезан");
+
+        byte[] plain;
+        try {
+            plain = PageFile.decrypt(key, b.iv, data.flip());
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Повреждён блок файла подкачки CDC", e);
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain));
+        List<Event> res = new ArrayList<>(b.count);
+        for (int i = 0; i < b.count; i++) res.add(read(in));
+        return res;
+    }
+
+    private static void write(DataOutputStream out, Event e) throws IOException {
+        out.writeLong(e.sequence);
+        out.writeLong(e.version);
+        write(out, e.before);
+        write(out, e.after);
+    }
+
+    private static void write(DataOutputStream out, Record r) throws IOException {
+        out.writeBoolean(r != null);
+        if (r == null) return;
+        out.writeInt(r.id);
+        out.writeUTF(r.name);
+        out.writeInt(r.quantity);
+        out.writeDouble(r.price);
+        out.writeUTF(r.supplier);
+    }
+
+    private static Event read(DataInputStream in) throws IOException {
+        long sequence = in.readLong();
+        long version = in.readLong();
+        return new Event(sequence, version, readRecord(in), readRecord(in));
+    }
+
+    private static Record readRecord(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) return null;
+        return new Record(in.readInt(), in.readUTF(), in.readInt(), in.readDouble(), in.readUTF());
+    }
+
+    @Override
+    // База отпускается до захвата монитора: коммит берёт commit-лок, а затем монитор потока
+    public void close() throws IOException {
+        db.drop(this);
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+        }
+        if (spill != null) {
+            spill.close();
+            spillFile.delete();
+        }
+    }
+
+    // Читатель потока: position — следующее событие для poll, committed — всё до него обработано.
+    // Один курсор используется одним потоком
+    public final class Cursor implements AutoCloseable {
+        private volatile long position;
+        private volatile long committed;
+
+        private Cursor(long from) {
+            position = from;
+            committed = from;
+        }
+
+        public long position() {
+            return position;
+        }
+
+        public long committed() {
+            return committed;
+        }
+
+        // Сколько событий ещё не подтверждено
+        public long lag() {
+            return nextSequence() - committed;
+        }
+
+        // До max событий начиная с position; ждёт появления событий не дольше timeout.
+        // Пустой список — событий нет или поток закрыт. Если события с position уже потеряны,
+        // возвращается одно событие GAP, и чтение продолжается с первого хранимого
+        public List<Event> poll(int max, long timeout, TimeUnit unit) throws InterruptedException, IOException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (true) {
+                Block block = null;
+                List<Event> res = new ArrayList<>();
+
+                synchronized (ChangeFeed.this) {
+                    long left;
+                    while (!closed && position == next && (left = deadline - System.nanoTime()) > 0)
+                        TimeUnit.NANOSECONDS.timedWait(ChangeFeed.this, left);
+                    if (closed || position == next) return res;
+
+                    long first = firstSequence();
+                    if (position < first) {
+                        res.add(new Event(position, 0, null, null, first - position));
+                        position = first;
+                        return res;
+                    }
+
+                    if (position < memFirst) {
+                        for (Block b : blocks)
+                            if (position < b.first + b.count) {
+                                block = b;
+                                break;
+                            }
+                    } else {
+                        for (long s = position; s < next && res.size() < max; s++) res.add(ring[(int) (s % ring.length)]);
+                    }
+                }
+
+                if (block != null) {
+                    // Файл читается без лока; блок, выброшенный при переполнении за это время,
+                    // читается заново как GAP
+                    List<Event> events = null;
+                    IOException error = null;
+                    try {
+                        events = readBlock(block);
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                    synchronized (ChangeFeed.this) {
+                        if (!blocks.contains(block)) continue;
+                    }
+                    if (error != null) throw error;
+                    for (Event e : events)
+                        if (e.sequence >= position && res.size() < max) res.add(e);
+                }
+
+                if (!res.isEmpty()) position = res.get(res.size() - 1).sequence + 1;
+                return res;
+            }
+        }
+
+        // Подтверждает все события, полученные через poll
+        public void commit() {
+            synchronized (ChangeFeed.this) {
+                committed = position;
+                release();
+            }
+        }
+
+        // Перемотка к событию from; до него всё считается подтверждённым
+        public void seek(long from) {
+            synchronized (ChangeFeed.this) {
+                if (from < firstSequence() || from > next)
+                    throw new IllegalArgumentException("Событие " + from + " недоступно");
+                position = from;
+                committed = from;
+                release();
+            }
+        }
+
+        // Поток-обработчик: получает события пачками и подтверждает их после обработки;
+        // потеря событий приходит в пачке как событие GAP
+        public Thread start(Consumer<List<Event>> handler) {
+            Thread t = new Thread(() -> {
+                try {
+                    while (!closed) {
+                        List<Event> batch = poll(1024, 1, TimeUnit.SECONDS);
+                        if (batch.isEmpty()) continue;
+                        handler.accept(batch);
+                        commit();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    close();
+                }
+            }, "cdc-cursor");
+            t.setDaemon(true);
+            t.start();
+            return t;
+        }
+
+        // Закрытый курсор больше не удерживает события
+        @Override
+        public void close() {
+            synchronized (ChangeFeed.this) {
+                cursors.remove(this);
+                release();
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package model;
+
+import javax.crypto.Cipher;
+import java.security.GeneralSecurityException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Пул экземпляров Cipher: Cipher.getInstance дорог, а сам экземпляр не потокобезопасен,
+// поэтому каждый поток берёт свой экземпляр на время операции и возвращает его
+class CipherPool {
+
+    static final CipherPool ECB = new CipherPool("AES");
+    static final CipherPool GCM = new CipherPool("AES/GCM/NoPadding");
+
+    private static final int MAX_IDLE = 64;
+
+    private final String transformation;
+    private final Queue<Cipher> idle = new ConcurrentLinkedQueue<>();
+
+    CipherPool(String transformation) {
+        this.transformation = transformation;
+    }
+
+    Cipher acquire() throws GeneralSecurityException {
+        Cipher c = idle.poll();
+        return c != null ? c : Cipher.getInstance(transformation);
+    }
+
+    void release(Cipher c) {
+        if (idle.size() < MAX_IDLE) idle.offer(c);
+    }
+
+    int idle() {
+        return idle.size();
+    }
+}
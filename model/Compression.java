@@ -0,0 +1,30 @@
+package model;
+
+import java.util.zip.Deflater;
+
+// Сжатие данных перед шифрованием при сохранении. Формат файла определяется по заголовку,
+// поэтому при загрузке читаются файлы с любым значением этой настройки
+public enum Compression {
+
+    // Старый формат без заголовка: весь файл шифруется одним блоком, без сжатия
+    LEGACY(0, false, 0),
+    NONE(1, false, 0),
+    FAST(2, true, Deflater.BEST_SPEED),
+    DEFLATE(3, true, Deflater.DEFAULT_COMPRESSION);
+
+    final int code;
+    final boolean deflate;
+    final int level;
+
+    Compression(int code, boolean deflate, int level) {
+        this.code = code;
+        this.deflate = deflate;
+        this.level = level;
+    }
+
+    static Compression byCode(int code) {
+        for (Compression c : values())
+            if (c.code == code) return c;
+        throw new IllegalArgumentException("Неизвестный тип сжатия: " + code);
+    }
+}
@@ -1,27 +1,132 @@
 package model;
 
-import javax.crypto.*;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
-import java.security.GeneralSecurityException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class Database {
 
+    public static final int DEFAULT_SHARDS = 4;
+
     private final String filename;
     private final String logFile = "operations.log";
 
     private final byte[] AES_KEY = "1234567890ABCDEF".getBytes();
     private final SecretKeySpec secretKey = new SecretKeySpec(AES_KEY, "AES");
 
-    private Map<Integer, Record> table = new HashMap<>();
-    private Map<String, Set<Integer>> nameIndex = new HashMap<>();
-    private Map<String, Set<Integer>> supplierIndex = new HashMap<>();
+    private volatile Compression compression = Compression.FAST;
+
+    private final Partitioner partitioner;
+    private final Shard[] shards;
+
+    // Буферный пул дискового хранилища; null — все записи хранятся в памяти
+    private final BufferPool pool;
 
-    private List<DatabaseListener> listeners = new ArrayList<>();
+    private final StringDictionary suppliers = new StringDictionary();
+    private final VersionClock clock = new VersionClock();
+    private final Object commitLock = new Object();
+    private final Object saveLock = new Object();
+    private volatile CompletableFuture<Void> backupTask;
+
+    private final List<MaterializedView> views = new CopyOnWriteArrayList<>();
+    private volatile ChangeFeed feed;
+    private volatile StockHistory history;
+    private volatile ReorderAlerts reorder;
+    private final IndexAdvisor advisor = new IndexAdvisor(this);
+    private final QueryCache cache = new QueryCache(256, 1_000_000);
+    // Изменения текущего коммита {старая запись, новая} для кэша запросов, представлений и CDC;
+    // заполняются только под commit-локом
+    private final List<Record[]> changes = new ArrayList<>();
+
+    // Слушателей уведомляет и поток очереди продаж, а добавляют и удаляют их из EDT
+    private final List<DatabaseListener> listeners = new CopyOnWriteArrayList<>();
 
     public Database(String filename) {
+        this(filename, DEFAULT_SHARDS);
+    }
+
+    public Database(String filename, int shardCount) {
+        this(filename, Partitioner.hash(shardCount));
+    }
+
+    public Database(String filename, Partitioner partitioner) {
+        this(filename, partitioner, null);
+    }
+
+    private Database(String filename, Partitioner partitioner, BufferPool pool) {
         this.filename = filename;
+        this.partitioner = partitioner;
+        this.pool = pool;
+        this.shards = new Shard[partitioner.shardCount()];
+        for (int i = 0; i < shards.length; i++) {
+            String file = shardFile(filename, i);
+            shards[i] = new Shard(i, pool == null ? file : treeFile(file), suppliers, commitLock);
+        }
+    }
+
+    // Дисковое хранилище: записи и индексы лежат в B+деревьях файлов шардов (<файл>.tree),
+    // в памяти — буферный пул из bufferPages страниц по 4 КБ и версии, ещё нужные открытым снимкам.
+    // Изменения пишутся на диск при вытеснении страниц из пула и при save()
+    public static Database onDisk(String filename, int shardCount, int bufferPages) throws IOException {
+        Database db = new Database(filename, Partitioner.hash(shardCount), new BufferPool(bufferPages));
+        try {
+            for (Shard shard : db.shards) db.openStore(shard, new File(shard.file));
+            db.repartitionStores();
+        } catch (IOException e) {
+            for (Shard shard : db.shards)
+                if (shard.store() != null) shard.store().close();
+            throw e;
+        }
+        return db;
+    }
+
+    // Раскладка дисковых шардов не хранится в файлах: если первые записи шарда принадлежат
+    // другому шарду, хранилища записаны прежней хеш-раскладкой и записи переносятся один раз
+    private void repartitionStores() throws IOException {
+        boolean misplaced = false;
+        for (Shard shard : shards)
+            for (Record r : shard.store().scan(Integer.MIN_VALUE, Integer.MAX_VALUE, 16))
+                misplaced |= partitioner.shardOf(r.id) != shard.index;
+        if (!misplaced) return;
+
+        replaceAll(partition(gather(shard -> shard.filter(r -> true, clock.current()))));
+        save();
+        log("REPARTITION disk storage");
+    }
+
+    private static String treeFile(String file) {
+        return file + ".tree";
+    }
+
+    private void openStore(Shard shard, File f) throws IOException {
+        TreeStore store = TreeStore.open(f, secretKey, pool, suppliers);
+        synchronized (commitLock) {
+            shard.open(store);
+        }
+    }
+
+    // Закрывает поток изменений и файлы дискового хранилища, предварительно записав изменения
+    public void close() throws IOException {
+        if (feed != null) feed.close();
+        if (history != null) history.close();
+        if (reorder != null) reorder.close();
+        if (pool == null) return;
+        save();
+        for (Shard shard : shards)
+            if (shard.store() != null) shard.store().close();
     }
 
     public interface DatabaseListener {
@@ -42,6 +147,254 @@ public class Database {
         }
     }
 
+    // При одном шарде используется исходный файл, поэтому старые базы открываются как раньше
+    private String shardFile(String base, int shard) {
+        return shards.length == 1 ? base : base + "." + shard;
+    }
+
+    Shard shardFor(int id) {
+        return shards[partitioner.shardOf(id)];
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this, shards, clock.acquire());
+    }
+
+    void release(long version) {
+        boolean wasOldest = clock.oldest() == version;
+        clock.release(version);
+        if (!wasOldest) return;
+
+        synchronized (commitLock) {
+            long oldest = clock.oldest();
+            for (Shard shard : shards) shard.collectAll(oldest);
+        }
+    }
+
+    // Все изменения внутри install получают одну версию и становятся видимы снимкам одновременно
+    private void commit(LongConsumer install) {
+        synchronized (commitLock) {
+            long v = clock.current() + 1;
+            try {
+                install.accept(v);
+                clock.publish(v);
+
+                long oldest = clock.oldest();
+                for (Shard shard : shards) shard.collectPending(oldest);
+
+                if (!changes.isEmpty()) {
+                    cache.invalidate(changes);
+                    for (MaterializedView view : views) view.commit(v, changes);
+                    if (feed != null) feed.append(v, changes);
+                    if (history != null) history.append(System.currentTimeMillis(), changes);
+                    if (reorder != null) reorder.commit(v, changes);
+                }
+            } finally {
+                changes.clear();
+            }
+        }
+    }
+
+    // Вызывается внутри commit; изменение запоминается для кэша, представлений и CDC
+    private void install(Shard shard, int id, Record r, long v) {
+        Record old = shard.install(id, r, v);
+        if (old != null || r != null) changes.add(new Record[]{old, r});
+    }
+
+    // Поток изменений в памяти: при заполненном буфере отстающие курсоры теряют старые события (GAP)
+    public ChangeFeed openChangeFeed(int capacity) throws IOException {
+        return openChangeFeed(capacity, null, 0);
+    }
+
+    // Поток изменений с файлом подкачки: отстающие события уходят в spillFile, пока он меньше maxSpillBytes
+    public ChangeFeed openChangeFeed(int capacity, String spillFile, long maxSpillBytes) throws IOException {
+        synchronized (commitLock) {
+            if (feed != null) throw new IllegalStateException("Поток изменений уже открыт");
+            feed = new ChangeFeed(this, capacity, spillFile == null ? null : new File(spillFile), maxSpillBytes, secretKey);
+            log("CDC opened: capacity=" + capacity + (spillFile == null ? "" : " spill=" + spillFile));
+            return feed;
+        }
+    }
+
+    public ChangeFeed getChangeFeed() {
+        return feed;
+    }
+
+    // История остатков в файле <база>.history; при открытии догоняет текущие записи
+    public StockHistory openHistory() throws IOException {
+        // Лениво подключённые страницы загружаются заранее: их загрузка тоже берёт commit-лок
+        for (Shard shard : shards) shard.ensureAll();
+
+        synchronized (commitLock) {
+            if (history != null) throw new IllegalStateException("История остатков уже открыта");
+            StockHistory h = new StockHistory(this, new File(filename + ".history"), secretKey);
+            h.sync(System.currentTimeMillis(), gather(shard -> shard.filter(r -> true, clock.current())));
+            history = h;
+            log("HISTORY opened: " + h.getSeries() + " items, " + h.getPoints() + " points");
+            return h;
+        }
+    }
+
+    public StockHistory getHistory() {
+        return history;
+    }
+
+    // Точки заказа: набор товаров ниже порога поддерживается на каждом коммите
+    public ReorderAlerts openReorderAlerts(int defaultThreshold) throws IOException {
+        // Лениво подключённые страницы загружаются заранее: их загрузка тоже берёт commit-лок
+        for (Shard shard : shards) shard.ensureAll();
+
+        synchronized (commitLock) {
+            if (reorder != null) throw new IllegalStateException("Точки заказа уже открыты");
+            ReorderAlerts alerts = new ReorderAlerts(this, new File(filename + ".reorder"), secretKey, defaultThreshold);
+            alerts.reset(gather(shard -> shard.filter(r -> true, clock.current())));
+            reorder = alerts;
+            log("REORDER opened: threshold=" + defaultThreshold + ", low=" + alerts.count());
+            return alerts;
+        }
+    }
+
+    public ReorderAlerts getReorderAlerts() {
+        return reorder;
+    }
+
+    public IndexAdvisor getIndexAdvisor() {
+        return advisor;
+    }
+
+    // Индексы советника есть только у базы в памяти: дисковые шарды ищут по B+деревьям
+    boolean supportsFieldIndexes() {
+        return pool == null;
+    }
+
+    // Индекс советника по числовому полю строится в фоне: чтение и запись не останавливаются,
+    // шард использует индекс, как только заполнит его, до этого запросы идут полным просмотром
+    public CompletableFuture<Void> createIndex(String field) {
+        if (!FieldIndex.supports(field)) throw new IllegalArgumentException("Индекс по полю " + field + " не поддерживается");
+        if (!supportsFieldIndexes()) throw new UnsupportedOperationException("Индексы советника есть только у базы в памяти");
+
+        List<Runnable> builds = new ArrayList<>();
+        synchronized (commitLock) {
+            for (Shard shard : shards) {
+                FieldIndex fi = shard.addFieldIndex(field);
+                if (fi != null) builds.add(() -> shard.build(fi));
+            }
+        }
+        if (builds.isEmpty()) {
+            advisor.created(field, true);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        advisor.building(field);
+        long start = System.nanoTime();
+        return CompletableFuture.runAsync(() -> builds.parallelStream().forEach(Runnable::run))
+                .whenComplete((v, e) -> {
+                    advisor.created(field, e == null);
+                    if (e == null) log("INDEX created: " + field + " (" + (System.nanoTime() - start) / 1_000_000 + " ms)");
+                    else log("INDEX failed: " + field + ": " + e.getMessage());
+                });
+    }
+
+    // Индексы советника, записанные в снимках, и уже созданные до загрузки. Шарды, получившие
+    // индекс из снимка, пропускаются; остальные (без снимка или с устаревшим) строят его в фоне
+    private void restoreIndexes(List<Map<String, Map<String, int[]>>> snapshots) {
+        Set<String> fields = new TreeSet<>(advisor.getIndexes());
+        for (Map<String, Map<String, int[]>> sections : snapshots) {
+            if (sections == null) continue;
+            for (String section : sections.keySet()) {
+                String field = FieldIndex.fieldOf(section);
+                if (field != null) fields.add(field);
+            }
+        }
+        for (String field : fields) createIndex(field);
+    }
+
+    public void dropIndex(String field) {
+        for (Shard shard : shards) shard.dropFieldIndex(field);
+        advisor.dropped(field);
+        log("INDEX dropped: " + field);
+    }
+
+    void drop(StockHistory closed) {
+        synchronized (commitLock) {
+            if (history == closed) history = null;
+        }
+    }
+
+    void drop(ChangeFeed closed) {
+        synchronized (commitLock) {
+            if (feed == closed) feed = null;
+        }
+    }
+
+    void drop(ReorderAlerts alerts) {
+        synchronized (commitLock) {
+            if (reorder == alerts) reorder = null;
+        }
+    }
+
+    // Новый порог применяется под commit-локом, чтобы ни один коммит не прошёл мимо набора
+    void reorderThresholdChanged(ReorderAlerts alerts, int id, Integer threshold) {
+        synchronized (commitLock) {
+            alerts.setThreshold(clock.current(), id, threshold, shardFor(id).latest(id));
+        }
+        log("REORDER POINT: id=" + id + " threshold=" + (threshold == null ? "default" : threshold));
+    }
+
+    public MaterializedView materialize(Query q, String... columns) {
+        return register(new RecordView(this, q, columns));
+    }
+
+    public MaterializedView materialize(GroupBy g) {
+        return register(new GroupView(this, g));
+    }
+
+    // Начальный результат считается по снимку под commit-локом, поэтому ни один коммит
+    // не попадёт между ним и первой дельтой
+    private <V extends MaterializedView> V register(V view) {
+        // Лениво подключённые страницы загружаются заранее: их загрузка тоже берёт commit-лок
+        for (Shard shard : shards) shard.ensureAll();
+
+        synchronized (commitLock) {
+            try (Snapshot snap = snapshot()) {
+                view.refresh(snap);
+            }
+            views.add(view);
+        }
+        log("MATERIALIZE " + String.join(",", view.columns()));
+        return view;
+    }
+
+    void drop(MaterializedView view) {
+        views.remove(view);
+    }
+
+    // Пересчёт представлений, истории и точек заказа после изменений мимо commit (подмена файлов хранилища)
+    private void refreshViews() {
+        synchronized (commitLock) {
+            if (views.isEmpty() && history == null && reorder == null) return;
+            try (Snapshot snap = snapshot()) {
+                for (MaterializedView view : views) view.refresh(snap);
+                List<Record> all = history != null || reorder != null
+                        ? gather(shard -> shard.filter(r -> true, snap.version())) : null;
+                if (history != null) history.sync(System.currentTimeMillis(), all);
+                if (reorder != null) reorder.reset(all);
+            }
+        }
+    }
+
+    // Писатели разных шардов работают параллельно; операции над всей таблицей блокируют все шарды
+    private <T> T writeAll(Supplier<T> action) {
+        return writeAll(0, action);
+    }
+
+    private <T> T writeAll(int shard, Supplier<T> action) {
+        if (shard == shards.length) return action.get();
+        synchronized (shards[shard]) {
+            return writeAll(shard + 1, action);
+        }
+    }
+
     private boolean compare(double a, double b, String op) {
         return switch (op) {
             case ">"  -> a > b;
@@ -52,114 +405,401 @@ public class Database {
         };
     }
 
-    private void log(String text) {
+    void log(String text) {
         try (BufferedWriter bw = new BufferedWriter(new FileWriter(logFile, true))) {
             bw.write("[" + new Date() + "] " + text);
             bw.newLine();
         } catch (IOException ignored) {}
     }
 
-    private byte[] encrypt(byte[] data) throws GeneralSecurityException {
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-        return cipher.doFinal(data);
+    public void setCompression(Compression compression) {
+        this.compression = compression;
     }
 
-    private byte[] decrypt(byte[] data) throws GeneralSecurityException {
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.DECRYPT_MODE, secretKey);
-        return cipher.doFinal(data);
+    public Compression getCompression() {
+        return compression;
     }
 
     public void load() throws IOException {
-        File f = new File(filename);
-        if (!f.exists()) return;
+        if (pool != null) {
+            importFiles();
+            return;
+        }
 
-        autoBackup();
+        List<List<Record>> parts;
 
-        try {
-            byte[] encrypted = readAllBytes(f);
-            byte[] decrypted = decrypt(encrypted);
-            BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(decrypted)));
+        if (!hasShardFiles(filename)) {
+            File legacy = new File(filename);
+            if (!legacy.exists()) return;
 
-            table.clear();
-            nameIndex.clear();
-            supplierIndex.clear();
+            autoBackup();
+            parts = partition(readLegacy(legacy));
+        } else {
+            autoBackup();
 
-            String line;
-            while ((line = br.readLine()) != null) {
-                Record r = Record.fromString(line);
-                table.put(r.id, r);
-                indexRecord(r);
+            List<File> extra = extraFiles(filename);
+            if (extra.isEmpty() && attachPages()) {
+                log("LOAD database (lazy)");
+                notifyListeners();
+                return;
             }
-        } catch (Exception e) {
-            throw new IOException("Ошибка при расшифровке файла");
+
+            List<Record> all = new ArrayList<>();
+            for (File f : extra) all.addAll(readFile(f));
+            try {
+                all.addAll(Arrays.stream(shards)
+                        .parallel()
+                        .flatMap(shard -> readShard(shard).stream())
+                        .toList());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            parts = partition(all);
         }
 
+        replaceAll(parts);
+        // Записи уже в памяти: индексы советника из снимков строятся по таблице, без расшифровки
+        restoreIndexes(Arrays.stream(shards)
+                .map(shard -> IndexFile.read(IndexFile.of(shard.file), secretKey, new File(shard.file)))
+                .toList());
+
         log("LOAD database");
         notifyListeners();
     }
 
-    public void save() throws IOException {
-        StringBuilder sb = new StringBuilder();
+    private boolean hasShardFiles(String base) {
+        if (!extraFiles(base).isEmpty()) return true;
+        if (shards.length == 1) return new File(base).exists();
+        for (int i = 0; i < shards.length; i++)
+            if (new File(shardFile(base, i)).exists()) return true;
+        return false;
+    }
+
+    // Файлы шардов сверх текущего числа: база была сохранена при большем числе шардов.
+    // Их записи читаются раньше файлов шардов, поэтому если save() успел записать шарды,
+    // но не удалить лишние файлы, побеждают более новые записи шардов
+    private List<File> extraFiles(String base) {
+        List<File> res = new ArrayList<>();
+        for (int i = shards.length == 1 ? 0 : shards.length; ; i++) {
+            File f = new File(base + "." + i);
+            if (!f.exists()) return res;
+            res.add(f);
+        }
+    }
+
+    // Файлы прежнего формата переносятся в пустое дисковое хранилище один раз; в остальных
+    // случаях хранилище уже открыто в onDisk и загружать нечего
+    private void importFiles() throws IOException {
+        boolean found = hasShardFiles(filename) || new File(filename).exists();
+        if (found && getTotalRecords() == 0) {
+            replaceAll(readFiles(filename));
+            save();
+            log("IMPORT database to disk storage");
+        }
+
+        log("LOAD database");
+        notifyListeners();
+    }
+
+    private List<List<Record>> readFiles(String base) throws IOException {
+        if (!hasShardFiles(base)) return partition(readLegacy(new File(base)));
 
-        for (Record r : table.values()) {
-            sb.append(r.toString()).append("\n");
+        List<Record> all = new ArrayList<>();
+        for (File f : extraFiles(base)) all.addAll(readFile(f));
+        for (int i = 0; i < shards.length; i++) {
+            File f = new File(shardFile(base, i));
+            if (f.exists()) all.addAll(readFile(f));
         }
+        return partition(all);
+    }
+
+    private String layout() {
+        String layout = partitioner.describe();
+        return layout == null ? "" : layout;
+    }
 
-        byte[] raw = sb.toString().getBytes();
+    // Ленивая загрузка: читаются только каталоги страниц, сами страницы расшифровываются при первом
+    // обращении к ним. Возможна, только если база пуста и все файлы записаны при той же раскладке шардов
+    private boolean attachPages() throws IOException {
+        // Материализованные представления и история должны увидеть каждую запись, поэтому при них файлы читаются целиком
+        String layout = layout();
+        if (layout.isEmpty() || !views.isEmpty() || history != null || reorder != null) return false;
+
+        PageFile[] files = new PageFile[shards.length];
+        boolean attached = false;
         try {
-            byte[] encrypted = encrypt(raw);
-            FileOutputStream fos = new FileOutputStream(filename);
-            fos.write(encrypted);
-            fos.close();
+            for (int i = 0; i < shards.length; i++) {
+                File f = new File(shards[i].file);
+                if (!f.exists()) continue;
+                if (StorageFormat.version(f) != PageFile.VERSION) return false;
+
+                files[i] = PageFile.open(f, secretKey, suppliers);
+                if (!files[i].layout.equals(layout)) return false;
+            }
+
+            // Снимки индексов читаются параллельно; неподходящий снимок — индекс строится при загрузке страниц
+            List<Map<String, Map<String, int[]>>> indexes = Arrays.stream(shards)
+                    .parallel()
+                    .map(shard -> IndexFile.read(IndexFile.of(shard.file), secretKey, new File(shard.file)))
+                    .toList();
+
+            attached = writeAll(() -> {
+                for (Shard shard : shards)
+                    if (!shard.isEmpty()) return false;
+
+                // Шарды подключаются параллельно: восстановление индексов из снимка не трогает commit-лок
+                commit(v -> IntStream.range(0, shards.length).parallel().forEach(i -> {
+                    if (files[i] == null) return;
+                    try {
+                        shards[i].attach(files[i], v, indexes.get(i));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+                // Сброс после публикации версии: результаты, посчитанные по пустой базе, в кэш уже не попадут
+                cache.clear();
+                return true;
+            });
+            if (attached) restoreIndexes(indexes);
+            return attached;
+        } finally {
+            if (!attached)
+                for (PageFile pf : files)
+                    if (pf != null) pf.close();
+        }
+    }
+
+    private List<Record> readShard(Shard shard) {
+        File f = new File(shard.file);
+        if (!f.exists()) return List.of();
+
+        try {
+            return readFile(f);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private List<Record> readLegacy(File f) throws IOException {
+        return readFile(f);
+    }
+
+    private List<Record> readFile(File f) throws IOException {
+        if (StorageFormat.version(f) == PageFile.VERSION) {
+            try (PageFile pf = PageFile.open(f, secretKey, suppliers)) {
+                return pf.readAll(suppliers);
+            }
+        }
+
+        try (BufferedReader br = StorageFormat.openReader(f, secretKey)) {
+            return Shard.parse(br, suppliers);
         } catch (Exception e) {
-            throw new IOException("Ошибка при шифровании");
+            throw new IOException("Ошибка при расшифровке файла " + f, e);
+        }
+    }
+
+    // Записи раскладываются по шардам заново: файл мог быть записан в старом формате
+    // (вся таблица целиком) или при другом числе шардов
+    private List<List<Record>> partition(List<Record> records) {
+        List<List<Record>> parts = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) parts.add(new ArrayList<>());
+        for (Record r : records) parts.get(partitioner.shardOf(r.id)).add(r);
+        return parts;
+    }
+
+    // Содержимое всех шардов заменяется одним коммитом, открытые снимки продолжают видеть старые данные
+    private void replaceAll(List<List<Record>> parts) {
+        writeAll(() -> {
+            commit(v -> {
+                for (int i = 0; i < shards.length; i++) {
+                    Shard shard = shards[i];
+                    Set<Integer> keep = new HashSet<>();
+                    for (Record r : parts.get(i)) keep.add(r.id);
+
+                    for (int id : new ArrayList<>(shard.ids()))
+                        if (!keep.contains(id)) install(shard, id, null, v);
+                    for (Record r : parts.get(i))
+                        install(shard, r.id, r, v);
+                }
+            });
+            return null;
+        });
+    }
+
+    public void save() throws IOException {
+        if (pool != null) {
+            synchronized (commitLock) {
+                for (Shard shard : shards) {
+                    shard.persist();
+                    shard.store().flush();
+                }
+            }
+            if (history != null) history.flush();
+            if (reorder != null) reorder.save();
+            log("SAVE database");
+            return;
         }
 
+        // Параллельные save() писали бы в одни и те же временные файлы
+        synchronized (saveLock) {
+            try (Snapshot snap = snapshot()) {
+                Arrays.stream(shards).parallel().forEach(shard -> saveShard(shard, snap.version()));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            // Все записи уже в файлах текущих шардов
+            for (File f : extraFiles(filename)) {
+                IndexFile.of(f.getPath()).delete();
+                f.delete();
+            }
+        }
+        if (history != null) history.flush();
+        if (reorder != null) reorder.save();
+
         log("SAVE database");
     }
 
+    // Файл пишется во временный и подменяет старый только после успешной записи
+    // Рядом со страничным файлом пишется снимок индексов; он привязан к содержимому файла данных,
+    // поэтому при сбое между переименованиями старый снимок просто не подойдёт
+    private void saveShard(Shard shard, long at) {
+        File tmp = new File(shard.file + ".tmp");
+        File index = IndexFile.of(shard.file);
+        File indexTmp = new File(index + ".tmp");
+        Compression c = compression;
+        try {
+            if (c == Compression.LEGACY) {
+                try (Writer w = StorageFormat.openLegacyWriter(tmp, secretKey)) {
+                    shard.write(w, at);
+                }
+                Files.move(tmp.toPath(), Path.of(shard.file), StandardCopyOption.REPLACE_EXISTING);
+                index.delete();
+                return;
+            }
+
+            List<Record> records = shard.sortedById(at);
+            PageFile.write(tmp, secretKey, c, layout(), records);
+            IndexFile.write(indexTmp, secretKey, tmp, Shard.indexSections(records, shard.fieldIndexNames()));
+            Files.move(tmp.toPath(), Path.of(shard.file), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(indexTmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (Exception e) {
+            tmp.delete();
+            indexTmp.delete();
+            throw new UncheckedIOException(new IOException("Ошибка при шифровании", e));
+        }
+    }
+
+    // Копия файлов перед загрузкой вне пути запуска. Файлы данных всегда заменяются целиком
+    // (временный файл и переименование), поэтому жёсткая ссылка сохраняет прежнее содержимое
+    // и создаётся мгновенно. Где ссылки не поддерживаются, файлы открываются сразу, а копируются
+    // в фоне: открытый файл продолжает читаться, даже если save() успеет его заменить
     private void autoBackup() throws IOException {
-        File src = new File(filename);
-        File dst = new File(filename + ".bak");
+        CompletableFuture<Void> previous = backupTask;
+        if (previous != null) previous.join();
+
+        List<String> files = new ArrayList<>();
+        if (!hasShardFiles(filename)) {
+            files.add(filename);
+        } else {
+            for (Shard shard : shards)
+                if (new File(shard.file).exists()) files.add(shard.file);
+        }
 
-        try (InputStream in = new FileInputStream(src);
-             OutputStream out = new FileOutputStream(dst)) {
-            in.transferTo(out);
+        Map<String, InputStream> copies = new LinkedHashMap<>();
+        try {
+            for (String f : files) {
+                Path bak = Path.of(f + ".bak");
+                try {
+                    Files.deleteIfExists(bak);
+                    Files.createLink(bak, Path.of(f));
+                } catch (IOException | UnsupportedOperationException e) {
+                    copies.put(f + ".bak", new FileInputStream(f));
+                }
+            }
+        } catch (IOException e) {
+            for (InputStream in : copies.values()) in.close();
+            throw e;
+        }
+
+        if (copies.isEmpty()) {
+            log("AUTO-BACKUP created");
+            return;
         }
 
-        log("AUTO-BACKUP created");
+        backupTask = CompletableFuture.runAsync(() -> {
+            try {
+                for (Map.Entry<String, InputStream> e : copies.entrySet())
+                    try (InputStream in = e.getValue()) {
+                        copy(in, e.getKey());
+                    }
+                log("AUTO-BACKUP created");
+            } catch (IOException e) {
+                log("AUTO-BACKUP failed: " + e.getMessage());
+            }
+        });
     }
 
-    private void indexRecord(Record r) {
-        nameIndex.computeIfAbsent(r.name, k -> new HashSet<>()).add(r.id);
-        supplierIndex.computeIfAbsent(r.supplier, k -> new HashSet<>()).add(r.id);
+    // Файл назначения заменяется целиком, а не переписывается на месте: на него может
+    // указывать жёсткая ссылка автоматической копии
+    private void copy(String from, String to) throws IOException {
+        try (InputStream in = new FileInputStream(from)) {
+            copy(in, to);
+        }
     }
 
-    private void removeIndex(Record r) {
-        if (nameIndex.containsKey(r.name))
-            nameIndex.get(r.name).remove(r.id);
-        if (supplierIndex.containsKey(r.supplier))
-            supplierIndex.get(r.supplier).remove(r.id);
+    private static void copy(InputStream in, String to) throws IOException {
+        File tmp = new File(to + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            in.transferTo(out);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        Files.move(tmp.toPath(), Path.of(to), StandardCopyOption.REPLACE_EXISTING);
     }
 
     public boolean addRecord(Record r) {
         if (!validate(r)) return false;
-        if (table.containsKey(r.id)) return false;
 
-        table.put(r.id, r);
-        indexRecord(r);
+        Shard shard = shardFor(r.id);
+        synchronized (shard) {
+            if (shard.latest(r.id) != null) return false;
+            commit(v -> install(shard, r.id, r, v));
+        }
+
         log("ADD: " + r);
         notifyListeners();
         return true;
     }
 
+    // Массовое добавление одним коммитом: некорректные записи и занятые id пропускаются
+    public int addRecords(Collection<Record> records) {
+        int added = writeAll(() -> {
+            List<Record> accepted = new ArrayList<>();
+            Set<Integer> ids = new HashSet<>();
+            for (Record r : records) {
+                if (!validate(r) || shardFor(r.id).latest(r.id) != null || !ids.add(r.id)) continue;
+                accepted.add(r);
+            }
+
+            commit(v -> {
+                for (Record r : accepted) install(shardFor(r.id), r.id, r, v);
+            });
+            return accepted.size();
+        });
+
+        log("ADD BATCH: " + added + " of " + records.size());
+        if (added > 0) notifyListeners();
+        return added;
+    }
+
     public boolean deleteById(int id) {
-        Record r = table.remove(id);
-        if (r == null) return false;
+        Shard shard = shardFor(id);
+        synchronized (shard) {
+            if (shard.latest(id) == null) return false;
+            commit(v -> install(shard, id, null, v));
+        }
 
-        removeIndex(r);
         log("DELETE BY ID: " + id);
         notifyListeners();
         return true;
@@ -174,132 +814,480 @@ public class Database {
     }
 
     public void deleteAll() {
-        table.clear();
-        nameIndex.clear();
-        supplierIndex.clear();
+        writeAll(() -> {
+            commit(v -> {
+                for (Shard shard : shards)
+                    for (int id : new ArrayList<>(shard.ids()))
+                        install(shard, id, null, v);
+            });
+            return null;
+        });
         log("DELETE ALL");
         notifyListeners();
     }
 
     public boolean supply(int id, int amount) {
-        Record r = table.get(id);
-        if (r == null) return false;
-        r.quantity += amount;
+        Shard shard = shardFor(id);
+        synchronized (shard) {
+            Record r = shard.latest(id);
+            if (r == null) return false;
+            commit(v -> install(shard, id, r.withQuantity(r.quantity + amount), v));
+        }
         log("SUPPLY: id=" + id + " amount=" + amount);
         notifyListeners();
         return true;
     }
 
     public boolean sell(int id, int amount) {
-        Record r = table.get(id);
-        if (r == null || r.quantity < amount) return false;
-        r.quantity -= amount;
+        Shard shard = shardFor(id);
+        synchronized (shard) {
+            Record r = shard.latest(id);
+            if (r == null || r.quantity < amount) return false;
+            commit(v -> install(shard, id, r.withQuantity(r.quantity - amount), v));
+        }
         log("SELL: id=" + id + " amount=" + amount);
         notifyListeners();
         return true;
     }
 
+    public SalesQueue openSalesQueue(int capacity, int maxBatch, boolean saveEachBatch) {
+        return new SalesQueue(this, capacity, maxBatch, saveEachBatch);
+    }
+
+    // Пачка продаж и поставок одним коммитом. События применяются по порядку поверх результатов
+    // предыдущих событий пачки; отклонённые (нет записи, не хватает товара) запись не меняют.
+    // Каждая изменённая запись получает одну новую версию
+    boolean[] applySales(List<SalesQueue.Sale> sales) {
+        boolean[] accepted = new boolean[sales.size()];
+        int count = writeAll(() -> {
+            Map<Integer, Record> changed = new LinkedHashMap<>();
+            int n = 0;
+            for (int i = 0; i < sales.size(); i++) {
+                SalesQueue.Sale s = sales.get(i);
+                Record r = changed.containsKey(s.id) ? changed.get(s.id) : shardFor(s.id).latest(s.id);
+                if (r == null || (s.sell && r.quantity < s.amount)) continue;
+
+                changed.put(s.id, r.withQuantity(s.sell ? r.quantity - s.amount : r.quantity + s.amount));
+                accepted[i] = true;
+                n++;
+            }
+
+            if (!changed.isEmpty())
+                commit(v -> changed.forEach((id, r) -> install(shardFor(id), id, r, v)));
+            return n;
+        });
+
+        log("SALES BATCH: " + count + " of " + sales.size() + " accepted");
+        if (count > 0) notifyListeners();
+        return accepted;
+    }
+
     public List<Record> search(String field, String value) {
+        int lo = Integer.MIN_VALUE, hi = Integer.MAX_VALUE;
+        if (field.equals("id")) lo = hi = Integer.parseInt(value);
+
+        return cached("search:" + field + "=" + normalize(field, value), "SEARCH " + field + "=" + value,
+                field, lo, hi, matcher(field, value, "="), snap -> search(snap, field, value));
+    }
+
+    private List<Record> search(Snapshot snap, String field, String value) {
+        long at = snap.version();
         List<Record> res = new ArrayList<>();
 
         switch (field) {
             case "id" -> {
-                Record r = table.get(Integer.parseInt(value));
+                Record r = snap.get(Integer.parseInt(value));
                 if (r != null) res.add(r);
                 log("SEARCH id=" + value);
                 return res;
             }
             case "name" -> {
-                Set<Integer> ids = nameIndex.get(value);
-                if (ids != null)
-                    for (int id : ids) res.add(table.get(id));
+                res = gather(shard -> shard.byName(value, at));
                 log("SEARCH name=" + value);
                 return res;
             }
             case "supplier" -> {
-                Set<Integer> ids = supplierIndex.get(value);
-                if (ids != null)
-                    for (int id : ids) res.add(table.get(id));
+                res = gather(shard -> shard.bySupplier(value, at));
                 log("SEARCH supplier=" + value);
                 return res;
             }
         }
 
-        for (Record r : table.values()) {
-            boolean match = switch (field) {
-                case "price" -> r.price == Double.parseDouble(value);
-                case "quantity" -> r.quantity == Integer.parseInt(value);
-                default -> false;
-            };
-            if (match) res.add(r);
-        }
+        Predicate<Record> match = switch (field) {
+            case "price" -> {
+                double price = Double.parseDouble(value);
+                yield r -> r.price == price;
+            }
+            case "quantity" -> {
+                int quantity = Integer.parseInt(value);
+                yield r -> r.quantity == quantity;
+            }
+            default -> r -> false;
+        };
+        res = find(at, field, "=", value, match);
 
         log("SEARCH " + field + "=" + value);
         return res;
     }
 
     public List<Record> search(String field, String value, String op) {
-        List<Record> result = new ArrayList<>();
+        int lo = Integer.MIN_VALUE, hi = Integer.MAX_VALUE;
+        if (field.equals("id") && !op.equalsIgnoreCase("LIKE")) {
+            int id = Integer.parseInt(value);
+            lo = rangeLo(id, op);
+            hi = rangeHi(id, op);
+        }
+
+        String key = "where:" + field + " " + op.toUpperCase(Locale.ROOT) + " " + normalize(field, value);
+        return cached(key, null, field, lo, hi, matcher(field, value, op), snap -> search(snap, field, value, op));
+    }
+
+    // Результат из кэша или вычисленный по снимку. В кэш попадает только результат по последней
+    // версии: проверка и вставка идут под локом кэша, а коммит сбрасывает кэш под тем же локом
+    // уже после публикации версии, поэтому устаревший результат в кэше не останется
+    private List<Record> cached(String key, String hitLog, String column, int lo, int hi,
+                                Predicate<Record> match, Function<Snapshot, List<Record>> compute) {
+        List<Record> res = cache.get(key);
+        if (res != null) {
+            if (hitLog != null) log(hitLog + " (кэш)");
+            return res;
+        }
 
-        for (Record r : table.values()) {
+        try (Snapshot snap = snapshot()) {
+            res = Collections.unmodifiableList(compute.apply(snap));
+            synchronized (cache) {
+                if (snap.version() == clock.current()) cache.put(key, res, column, lo, hi, match);
+            }
+        }
+        return res;
+    }
 
-            boolean match = switch (field) {
-                case "price" -> compare(r.price, Double.parseDouble(value), op);
-                case "quantity" -> compare(r.quantity, Integer.parseInt(value), op);
-                case "id" -> compare(r.id, Integer.parseInt(value), op);
-                case "name" -> r.name.equals(value);
-                case "supplier" -> r.supplier.equals(value);
-                default -> false;
+    // Одно и то же число можно записать по-разному: 5, 05, 5.0
+    private static String normalize(String field, String value) {
+        try {
+            return switch (field) {
+                case "id", "quantity" -> String.valueOf(Integer.parseInt(value.trim()));
+                case "price"          -> String.valueOf(Double.parseDouble(value.trim()));
+                default               -> value;
             };
+        } catch (NumberFormatException e) {
+            return value;
+        }
+    }
+
+    private List<Record> search(Snapshot snap, String field, String value, String op) {
+        long at = snap.version();
+        Predicate<Record> match = matcher(field, value, op);
+
+        boolean like = op.equalsIgnoreCase("LIKE");
+        if (field.equals("id") && !like) {
+            int id = Integer.parseInt(value);
+            int lo = rangeLo(id, op), hi = rangeHi(id, op);
+            return gather(lo, hi, shard -> shard.stream(at, lo, hi).filter(match).toList());
+        }
 
-            if (match) result.add(r);
+        // Шаблон по name и supplier ищется текстовым индексом, как в query().where(..., "LIKE", ...)
+        if (like && (field.equals("name") || field.equals("supplier")))
+            return find(at, field, op, value, match, (shard, v) -> shard.like(field, value, v));
+        return find(at, field, op, value, match, null);
+    }
+
+    private List<Record> find(long at, String field, String op, String value, Predicate<Record> match) {
+        return find(at, field, op, value, match, null);
+    }
+
+    // Полный просмотр, индекс советника или source — кандидаты шарда из индекса запроса;
+    // запрос попадает в статистику советника индексов
+    private List<Record> find(long at, String field, String op, String value, Predicate<Record> match,
+                              BiFunction<Shard, Long, List<Record>> source) {
+        IndexAdvisor.Probe probe = advisor.probe(List.<String[]>of(new String[]{field, op, value}), true);
+        Predicate<Record> counted = probe.count(match);
+        List<Record> res = gather(shard -> probe.rows(shard, at, Integer.MIN_VALUE, Integer.MAX_VALUE, source)
+                .filter(counted)
+                .toList());
+        probe.finish();
+        return res;
+    }
+
+    Predicate<Record> matcher(String field, String value, String op) {
+        if (op.equalsIgnoreCase("LIKE"))
+            return r -> TextIndex.like(value, String.valueOf(Record.field(r, field)));
+
+        return switch (field) {
+            case "id" -> {
+                int id = Integer.parseInt(value);
+                yield r -> compare(r.id, id, op);
+            }
+            case "price" -> {
+                double price = Double.parseDouble(value);
+                yield r -> compare(r.price, price, op);
+            }
+            case "quantity" -> {
+                int quantity = Integer.parseInt(value);
+                yield r -> compare(r.quantity, quantity, op);
+            }
+            case "name"     -> r -> r.name.equals(value);
+            case "supplier" -> supplierMatcher(value);
+            default         -> r -> false;
+        };
+    }
+
+    // Сравнение по коду словаря вместо строки; записи вне базы ещё не закодированы
+    private Predicate<Record> supplierMatcher(String value) {
+        int code = suppliers.lookup(value);
+        return r -> r.supplierCode >= 0 && code >= 0
+                ? r.supplierCode == code
+                : r.supplier.equals(value);
+    }
+
+    static int rangeLo(int id, String op) {
+        return switch (op) {
+            case ">"       -> id == Integer.MAX_VALUE ? id : id + 1;
+            case ">=", "=" -> id;
+            default        -> Integer.MIN_VALUE;
+        };
+    }
+
+    static int rangeHi(int id, String op) {
+        return switch (op) {
+            case "<"       -> id == Integer.MIN_VALUE ? id : id - 1;
+            case "<=", "=" -> id;
+            default        -> Integer.MAX_VALUE;
+        };
+    }
+
+    public Query query() {
+        return new Query(this);
+    }
+
+    // Без ORDER BY записи идут потоком прямо из снимка; с ORDER BY ... LIMIT k каждый шард
+    // держит кучу из offset + k лучших записей (O(N log k)), затем результаты шардов сливаются
+    Stream<Record> execute(Query q) {
+        Snapshot snap = snapshot();
+        try {
+            long at = snap.version();
+            IndexAdvisor.Probe probe = advisor.probe(q.conditions, false);
+            Predicate<Record> match = probe.count(q.predicate());
+            Shard[] targets = Arrays.stream(shards)
+                    .filter(shard -> partitioner.overlaps(shard.index, q.idLo, q.idHi))
+                    .toArray(Shard[]::new);
+
+            Function<Shard, Stream<Record>> rows = shard -> probe.rows(shard, at, q.idLo, q.idHi, q.source);
+
+            Stream<Record> res;
+            if (q.order == null) {
+                res = Arrays.stream(targets)
+                        .flatMap(rows)
+                        .filter(match)
+                        .skip(q.offset)
+                        .limit(q.limit);
+            } else {
+                long k = q.limit > Integer.MAX_VALUE - q.offset ? Integer.MAX_VALUE : q.offset + q.limit;
+                List<List<Record>> parts = Arrays.stream(targets)
+                        .parallel()
+                        .map(shard -> k < Integer.MAX_VALUE
+                                ? Shard.top(rows.apply(shard), match, q.order, (int) k)
+                                : rows.apply(shard).filter(match).sorted(q.order).toList())
+                        .toList();
+
+                res = StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                                new MergeIterator(parts, q.order), Spliterator.ORDERED), false)
+                        .skip(q.offset)
+                        .limit(q.limit);
+            }
+            return res.onClose(() -> {
+                snap.close();
+                probe.finish();
+            });
+        } catch (RuntimeException e) {
+            snap.close();
+            throw e;
+        }
+    }
+
+    public GroupBy groupBy(String... fields) {
+        return new GroupBy(this, fields);
+    }
+
+    // Хэш-агрегация по снимку: строки каждого шарда делятся между задачами общего fork-join пула,
+    // частичные агрегаты шардов сливаются в одну таблицу групп
+    List<Object[]> execute(GroupBy g) {
+        Query q = g.filter;
+        Map<Object, double[]> groups;
+
+        IndexAdvisor.Probe probe = advisor.probe(q.conditions, true);
+        try (Snapshot snap = snapshot()) {
+            long at = snap.version();
+            Predicate<Record> match = probe.count(q.predicate());
+
+            List<HashAggregation> tasks = new ArrayList<>();
+            for (Shard shard : shards) {
+                if (!partitioner.overlaps(shard.index, q.idLo, q.idHi)) continue;
+                Stream<Record> rows = probe.rows(shard, at, q.idLo, q.idHi, q.source);
+                HashAggregation task = new HashAggregation(g, rows.filter(match).spliterator());
+                task.fork();
+                tasks.add(task);
+            }
+
+            groups = new HashMap<>();
+            for (HashAggregation task : tasks) task.merge(groups, task.join());
         }
+        probe.finish();
 
-        return result;
+        log("GROUP BY " + String.join(",", g.fields));
+        return g.finish(groups);
     }
 
+    // Результат зависит от всех записей, поэтому любое изменение сбрасывает его из кэша
     public List<Record> getSorted(String field) {
-        List<Record> list = getAll();
-
-        list.sort((a, b) -> switch (field) {
-            case "id" -> Integer.compare(a.id, b.id);
-            case "name" -> a.name.compareTo(b.name);
-            case "supplier" -> a.supplier.compareTo(b.supplier);
-            case "price" -> Double.compare(a.price, b.price);
-            case "quantity" -> Integer.compare(a.quantity, b.quantity);
-            default -> 0;
+        Comparator<Record> cmp = Record.comparator(field);
+
+        return cached("sort:" + field, "SORT by " + field, null, Integer.MIN_VALUE, Integer.MAX_VALUE, r -> true, snap -> {
+            List<List<Record>> parts = Arrays.stream(shards)
+                    .parallel()
+                    .map(shard -> shard.sorted(r -> true, cmp, snap.version()))
+                    .toList();
+
+            log("SORT by " + field);
+            return merge(parts, cmp, Integer.MAX_VALUE);
         });
+    }
 
-        log("SORT by " + field);
-        return list;
+    // Поиск по шаблону LIKE ('abc%', '%abc%') через текстовый индекс name/supplier
+    public List<Record> searchLike(String field, String pattern) {
+        List<Record> res = query().where(field, "LIKE", pattern).list();
+        log("SEARCH " + field + " LIKE " + pattern);
+        return res;
     }
 
-    public int update(String field, String newValue, String whereField, String whereValue) {
-        int count = 0;
+    // Подсказки для автодополнения: различные значения поля с заданным префиксом
+    public List<String> suggest(String field, String prefix, int limit) {
+        return Arrays.stream(shards)
+                .parallel()
+                .flatMap(shard -> shard.complete(field, prefix, limit).stream())
+                .distinct()
+                .sorted(String.CASE_INSENSITIVE_ORDER)
+                .limit(limit)
+                .toList();
+    }
 
-        for (Record r : table.values()) {
+    public List<Record> getTop(String field, int k, boolean descending) {
+        return query().orderBy(field, descending).limit(k).list();
+    }
 
-            boolean match = switch (whereField) {
-                case "id"       -> r.id == Integer.parseInt(whereValue);
-                case "price"    -> r.price == Double.parseDouble(whereValue);
-                case "quantity" -> r.quantity == Integer.parseInt(whereValue);
-                case "name"     -> r.name.equals(whereValue);
-                case "supplier" -> r.supplier.equals(whereValue);
-                default         -> false;
-            };
+    // k-way слияние уже отсортированных результатов шардов
+    private List<Record> merge(List<List<Record>> parts, Comparator<Record> cmp, int limit) {
+        int total = parts.stream().mapToInt(List::size).sum();
+        List<Record> res = new ArrayList<>(Math.min(total, limit));
+        for (MergeIterator it = new MergeIterator(parts, cmp); it.hasNext() && res.size() < limit; )
+            res.add(it.next());
+        return res;
+    }
 
-            if (!match) continue;
+    private static class MergeIterator implements Iterator<Record> {
+        private final PriorityQueue<Cursor> heap;
 
-            switch (field) {
-                case "id"       -> r.id = Integer.parseInt(newValue);
-                case "price"    -> r.price = Double.parseDouble(newValue);
-                case "quantity" -> r.quantity = Integer.parseInt(newValue);
-                case "name"     -> r.name = newValue;
-                case "supplier" -> r.supplier = newValue;
-            }
+        MergeIterator(List<List<Record>> parts, Comparator<Record> cmp) {
+            heap = new PriorityQueue<>(Math.max(1, parts.size()), (a, b) -> cmp.compare(a.head(), b.head()));
+            for (List<Record> part : parts)
+                if (!part.isEmpty()) heap.add(new Cursor(part));
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heap.isEmpty();
+        }
+
+        @Override
+        public Record next() {
+            Cursor c = heap.poll();
+            if (c == null) throw new NoSuchElementException();
+            Record r = c.head();
+            if (c.advance()) heap.add(c);
+            return r;
+        }
+    }
+
+    private static class Cursor {
+        private final List<Record> list;
+        private int pos;
+
+        Cursor(List<Record> list) {
+            this.list = list;
+        }
+
+        Record head() {
+            return list.get(pos);
+        }
 
-            count++;
+        boolean advance() {
+            return ++pos < list.size();
         }
+    }
+
+    private List<Record> gather(Function<Shard, List<Record>> query) {
+        return gather(Integer.MIN_VALUE, Integer.MAX_VALUE, query);
+    }
+
+    // Scatter-gather: запрос параллельно выполняется на шардах, которые могут содержать id из [lo, hi]
+    private List<Record> gather(int lo, int hi, Function<Shard, List<Record>> query) {
+        List<List<Record>> parts = Arrays.stream(shards)
+                .parallel()
+                .filter(shard -> partitioner.overlaps(shard.index, lo, hi))
+                .map(query)
+                .toList();
+
+        List<Record> res = new ArrayList<>(parts.stream().mapToInt(List::size).sum());
+        for (List<Record> part : parts) res.addAll(part);
+        return res;
+    }
+
+    public int update(String field, String newValue, String whereField, String whereValue) {
+        Predicate<Record> match = switch (whereField) {
+            case "id" -> {
+                int id = Integer.parseInt(whereValue);
+                yield r -> r.id == id;
+            }
+            case "price" -> {
+                double price = Double.parseDouble(whereValue);
+                yield r -> r.price == price;
+            }
+            case "quantity" -> {
+                int quantity = Integer.parseInt(whereValue);
+                yield r -> r.quantity == quantity;
+            }
+            case "name"     -> r -> r.name.equals(whereValue);
+            case "supplier" -> supplierMatcher(whereValue);
+            default         -> r -> false;
+        };
+
+        int count = writeAll(() -> {
+            List<Record> found;
+            try (Snapshot snap = snapshot()) {
+                found = find(snap.version(), whereField, "=", whereValue, match);
+            }
+
+            // Новые версии записей; при смене id запись переезжает, занятые id пропускаются
+            List<Record> changed = new ArrayList<>();
+            Set<Integer> taken = new HashSet<>();
+            for (Record r : found) {
+                Record n = r.with(field, newValue);
+                if (!fits(n)) continue;
+                if (n.id != r.id && (shardFor(n.id).latest(n.id) != null || !taken.add(n.id))) continue;
+                changed.add(r);
+                changed.add(n);
+            }
+
+            commit(v -> {
+                for (int i = 0; i < changed.size(); i += 2) {
+                    Record old = changed.get(i);
+                    Record n = changed.get(i + 1);
+                    if (n.id != old.id) install(shardFor(old.id), old.id, null, v);
+                    install(shardFor(n.id), n.id, n, v);
+                }
+            });
+            return changed.size() / 2;
+        });
 
         log("UPDATE SET " + field + "=" + newValue +
                 " WHERE " + whereField + "=" + whereValue +
@@ -312,55 +1300,209 @@ public class Database {
         return count;
     }
 
+    private boolean fits(Record r) {
+        return pool == null || TreeStore.fits(r);
+    }
+
     private boolean validate(Record r) {
-        return r.id > 0 &&
+        return fits(r) &&
+                r.id > 0 &&
                 r.price >= 0 &&
                 r.quantity >= 0 &&
                 !r.name.isBlank() &&
                 !r.supplier.isBlank();
     }
 
+    // Копия всей таблицы; для чтения без копирования используйте snapshot()
     public List<Record> getAll() {
-        return new ArrayList<>(table.values());
-    }
-
-    private byte[] readAllBytes(File f) throws IOException {
-        FileInputStream fis = new FileInputStream(f);
-        byte[] data = fis.readAllBytes();
-        fis.close();
-        return data;
+        try (Snapshot snap = snapshot()) {
+            return gather(shard -> shard.filter(r -> true, snap.version()));
+        }
     }
 
     public void backup(String backupFile) throws IOException {
-        try (InputStream in = new FileInputStream(filename);
-             OutputStream out = new FileOutputStream(backupFile)) {
-            in.transferTo(out);
+        if (pool != null) {
+            backupStores(backupFile);
+            log("BACKUP created to " + backupFile);
+            return;
+        }
+
+        if (!hasShardFiles(filename)) {
+            copy(filename, backupFile);
+        } else {
+            for (int i = 0; i < shards.length; i++) {
+                String src = shardFile(filename, i);
+                if (new File(src).exists())
+                    copy(src, shardFile(backupFile, i));
+                else
+                    new File(shardFile(backupFile, i)).delete();
+            }
         }
         log("BACKUP created to " + backupFile);
     }
 
+    // Копия файлов хранилища делается при остановленных писателях и сборке мусора
+    private void backupStores(String backupFile) throws IOException {
+        try {
+            writeAll(() -> {
+                synchronized (commitLock) {
+                    try {
+                        for (int i = 0; i < shards.length; i++) {
+                            shards[i].persist();
+                            shards[i].store().flush();
+                            copy(shards[i].file, treeFile(shardFile(backupFile, i)));
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return null;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Файлы хранилища подменяются целиком; снимки, открытые до restore, читают уже новые данные
+    private void restoreStores(String backupFile) throws IOException {
+        try {
+            writeAll(() -> {
+                synchronized (commitLock) {
+                    try {
+                        for (int i = 0; i < shards.length; i++) {
+                            Shard shard = shards[i];
+                            shard.store().close();
+                            String src = treeFile(shardFile(backupFile, i));
+                            if (new File(src).exists()) copy(src, shard.file);
+                            else new File(shard.file).delete();
+                            openStore(shard, new File(shard.file));
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    // Новая версия не даёт попасть в кэш результатам, посчитанным по старым файлам
+                    clock.publish(clock.current() + 1);
+                    cache.clear();
+                    refreshViews();
+                }
+                return null;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
     public void restore(String backupFile) throws IOException {
-        try (InputStream in = new FileInputStream(backupFile);
-             OutputStream out = new FileOutputStream(filename)) {
-            in.transferTo(out);
+        if (pool != null) {
+            if (new File(treeFile(shardFile(backupFile, 0))).exists()) {
+                restoreStores(backupFile);
+            } else {
+                // Резервная копия прежнего формата загружается в хранилище
+                replaceAll(readFiles(backupFile));
+                save();
+            }
+            log("RESTORE from backup: " + backupFile);
+            notifyListeners();
+            return;
+        }
+
+        // Лениво подключённые файлы сейчас будут перезаписаны, поэтому их страницы дочитываются заранее
+        for (Shard shard : shards) shard.ensureAll();
+
+        if (hasShardFiles(backupFile)) {
+            for (int i = 0; i < shards.length; i++) {
+                String src = shardFile(backupFile, i);
+                if (new File(src).exists())
+                    copy(src, shardFile(filename, i));
+                else
+                    new File(shardFile(filename, i)).delete();
+            }
+            log("RESTORE from backup: " + backupFile);
+            load();
+            return;
         }
+
+        // Резервная копия в старом однофайловом формате раскладывается по шардам
+        replaceAll(partition(readLegacy(new File(backupFile))));
+        save();
         log("RESTORE from backup: " + backupFile);
-        load();
+        notifyListeners();
+    }
+
+    public int getSupplierDictionarySize() {
+        return suppliers.size();
+    }
+
+    // Страницы файлов шардов, ещё не расшифрованные после ленивой загрузки
+    public int getUnloadedPages() {
+        return Arrays.stream(shards).mapToInt(Shard::unloadedPages).sum();
+    }
+
+    public int getShardCount() {
+        return shards.length;
     }
 
     public int getTotalRecords() {
-        return table.size();
+        return Arrays.stream(shards).mapToInt(Shard::size).sum();
     }
 
     public int getTotalQuantity() {
-        return table.values().stream().mapToInt(r -> r.quantity).sum();
+        try (Snapshot snap = snapshot()) {
+            return snap.parallelStream().mapToInt(r -> r.quantity).sum();
+        }
     }
 
     public double getTotalValue() {
-        return table.values().stream().mapToDouble(r -> r.quantity * r.price).sum();
+        try (Snapshot snap = snapshot()) {
+            return snap.parallelStream().mapToDouble(r -> r.quantity * r.price).sum();
+        }
+    }
+
+    // Доля обращений к страницам дискового хранилища, обслуженных из буферного пула
+    public double getCacheHitRatio() {
+        return pool == null ? 1.0 : pool.hitRatio();
+    }
+
+    public long getCacheMisses() {
+        return pool == null ? 0 : pool.misses();
+    }
+
+    public long getQueryCacheHits() {
+        return cache.hits();
+    }
+
+    public long getQueryCacheMisses() {
+        return cache.misses();
+    }
+
+    // Результаты, сброшенные из кэша изменениями данных
+    public long getQueryCacheInvalidations() {
+        return cache.invalidations();
+    }
+
+    public long getQueryCacheEvictions() {
+        return cache.evictions();
+    }
+
+    public int getQueryCacheSize() {
+        return cache.size();
+    }
+
+    public long getStorageSize() {
+        long total = 0;
+        for (Shard shard : shards) total += new File(shard.file).length();
+        return total;
     }
 
     public long getLowStockCount(int threshold) {
-        return table.values().stream().filter(r -> r.quantity < threshold).count();
+        ReorderAlerts alerts = reorder;
+        if (alerts != null && alerts.isUniform(threshold)) return alerts.count();
+        try (Snapshot snap = snapshot()) {
+            return snap.parallelStream().filter(r -> r.quantity < threshold).count();
+        }
+    }
+
+    public int getActiveSnapshots() {
+        return clock.activeSnapshots();
     }
-}
\ No newline at end of file
+}
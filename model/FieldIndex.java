@@ -0,0 +1,90 @@
+package model;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// Упорядоченный индекс шарда по числовому полю (quantity, price), который создаёт советник
+// индексов. Как и индексы по name и supplier, хранит ключи всех версий записи, пока они видны
+// снимкам, поэтому найденные записи проверяются условием на версии снимка.
+// Изменения под локом индекса, чтение без блокировок: пока индекс строится (ready == false),
+// запросы идут полным просмотром
+class FieldIndex {
+
+    final String field;
+    private final ConcurrentSkipListMap<Double, Set<Integer>> entries = new ConcurrentSkipListMap<>();
+    volatile boolean ready;
+
+    FieldIndex(String field) {
+        this.field = field;
+    }
+
+    static boolean supports(String field) {
+        return field.equals("quantity") || field.equals("price");
+    }
+
+    static boolean supportsOp(String op) {
+        return switch (op) {
+            case "=", "<", "<=", ">", ">=" -> true;
+            default -> false;
+        };
+    }
+
+    // -0.0 и 0.0 равны в условии, но различаются как ключи Double
+    double key(Record r) {
+        return (field.equals("quantity") ? r.quantity : r.price) + 0.0;
+    }
+
+    synchronized void add(Record r) {
+        entries.computeIfAbsent(key(r), k -> ConcurrentHashMap.newKeySet()).add(r.id);
+    }
+
+    // Ключ из снимка индексов (IndexFile)
+    synchronized void restore(double key, int[] ids) {
+        Set<Integer> set = entries.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet(ids.length));
+        for (int id : ids) set.add(id);
+    }
+
+    synchronized void remove(Record r) {
+        double key = key(r);
+        Set<Integer> ids = entries.get(key);
+        if (ids == null) return;
+        ids.remove(r.id);
+        if (ids.isEmpty()) entries.remove(key);
+    }
+
+    // id записей, у которых хотя бы одна версия подходит под условие; null — оператор не поддерживается
+    Set<Integer> find(String op, double value) {
+        value += 0.0;
+        NavigableMap<Double, Set<Integer>> range = switch (op) {
+            case "="  -> entries.subMap(value, true, value, true);
+            case "<"  -> entries.headMap(value, false);
+            case "<=" -> entries.headMap(value, true);
+            case ">"  -> entries.tailMap(value, false);
+            case ">=" -> entries.tailMap(value, true);
+            default   -> null;
+        };
+        if (range == null) return null;
+
+        Set<Integer> res = new HashSet<>();
+        for (Set<Integer> ids : range.values()) res.addAll(ids);
+        return res;
+    }
+
+    // Число различных значений поля
+    int keys() {
+        return entries.size();
+    }
+
+    // Раздел снимка индексов: ключ записывается Double.toString и читается без потерь
+    static String section(String field) {
+        return "field:" + field;
+    }
+
+    // Поле по имени раздела снимка; null — раздел не индекса советника
+    static String fieldOf(String section) {
+        if (!section.startsWith("field:")) return null;
+        String field = section.substring("field:".length());
+        return supports(field) ? field : null;
+    }
+}
@@ -0,0 +1,305 @@
+package model;
+
+import java.util.*;
+import java.util.function.ToDoubleFunction;
+
+// Запрос с группировкой: db.groupBy("supplier").aggregate("SUM(quantity*price)").aggregate("COUNT(*)")
+//         .having("COUNT(*)", ">", 10).orderBy("SUM(quantity*price)", true).limit(5).list()
+// Строка результата — значения полей группировки, затем агрегатов (см. columns()).
+// Агрегаты: COUNT(*), SUM, AVG, MIN, MAX от поля или произведения числовых полей
+public class GroupBy {
+
+    enum Kind { COUNT, SUM, AVG, MIN, MAX }
+
+    static final class Aggregate {
+        final Kind kind;
+        final String label;
+        final ToDoubleFunction<Record> expression;
+        final boolean integral;
+        final int slot;
+
+        Aggregate(Kind kind, String label, ToDoubleFunction<Record> expression, boolean integral, int slot) {
+            this.kind = kind;
+            this.label = label;
+            this.expression = expression;
+            this.integral = integral;
+            this.slot = slot;
+        }
+    }
+
+    private static final class Having {
+        final int column;
+        final String op;
+        final double value;
+
+        Having(int column, String op, double value) {
+            this.column = column;
+            this.op = op;
+            this.value = value;
+        }
+    }
+
+    private final Database db;
+    final Query filter;
+    final String[] fields;
+    final List<Aggregate> aggregates = new ArrayList<>();
+    // Число ячеек состояния группы: у SUM две (сумма и поправка), у AVG три (ещё количество)
+    int slots;
+
+    private final List<Having> having = new ArrayList<>();
+    private Comparator<Object[]> order;
+    private long limit = Long.MAX_VALUE;
+
+    GroupBy(Database db, String... fields) {
+        for (String f : fields)
+            if (!isField(f)) throw new IllegalArgumentException("Неизвестное поле: " + f);
+        this.db = db;
+        this.filter = db.query();
+        this.fields = fields.clone();
+    }
+
+    public GroupBy where(String field, String op, String value) {
+        filter.where(field, op, value);
+        return this;
+    }
+
+    // Выражение вида SUM(quantity*price); регистр функции и пробелы не важны
+    public GroupBy aggregate(String expression) {
+        String label = label(expression);
+        int open = label.indexOf('(');
+        if (open < 0 || !label.endsWith(")"))
+            throw new IllegalArgumentException("Неверный агрегат: " + expression);
+
+        Kind kind;
+        try {
+            kind = Kind.valueOf(label.substring(0, open));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Неизвестная функция: " + label.substring(0, open));
+        }
+
+        String arg = label.substring(open + 1, label.length() - 1);
+        if (arg.equals("*")) {
+            if (kind != Kind.COUNT) throw new IllegalArgumentException("* допустима только в COUNT(*)");
+            aggregates.add(new Aggregate(kind, label, r -> 1, true, slots++));
+            return this;
+        }
+
+        ToDoubleFunction<Record> expr = null;
+        boolean integral = true;
+        for (String f : arg.split("\\*")) {
+            ToDoubleFunction<Record> factor = switch (f) {
+                case "id"       -> r -> r.id;
+                case "quantity" -> r -> r.quantity;
+                case "price"    -> r -> r.price;
+                default -> throw new IllegalArgumentException("Нечисловое поле в агрегате: " + f);
+            };
+            integral &= !f.equals("price");
+
+            ToDoubleFunction<Record> left = expr;
+            expr = left == null ? factor : r -> left.applyAsDouble(r) * factor.applyAsDouble(r);
+        }
+
+        aggregates.add(new Aggregate(kind, label, expr, integral && kind != Kind.AVG, slots));
+        slots += switch (kind) {
+            case SUM -> 2;
+            case AVG -> 3;
+            default -> 1;
+        };
+        return this;
+    }
+
+    public GroupBy having(String column, String op, double value) {
+        int i = column(column);
+        if (i < fields.length) throw new IllegalArgumentException("HAVING допускает только агрегаты: " + column);
+        having.add(new Having(i, op, value));
+        return this;
+    }
+
+    public GroupBy orderBy(String column, boolean descending) {
+        int i = column(column);
+        Comparator<Object[]> cmp = (a, b) -> compareValues(a[i], b[i]);
+        order = descending ? cmp.reversed() : cmp;
+        return this;
+    }
+
+    public GroupBy limit(long limit) {
+        if (limit < 0) throw new IllegalArgumentException("LIMIT < 0");
+        this.limit = limit;
+        return this;
+    }
+
+    public List<String> columns() {
+        List<String> res = new ArrayList<>(Arrays.asList(fields));
+        for (Aggregate a : aggregates) res.add(a.label);
+        return res;
+    }
+
+    public List<Object[]> list() {
+        return db.execute(this);
+    }
+
+    // Приведение выражения к виду, в котором оно указывается в HAVING и ORDER BY
+    public static String label(String expression) {
+        String s = expression.replaceAll("\\s+", "");
+        int open = s.indexOf('(');
+        if (open < 0) return s;
+        return s.substring(0, open).toUpperCase(Locale.ROOT) + s.substring(open);
+    }
+
+    private int column(String column) {
+        int i = columns().indexOf(label(column));
+        if (i < 0) throw new IllegalArgumentException("Нет такого столбца в результате: " + column);
+        return i;
+    }
+
+    static boolean isField(String f) {
+        return switch (f) {
+            case "id", "name", "quantity", "price", "supplier" -> true;
+            default -> false;
+        };
+    }
+
+    // Ключ группы: значение поля или список значений при нескольких полях
+    Object key(Record r) {
+        if (fields.length == 1) return Record.field(r, fields[0]);
+        Object[] key = new Object[fields.length];
+        for (int i = 0; i < fields.length; i++) key[i] = Record.field(r, fields[i]);
+        return Arrays.asList(key);
+    }
+
+    double[] newState() {
+        double[] state = new double[slots];
+        for (Aggregate a : aggregates) {
+            if (a.kind == Kind.MIN) state[a.slot] = Double.POSITIVE_INFINITY;
+            if (a.kind == Kind.MAX) state[a.slot] = Double.NEGATIVE_INFINITY;
+        }
+        return state;
+    }
+
+    // Сумма с поправкой (Ноймайер): в state[i + 1] копятся младшие разряды, потерянные при округлении
+    // state[i]. Представление только прибавляет и вычитает, и без поправки ошибка росла бы с каждым изменением
+    private static void add(double[] state, int i, double v) {
+        double sum = state[i], t = sum + v;
+        state[i + 1] += Math.abs(sum) >= Math.abs(v) ? (sum - t) + v : (v - t) + sum;
+        state[i] = t;
+    }
+
+    private static double sum(double[] state, int i) {
+        return state[i] + state[i + 1];
+    }
+
+    void accumulate(double[] state, Record r) {
+        for (Aggregate a : aggregates) {
+            double v = a.expression.applyAsDouble(r);
+            switch (a.kind) {
+                case COUNT -> state[a.slot]++;
+                case SUM -> add(state, a.slot, v);
+                case AVG -> {
+                    add(state, a.slot, v);
+                    state[a.slot + 2]++;
+                }
+                case MIN -> state[a.slot] = Math.min(state[a.slot], v);
+                case MAX -> state[a.slot] = Math.max(state[a.slot], v);
+            }
+        }
+    }
+
+    // Обратная операция к accumulate для COUNT, SUM и AVG; MIN и MAX так не откатить,
+    // их материализованное представление пересчитывает по своим мультимножествам значений
+    void retract(double[] state, Record r) {
+        for (Aggregate a : aggregates) {
+            double v = a.expression.applyAsDouble(r);
+            switch (a.kind) {
+                case COUNT -> state[a.slot]--;
+                case SUM -> add(state, a.slot, -v);
+                case AVG -> {
+                    add(state, a.slot, -v);
+                    state[a.slot + 2]--;
+                }
+                case MIN, MAX -> { }
+            }
+        }
+    }
+
+    void merge(double[] into, double[] other) {
+        for (Aggregate a : aggregates) {
+            switch (a.kind) {
+                case COUNT -> into[a.slot] += other[a.slot];
+                case SUM -> {
+                    add(into, a.slot, other[a.slot]);
+                    into[a.slot + 1] += other[a.slot + 1];
+                }
+                case AVG -> {
+                    add(into, a.slot, other[a.slot]);
+                    into[a.slot + 1] += other[a.slot + 1];
+                    into[a.slot + 2] += other[a.slot + 2];
+                }
+                case MIN -> into[a.slot] = Math.min(into[a.slot], other[a.slot]);
+                case MAX -> into[a.slot] = Math.max(into[a.slot], other[a.slot]);
+            }
+        }
+    }
+
+    // HAVING, ORDER BY и LIMIT применяются к уже слитым группам
+    List<Object[]> finish(Map<Object, double[]> groups) {
+        // Без группировки результат — одна строка, даже если строк не нашлось
+        if (fields.length == 0 && groups.isEmpty()) groups = Map.of(List.of(), newState());
+
+        List<Object[]> rows = new ArrayList<>(groups.size());
+        for (Map.Entry<Object, double[]> e : groups.entrySet()) {
+            Object[] row = row(e.getKey(), e.getValue());
+            if (accepts(row)) rows.add(row);
+        }
+
+        if (order != null) rows.sort(order);
+        return rows.size() > limit ? new ArrayList<>(rows.subList(0, (int) limit)) : rows;
+    }
+
+    Object[] row(Object key, double[] state) {
+        Object[] row = new Object[fields.length + aggregates.size()];
+        if (fields.length == 1) row[0] = key;
+        else if (fields.length > 1) ((List<?>) key).toArray(row);
+
+        for (int i = 0; i < aggregates.size(); i++) {
+            Aggregate a = aggregates.get(i);
+            // Как в SQL, MIN, MAX и AVG над пустым набором — null, а не бесконечность или NaN
+            boolean empty = switch (a.kind) {
+                case AVG -> state[a.slot + 2] == 0;
+                case MIN, MAX -> Double.isInfinite(state[a.slot]);
+                default -> false;
+            };
+            if (empty) continue;
+
+            double v = switch (a.kind) {
+                case SUM -> sum(state, a.slot);
+                case AVG -> sum(state, a.slot) / state[a.slot + 2];
+                default -> state[a.slot];
+            };
+            row[fields.length + i] = a.integral ? (Object) (long) v : (Object) v;
+        }
+        return row;
+    }
+
+    boolean accepts(Object[] row) {
+        for (Having h : having) {
+            if (row[h.column] == null) return false;
+            double v = ((Number) row[h.column]).doubleValue();
+            boolean ok = switch (h.op) {
+                case ">"  -> v > h.value;
+                case "<"  -> v < h.value;
+                case ">=" -> v >= h.value;
+                case "<=" -> v <= h.value;
+                default   -> v == h.value;
+            };
+            if (!ok) return false;
+        }
+        return true;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static int compareValues(Object a, Object b) {
+        if (a == null || b == null) return a == null ? (b == null ? 0 : -1) : 1;
+        if (a instanceof Number x && b instanceof Number y) return Double.compare(x.doubleValue(), y.doubleValue());
+        return ((Comparable) a).compareTo(b);
+    }
+}
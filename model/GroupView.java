@@ -0,0 +1,118 @@
+package model;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+// Представление над GroupBy: состояние каждой группы обновляется на каждое изменение записи.
+// COUNT, SUM и AVG откатываются вычитанием, для MIN и MAX группа хранит мультимножество значений.
+// Строка группы, не прошедшая HAVING, в результат не входит; ORDER BY и LIMIT применяются в rows()
+final class GroupView extends MaterializedView {
+
+    private static final class Group {
+        final double[] state;
+        // Для MIN и MAX: значение -> число записей с ним; null для остальных агрегатов
+        final List<TreeMap<Double, Integer>> values = new ArrayList<>();
+        long rows;
+
+        Group(GroupBy spec) {
+            state = spec.newState();
+            for (GroupBy.Aggregate a : spec.aggregates)
+                values.add(a.kind == GroupBy.Kind.MIN || a.kind == GroupBy.Kind.MAX ? new TreeMap<>() : null);
+        }
+    }
+
+    private final GroupBy spec;
+    private final Predicate<Record> match;
+    private final Map<Object, Group> groups = new HashMap<>();
+
+    GroupView(Database db, GroupBy spec) {
+        super(db);
+        this.spec = spec;
+        this.match = spec.filter.predicate();
+    }
+
+    @Override
+    public List<String> columns() {
+        return spec.columns();
+    }
+
+    @Override
+    public synchronized List<Object[]> rows() {
+        Map<Object, double[]> states = new HashMap<>(groups.size() * 2);
+        for (Map.Entry<Object, Group> e : groups.entrySet()) states.put(e.getKey(), e.getValue().state.clone());
+        return spec.finish(states);
+    }
+
+    @Override
+    void reset(Snapshot snap, List<Object[]> removed, List<Object[]> added) {
+        for (Map.Entry<Object, Group> e : groups.entrySet()) {
+            Object[] row = row(e.getKey(), e.getValue());
+            if (row != null) removed.add(row);
+        }
+        groups.clear();
+
+        snap.stream().filter(match).forEach(r -> add(spec.key(r), r));
+
+        for (Map.Entry<Object, Group> e : groups.entrySet()) {
+            Object[] row = row(e.getKey(), e.getValue());
+            if (row != null) added.add(row);
+        }
+    }
+
+    @Override
+    void apply(Record old, Record r, List<Object[]> removed, List<Object[]> added) {
+        Object from = old != null && match.test(old) ? spec.key(old) : null;
+        Object to = r != null && match.test(r) ? spec.key(r) : null;
+        if (from == null && to == null) return;
+
+        // Запись, оставшаяся в своей группе, меняет одну строку результата, переехавшая — две
+        Object[] fromBefore = from == null ? null : row(from, groups.get(from));
+        Object[] toBefore = to == null || to.equals(from) ? null : row(to, groups.get(to));
+
+        if (from != null) remove(from, old);
+        if (to != null) add(to, r);
+
+        if (from != null) diff(fromBefore, row(from, groups.get(from)), removed, added);
+        if (to != null && !to.equals(from)) diff(toBefore, row(to, groups.get(to)), removed, added);
+    }
+
+    private static void diff(Object[] before, Object[] after, List<Object[]> removed, List<Object[]> added) {
+        if (before != null && after != null && Arrays.equals(before, after)) return;
+        if (before != null) removed.add(before);
+        if (after != null) added.add(after);
+    }
+
+    private Object[] row(Object key, Group g) {
+        if (g == null) return null;
+        Object[] row = spec.row(key, g.state);
+        return spec.accepts(row) ? row : null;
+    }
+
+    private void add(Object key, Record r) {
+        Group g = groups.computeIfAbsent(key, k -> new Group(spec));
+        g.rows++;
+        spec.accumulate(g.state, r);
+        for (int i = 0; i < g.values.size(); i++) {
+            TreeMap<Double, Integer> values = g.values.get(i);
+            if (values != null) values.merge(spec.aggregates.get(i).expression.applyAsDouble(r), 1, Integer::sum);
+        }
+    }
+
+    private void remove(Object key, Record r) {
+        Group g = groups.get(key);
+        if (--g.rows == 0) {
+            groups.remove(key);
+            return;
+        }
+
+        spec.retract(g.state, r);
+        for (int i = 0; i < g.values.size(); i++) {
+            TreeMap<Double, Integer> values = g.values.get(i);
+            if (values == null) continue;
+
+            GroupBy.Aggregate a = spec.aggregates.get(i);
+            values.computeIfPresent(a.expression.applyAsDouble(r), (v, n) -> n == 1 ? null : n - 1);
+            g.state[a.slot] = a.kind == GroupBy.Kind.MIN ? values.firstKey() : values.lastKey();
+        }
+    }
+}
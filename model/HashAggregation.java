@@ -0,0 +1,50 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.RecursiveTask;
+
+// Оператор хэш-агрегации для GroupBy: поток строк делится пополам, пока части крупнее THRESHOLD,
+// половины обрабатываются задачами fork-join, каждая строит свою таблицу частичных агрегатов,
+// затем таблицы сливаются. Общих структур между задачами нет, поэтому блокировки не нужны
+class HashAggregation extends RecursiveTask<Map<Object, double[]>> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final long THRESHOLD = 4096;
+
+    private final GroupBy spec;
+    private final Spliterator<Record> rows;
+
+    HashAggregation(GroupBy spec, Spliterator<Record> rows) {
+        this.spec = spec;
+        this.rows = rows;
+    }
+
+    @Override
+    protected Map<Object, double[]> compute() {
+        List<HashAggregation> forked = new ArrayList<>();
+        Spliterator<Record> half;
+        while (rows.estimateSize() > THRESHOLD && (half = rows.trySplit()) != null) {
+            HashAggregation task = new HashAggregation(spec, half);
+            task.fork();
+            forked.add(task);
+        }
+
+        Map<Object, double[]> groups = new HashMap<>();
+        rows.forEachRemaining(r -> spec.accumulate(groups.computeIfAbsent(spec.key(r), k -> spec.newState()), r));
+
+        for (HashAggregation task : forked) merge(groups, task.join());
+        return groups;
+    }
+
+    void merge(Map<Object, double[]> into, Map<Object, double[]> part) {
+        for (Map.Entry<Object, double[]> e : part.entrySet()) {
+            double[] state = into.putIfAbsent(e.getKey(), e.getValue());
+            if (state != null) spec.merge(state, e.getValue());
+        }
+    }
+}
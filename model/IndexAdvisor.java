@@ -0,0 +1,336 @@
+package model;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+// Советник индексов: по каждому запросу (query(), search(), update()) записывает форму условий —
+// поле, оператор, сколько строк просмотрено и сколько подошло. По этой статистике советует
+// создать упорядоченный индекс по числовому полю (quantity, price), если по нему часто ищут
+// и условие отбирает малую долю таблицы, и удалить индекс, которым давно не пользовались.
+//   IndexAdvisor advisor = db.getIndexAdvisor();
+//   advisor.recommendations();                       // что стоит создать или удалить
+//   advisor.setMode(IndexAdvisor.Mode.AUTO);         // создавать и удалять самому, в фоне
+// По умолчанию режим RECOMMEND: советник только советует. Дисковой базе CREATE не советуется
+// Стоимость строки полного просмотра измеряется по запросам без индекса; сэкономленное время —
+// число строк, которые индекс позволил не просматривать, умноженное на эту стоимость
+public class IndexAdvisor {
+
+    public enum Mode { OFF, RECOMMEND, AUTO }
+
+    public enum Action { CREATE, DROP }
+
+    // Пороги рекомендаций
+    private static final int EVALUATE_EVERY = 50;
+    private static final int MIN_QUERIES = 20;
+    private static final double MAX_SELECTIVITY = 0.2;
+    private static final long MIN_ROWS = 1000;
+    private static final long UNUSED_QUERIES = 2000;
+
+    public static final class Recommendation {
+        public final Action action;
+        public final String field;
+        // Запросов с условием по полю
+        public final long queries;
+        // Доля подходящих строк среди просмотренных
+        public final double selectivity;
+        // CREATE — ожидаемая экономия на запрос, DROP — сколько индекс сэкономил за всё время
+        public final double savedMillis;
+
+        Recommendation(Action action, String field, long queries, double selectivity, double savedMillis) {
+            this.action = action;
+            this.field = field;
+            this.queries = queries;
+            this.selectivity = selectivity;
+            this.savedMillis = savedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return action == Action.CREATE
+                    ? String.format("CREATE INDEX %s: %d запросов, выборка %.1f%%, ~%.2f мс на запрос",
+                            field, queries, selectivity * 100, savedMillis)
+                    : String.format("DROP INDEX %s: не используется, сэкономил ~%.1f мс", field, savedMillis);
+        }
+    }
+
+    // Статистика формы условия «поле оператор»
+    public static final class ShapeStats {
+        public final String field;
+        public final String op;
+        public final long queries;
+        // Из них выполнено по индексу советника
+        public final long indexed;
+        public final double selectivity;
+        public final double avgRows;
+
+        ShapeStats(String field, String op, long queries, long indexed, double selectivity, double avgRows) {
+            this.field = field;
+            this.op = op;
+            this.queries = queries;
+            this.indexed = indexed;
+            this.selectivity = selectivity;
+            this.avgRows = avgRows;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s: %d запросов (%d по индексу), выборка %.1f%%, строк %.0f",
+                    field, op, queries, indexed, selectivity * 100, avgRows);
+        }
+    }
+
+    private static final class Stats {
+        long queries;
+        long indexed;
+        // Только запросы полным просмотром: по ним видно, сколько строк индекс сэкономит
+        long scans;
+        long examined;
+        long matched;
+    }
+
+    private static final class IndexUse {
+        final long createdAt;
+        long lastUsed;
+        long uses;
+        long savedRows;
+
+        IndexUse(long createdAt) {
+            this.createdAt = createdAt;
+            this.lastUsed = createdAt;
+        }
+    }
+
+    // Счётчики одного запроса: создаются перед выполнением, finish() передаёт их советнику
+    final class Probe {
+        private final List<String[]> conditions;
+        private final String indexField;
+        private final String indexOp;
+        private final double indexValue;
+        private final boolean timed;
+        private final long start = System.nanoTime();
+        private final LongAdder examined = new LongAdder();
+        private final LongAdder matched = new LongAdder();
+        // При нескольких условиях доля подходящих строк считается по каждому числовому условию отдельно
+        private final List<Predicate<Record>> tests = new ArrayList<>();
+        private final LongAdder[] hits;
+        private volatile boolean usedIndex;
+
+        private Probe(List<String[]> conditions, boolean timed) {
+            this.conditions = conditions;
+            this.timed = timed;
+            String[] c = null;
+            for (String[] cond : conditions)
+                if (FieldIndex.supports(cond[0]) && FieldIndex.supportsOp(cond[1])) {
+                    c = cond;
+                    break;
+                }
+            indexField = c == null ? null : c[0];
+            indexOp = c == null ? null : c[1];
+            indexValue = c == null ? 0 : Double.parseDouble(c[2]);
+
+            hits = new LongAdder[conditions.size()];
+            for (int i = 0; i < hits.length; i++) {
+                String[] cond = conditions.get(i);
+                boolean counted = hits.length > 1 && FieldIndex.supports(cond[0]) && FieldIndex.supportsOp(cond[1]);
+                tests.add(counted ? db.matcher(cond[0], cond[2], cond[1]) : null);
+                if (counted) hits[i] = new LongAdder();
+            }
+        }
+
+        // Строки шарда: из индекса запроса (source), из индекса советника или полным просмотром [lo, hi]
+        Stream<Record> rows(Shard shard, long at, int lo, int hi, BiFunction<Shard, Long, List<Record>> source) {
+            Stream<Record> rows = null;
+            if (source != null) {
+                rows = source.apply(shard, at).stream();
+            } else if (indexField != null) {
+                List<Record> found = shard.byIndex(indexField, indexOp, indexValue, at);
+                if (found != null) {
+                    usedIndex = true;
+                    rows = found.stream();
+                }
+            }
+            if (rows == null) rows = shard.stream(at, lo, hi);
+            return rows.peek(r -> examined.increment());
+        }
+
+        Predicate<Record> count(Predicate<Record> match) {
+            return r -> {
+                for (int i = 0; i < hits.length; i++)
+                    if (hits[i] != null && tests.get(i).test(r)) hits[i].increment();
+                if (!match.test(r)) return false;
+                matched.increment();
+                return true;
+            };
+        }
+
+        void finish() {
+            record(this, timed ? System.nanoTime() - start : 0);
+        }
+    }
+
+    private final Database db;
+    private volatile Mode mode = Mode.RECOMMEND;
+    private final Map<String, Stats> shapes = new LinkedHashMap<>();
+    private final Map<String, IndexUse> indexes = new HashMap<>();
+    private final Set<String> building = new HashSet<>();
+    // Число записанных запросов — часы, по которым индекс считается давно неиспользуемым
+    private long queries;
+    private double nanosPerRow = 50;
+    private long savedRows;
+
+    IndexAdvisor(Database db) {
+        this.db = db;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    // conditions — условия запроса {поле, оператор, значение}; timed — запрос выполняется сразу
+    // целиком, и его время годится для оценки стоимости строки
+    Probe probe(List<String[]> conditions, boolean timed) {
+        return new Probe(conditions, timed);
+    }
+
+    private void record(Probe p, long nanos) {
+        if (mode == Mode.OFF) return;
+        long examined = p.examined.sum(), matched = p.matched.sum();
+        long total = db.getTotalRecords();
+
+        boolean evaluate;
+        synchronized (this) {
+            queries++;
+            for (int i = 0; i < p.conditions.size(); i++) {
+                String[] c = p.conditions.get(i);
+                Stats s = shapes.computeIfAbsent(c[0] + " " + c[1].toUpperCase(Locale.ROOT), k -> new Stats());
+                s.queries++;
+                // По индексу просмотрены уже отобранные строки, доля остальных условий по ним не видна
+                if (p.usedIndex) {
+                    if (c[0].equals(p.indexField)) s.indexed++;
+                    continue;
+                }
+                s.scans++;
+                s.examined += examined;
+                s.matched += p.hits[i] == null ? matched : p.hits[i].sum();
+            }
+
+            if (p.usedIndex) {
+                IndexUse u = indexes.get(p.indexField);
+                if (u != null) {
+                    u.lastUsed = queries;
+                    u.uses++;
+                    u.savedRows += Math.max(0, total - examined);
+                }
+                savedRows += Math.max(0, total - examined);
+            } else if (nanos > 0 && examined >= MIN_ROWS) {
+                nanosPerRow = nanosPerRow * 0.8 + (double) nanos / examined * 0.2;
+            }
+            evaluate = mode == Mode.AUTO && queries % EVALUATE_EVERY == 0;
+        }
+
+        if (evaluate) apply(recommendations());
+    }
+
+    public synchronized List<Recommendation> recommendations() {
+        List<Recommendation> res = new ArrayList<>();
+
+        Map<String, Stats> byField = new TreeMap<>();
+        for (Map.Entry<String, Stats> e : shapes.entrySet()) {
+            String[] shape = e.getKey().split(" ", 2);
+            if (!FieldIndex.supports(shape[0]) || !FieldIndex.supportsOp(shape[1])) continue;
+            Stats s = e.getValue(), f = byField.computeIfAbsent(shape[0], k -> new Stats());
+            f.queries += s.queries;
+            f.scans += s.scans;
+            f.examined += s.examined;
+            f.matched += s.matched;
+        }
+
+        // Дисковой базе, у которой нет индексов советника, создавать индекс не советуется
+        boolean creatable = db.supportsFieldIndexes();
+        for (Map.Entry<String, Stats> e : byField.entrySet()) {
+            String field = e.getKey();
+            Stats s = e.getValue();
+            if (!creatable || indexes.containsKey(field) || building.contains(field) || s.scans < MIN_QUERIES) continue;
+
+            double rows = (double) s.examined / s.scans;
+            double selectivity = s.examined == 0 ? 1 : (double) s.matched / s.examined;
+            if (rows >= MIN_ROWS && selectivity <= MAX_SELECTIVITY)
+                res.add(new Recommendation(Action.CREATE, field, s.queries, selectivity,
+                        rows * (1 - selectivity) * nanosPerRow / 1e6));
+        }
+
+        for (Map.Entry<String, IndexUse> e : indexes.entrySet()) {
+            IndexUse u = e.getValue();
+            if (queries - u.lastUsed >= UNUSED_QUERIES && queries - u.createdAt >= UNUSED_QUERIES) {
+                Stats s = byField.get(e.getKey());
+                res.add(new Recommendation(Action.DROP, e.getKey(), s == null ? 0 : s.queries, 1,
+                        u.savedRows * nanosPerRow / 1e6));
+            }
+        }
+        return res;
+    }
+
+    // Выполняет рекомендации: индекс строится в фоне, запросы тем временем идут полным просмотром
+    public void apply(List<Recommendation> recommendations) {
+        for (Recommendation r : recommendations) {
+            if (r.action == Action.DROP) {
+                db.dropIndex(r.field);
+                continue;
+            }
+            synchronized (this) {
+                if (indexes.containsKey(r.field) || !building.add(r.field)) continue;
+            }
+            db.createIndex(r.field);
+        }
+    }
+
+    synchronized void building(String field) {
+        building.add(field);
+    }
+
+    synchronized void created(String field, boolean ok) {
+        building.remove(field);
+        if (ok) indexes.putIfAbsent(field, new IndexUse(queries));
+    }
+
+    synchronized void dropped(String field) {
+        indexes.remove(field);
+    }
+
+    public synchronized Set<String> getIndexes() {
+        return new TreeSet<>(indexes.keySet());
+    }
+
+    public synchronized List<ShapeStats> getStats() {
+        List<ShapeStats> res = new ArrayList<>();
+        for (Map.Entry<String, Stats> e : shapes.entrySet()) {
+            String[] shape = e.getKey().split(" ", 2);
+            Stats s = e.getValue();
+            res.add(new ShapeStats(shape[0], shape[1], s.queries, s.indexed,
+                    s.examined == 0 ? 1 : (double) s.matched / s.examined,
+                    s.scans == 0 ? 0 : (double) s.examined / s.scans));
+        }
+        res.sort(Comparator.comparingLong((ShapeStats s) -> s.queries).reversed());
+        return res;
+    }
+
+    public synchronized long getQueries() {
+        return queries;
+    }
+
+    // Оценка времени, сэкономленного индексами советника
+    public synchronized double getEstimatedSavedMillis() {
+        return savedRows * nanosPerRow / 1e6;
+    }
+
+    public synchronized double getScanNanosPerRow() {
+        return nanosPerRow;
+    }
+}
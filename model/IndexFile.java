@@ -0,0 +1,143 @@
+package model;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.zip.CRC32;
+
+// Снимок индексов шарда рядом с файлом данных (<файл>.idx):
+//   "IMSI" | версия (1 байт) | IV (12 байт) | AES-GCM( содержимое | CRC32 содержимого )
+//   содержимое = отпечаток файла данных | число разделов | раздел...
+//   раздел = имя индекса (UTF) | число ключей | ключ (UTF) | число id | id ...
+// id ключа пишутся разностями с предыдущим (varint): записи шарда сохраняются по возрастанию id.
+// Отпечаток — длина файла данных и CRC32 его хвоста (в хвосте страничного файла случайный IV
+// каталога), поэтому снимок от другого сохранения не подойдёт. Разделы именованы: новый индекс
+// добавляется разделом, а снимок без нужного раздела не используется и индексы строятся заново.
+// Индексы советника пишутся разделами "field:<поле>" (FieldIndex.section), поэтому по снимку
+// видно, какие из них были созданы, и при загрузке они восстанавливаются без перестройки.
+// При любом несовпадении (версия, отпечаток, контрольная сумма) read возвращает null
+class IndexFile {
+
+    static final int VERSION = 1;
+    static final byte[] MAGIC = {'I', 'M', 'S', 'I'};
+    private static final int TAIL = 64;
+
+    static File of(String dataFile) {
+        return new File(dataFile + ".idx");
+    }
+
+    static void write(File f, SecretKeySpec key, File data, Map<String, Map<String, List<Integer>>> sections)
+            throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        out.writeLong(data.length());
+        out.writeLong(tailChecksum(data));
+        out.writeInt(sections.size());
+        for (Map.Entry<String, Map<String, List<Integer>>> s : sections.entrySet()) {
+            out.writeUTF(s.getKey());
+            out.writeInt(s.getValue().size());
+            for (Map.Entry<String, List<Integer>> e : s.getValue().entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue().size());
+                int prev = 0;
+                for (int id : e.getValue()) {
+                    writeVarLong(out, (long) id - prev);
+                    prev = id;
+                }
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.toByteArray());
+        out.writeLong(crc.getValue());
+
+        try (OutputStream file = new BufferedOutputStream(new FileOutputStream(f))) {
+            byte[] iv = PageFile.newIv();
+            file.write(MAGIC);
+            file.write(VERSION);
+            file.write(iv);
+            file.write(PageFile.encrypt(key, iv, buf.toByteArray()));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Ошибка при шифровании индекса", e);
+        }
+    }
+
+    static Map<String, Map<String, int[]>> read(File f, SecretKeySpec key, File data) {
+        if (!f.exists()) return null;
+        try {
+            byte[] raw = Files.readAllBytes(f.toPath());
+            int header = MAGIC.length + 1 + PageFile.IV_SIZE;
+            if (raw.length < header || !Arrays.equals(raw, 0, MAGIC.length, MAGIC, 0, MAGIC.length)
+                    || raw[MAGIC.length] != VERSION)
+                return null;
+
+            byte[] iv = Arrays.copyOfRange(raw, MAGIC.length + 1, header);
+            byte[] plain = PageFile.decrypt(key, iv, ByteBuffer.wrap(raw, header, raw.length - header));
+            if (plain.length < 8) return null;
+
+            CRC32 crc = new CRC32();
+            crc.update(plain, 0, plain.length - 8);
+            if (crc.getValue() != ByteBuffer.wrap(plain, plain.length - 8, 8).getLong()) return null;
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain, 0, plain.length - 8));
+            if (in.readLong() != data.length() || in.readLong() != tailChecksum(data)) return null;
+
+            Map<String, Map<String, int[]>> sections = new HashMap<>();
+            int count = in.readInt();
+            for (int s = 0; s < count; s++) {
+                String name = in.readUTF();
+                int keys = in.readInt();
+                Map<String, int[]> section = new HashMap<>(keys * 2);
+                for (int k = 0; k < keys; k++) {
+                    String value = in.readUTF();
+                    int[] ids = new int[in.readInt()];
+                    int prev = 0;
+                    for (int i = 0; i < ids.length; i++) ids[i] = prev = (int) (prev + readVarLong(in));
+                    section.put(value, ids);
+                }
+                sections.put(name, section);
+            }
+            return sections;
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Разность пишется zigzag-кодом, поэтому порядок id у ключа не обязателен
+    private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+        long z = (v << 1) ^ (v >> 63);
+        while ((z & ~0x7FL) != 0) {
+            out.writeByte((int) (z & 0x7F) | 0x80);
+            z >>>= 7;
+        }
+        out.writeByte((int) z);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long z = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            z |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+            if (shift > 63) throw new IOException("Повреждён снимок индексов");
+        }
+        return (z >>> 1) ^ -(z & 1);
+    }
+
+    private static long tailChecksum(File data) throws IOException {
+        try (FileChannel ch = FileChannel.open(data.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            ByteBuffer tail = ByteBuffer.allocate((int) Math.min(TAIL, size));
+            while (tail.hasRemaining())
+                if (ch.read(tail, size - tail.capacity() + tail.position()) < 0) break;
+
+            CRC32 crc = new CRC32();
+            crc.update(tail.flip());
+            return crc.getValue();
+        }
+    }
+}
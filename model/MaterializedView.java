@@ -0,0 +1,90 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+// Материализованное представление: результат запроса, который база поддерживает сама.
+//   MaterializedView low = db.materialize(db.query().where("quantity", "<", "5"), "id", "name", "quantity");
+//   low.subscribe(d -> ...);   // d.removed — ушедшие из результата строки, d.added — появившиеся
+// Каждый коммит (add, delete, update, sell, supply, load) применяется к результату за время,
+// пропорциональное числу изменённых записей, а не размеру таблицы. Изменённая строка приходит
+// парой: старое значение в removed, новое в added.
+// Подписчики вызываются в потоке писателя под commit-локом в порядке коммитов, поэтому должны
+// работать быстро; GUI передаёт обновление в поток Swing через invokeLater
+public abstract class MaterializedView implements AutoCloseable {
+
+    public static final class Delta {
+        public final long version;
+        public final List<Object[]> removed;
+        public final List<Object[]> added;
+
+        Delta(long version, List<Object[]> removed, List<Object[]> added) {
+            this.version = version;
+            this.removed = Collections.unmodifiableList(removed);
+            this.added = Collections.unmodifiableList(added);
+        }
+
+        public boolean isEmpty() {
+            return removed.isEmpty() && added.isEmpty();
+        }
+    }
+
+    private final Database db;
+    private final List<Consumer<Delta>> subscribers = new CopyOnWriteArrayList<>();
+
+    MaterializedView(Database db) {
+        this.db = db;
+    }
+
+    public abstract List<String> columns();
+
+    // Текущий результат (копия); ORDER BY и LIMIT запроса применяются здесь
+    public abstract List<Object[]> rows();
+
+    public void subscribe(Consumer<Delta> subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    public void unsubscribe(Consumer<Delta> subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    // Представление больше не обновляется
+    @Override
+    public void close() {
+        db.drop(this);
+    }
+
+    // Полный пересчёт по снимку: при создании и после подмены файлов хранилища
+    abstract void reset(Snapshot snap, List<Object[]> removed, List<Object[]> added);
+
+    // old — прежняя версия записи, r — новая; null означает отсутствие записи
+    abstract void apply(Record old, Record r, List<Object[]> removed, List<Object[]> added);
+
+    // Вызывается под commit-локом после публикации версии
+    final void commit(long version, List<Record[]> changes) {
+        List<Object[]> removed = new ArrayList<>();
+        List<Object[]> added = new ArrayList<>();
+        synchronized (this) {
+            for (Record[] c : changes) apply(c[0], c[1], removed, added);
+        }
+        publish(new Delta(version, removed, added));
+    }
+
+    final void refresh(Snapshot snap) {
+        List<Object[]> removed = new ArrayList<>();
+        List<Object[]> added = new ArrayList<>();
+        synchronized (this) {
+            reset(snap, removed, added);
+        }
+        publish(new Delta(snap.version(), removed, added));
+    }
+
+    private void publish(Delta delta) {
+        if (delta.isEmpty()) return;
+        for (Consumer<Delta> s : subscribers) s.accept(delta);
+    }
+}
@@ -0,0 +1,337 @@
+package model;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Страничный формат файла шарда (версия 2):
+//   заголовок | страница 0 | ... | страница N-1 | каталог | хвост
+// Записи отсортированы по id и разбиты на страницы примерно по PAGE_SIZE байт.
+// Каждая страница (и каталог) сжимается и шифруется AES-GCM со своим IV, поэтому
+// любую страницу можно прочитать и проверить отдельно. Каталог хранит словарь
+// поставщиков и для каждой страницы смещение, длину, число записей, диапазон id и IV.
+//   хвост = IV каталога (12 байт) | длина каталога (int) | смещение каталога (long)
+class PageFile implements Closeable {
+
+    static final int VERSION = 2;
+    static final int PAGE_SIZE = 64 * 1024;
+
+    static final int IV_SIZE = 12;
+    static final int TAG_BITS = 128;
+    private static final int FOOTER_SIZE = IV_SIZE + 4 + 8;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    static final class Page {
+        final long offset;
+        final int length;
+        final int rows;
+        final int minId;
+        final int maxId;
+        final byte[] iv;
+
+        Page(long offset, int length, int rows, int minId, int maxId, byte[] iv) {
+            this.offset = offset;
+            this.length = length;
+            this.rows = rows;
+            this.minId = minId;
+            this.maxId = maxId;
+            this.iv = iv;
+        }
+    }
+
+    private final FileChannel channel;
+    private final SecretKeySpec key;
+    private final int[] codes;
+    final String layout;
+    final Page[] pages;
+
+    private PageFile(FileChannel channel, SecretKeySpec key, String layout, int[] codes, Page[] pages) {
+        this.channel = channel;
+        this.key = key;
+        this.layout = layout;
+        this.codes = codes;
+        this.pages = pages;
+    }
+
+    // Читает и расшифровывает только каталог; страницы читаются по запросу
+    static PageFile open(File f, SecretKeySpec key, StringDictionary dict) throws IOException {
+        FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try {
+            long size = ch.size();
+            if (size < StorageFormat.HEADER_SIZE + FOOTER_SIZE) throw new IOException("Файл " + f + " обрезан");
+
+            ByteBuffer footer = read(ch, size - FOOTER_SIZE, FOOTER_SIZE);
+            byte[] iv = new byte[IV_SIZE];
+            footer.get(iv);
+            int length = footer.getInt();
+            long offset = footer.getLong();
+            if (offset < StorageFormat.HEADER_SIZE || offset + length > size - FOOTER_SIZE)
+                throw new IOException("Повреждён каталог файла " + f);
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                    unpack(decrypt(key, iv, read(ch, offset, length)))));
+
+            String layout = in.readUTF();
+            int[] codes = new int[in.readInt()];
+            for (int i = 0; i < codes.length; i++) codes[i] = dict.encode(in.readUTF());
+
+            Page[] pages = new Page[in.readInt()];
+            for (int i = 0; i < pages.length; i++) {
+                long pageOffset = in.readLong();
+                int pageLength = in.readInt();
+                int rows = in.readInt();
+                int minId = in.readInt();
+                int maxId = in.readInt();
+                byte[] pageIv = in.readNBytes(IV_SIZE);
+                pages[i] = new Page(pageOffset, pageLength, rows, minId, maxId, pageIv);
+            }
+
+            return new PageFile(ch, key, layout, codes, pages);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        } catch (GeneralSecurityException e) {
+            ch.close();
+            throw new IOException("Ошибка при расшифровке каталога файла " + f, e);
+        }
+    }
+
+    int totalRows() {
+        int total = 0;
+        for (Page p : pages) total += p.rows;
+        return total;
+    }
+
+    // Номер страницы, которая может содержать id, или -1
+    int pageOf(int id) {
+        int lo = 0, hi = pages.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (pages[mid].maxId < id) lo = mid + 1;
+            else if (pages[mid].minId > id) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    // Потокобезопасно: позиционное чтение канала, отдельный Cipher из пула на каждый вызов
+    List<Record> read(int page, StringDictionary dict) throws IOException {
+        Page p = pages[page];
+        byte[] plain;
+        try {
+            plain = unpack(decrypt(key, p.iv, read(channel, p.offset, p.length)));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Ошибка при расшифровке страницы " + page, e);
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain));
+        List<Record> res = new ArrayList<>(p.rows);
+        for (int i = 0; i < p.rows; i++) {
+            int id = in.readInt();
+            String name = in.readUTF();
+            int quantity = in.readInt();
+            double price = in.readDouble();
+            int code = codes[in.readInt()];
+            res.add(new Record(id, name, quantity, price, dict.decode(code), code));
+        }
+        return res;
+    }
+
+    // Полное чтение: страницы расшифровываются параллельно
+    List<Record> readAll(StringDictionary dict) throws IOException {
+        try {
+            return IntStream.range(0, pages.length)
+                    .parallel()
+                    .mapToObj(i -> {
+                        try {
+                            return read(i, dict);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .flatMap(List::stream)
+                    .toList();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // records должны быть отсортированы по id
+    static void write(File f, SecretKeySpec key, Compression c, String layout, List<Record> records) throws IOException {
+        Map<String, Integer> local = new LinkedHashMap<>();
+        List<String> dictionary = new ArrayList<>();
+        List<Page> pages = new ArrayList<>();
+
+        try (OutputStream file = new BufferedOutputStream(new FileOutputStream(f))) {
+            file.write(StorageFormat.MAGIC);
+            file.write(VERSION);
+            file.write(c.code);
+            long offset = StorageFormat.HEADER_SIZE;
+
+            ByteArrayOutputStream page = new ByteArrayOutputStream(PAGE_SIZE + 1024);
+            DataOutputStream out = new DataOutputStream(page);
+            int rows = 0, minId = 0, maxId = 0;
+
+            for (int i = 0; i <= records.size(); i++) {
+                boolean last = i == records.size();
+                if (rows > 0 && (last || page.size() >= PAGE_SIZE)) {
+                    byte[] iv = newIv();
+                    byte[] sealed = encrypt(key, iv, pack(page.toByteArray(), c));
+                    file.write(sealed);
+                    pages.add(new Page(offset, sealed.length, rows, minId, maxId, iv));
+                    offset += sealed.length;
+
+                    page.reset();
+                    rows = 0;
+                }
+                if (last) break;
+
+                Record r = records.get(i);
+                Integer code = local.get(r.supplier);
+                if (code == null) {
+                    code = local.size();
+                    local.put(r.supplier, code);
+                    dictionary.add(r.supplier);
+                }
+
+                out.writeInt(r.id);
+                out.writeUTF(r.name);
+                out.writeInt(r.quantity);
+                out.writeDouble(r.price);
+                out.writeInt(code);
+
+                if (rows++ == 0) minId = r.id;
+                maxId = r.id;
+            }
+
+            ByteArrayOutputStream dir = new ByteArrayOutputStream();
+            DataOutputStream d = new DataOutputStream(dir);
+            d.writeUTF(layout);
+            d.writeInt(dictionary.size());
+            for (String s : dictionary) d.writeUTF(s);
+            d.writeInt(pages.size());
+            for (Page p : pages) {
+                d.writeLong(p.offset);
+                d.writeInt(p.length);
+                d.writeInt(p.rows);
+                d.writeInt(p.minId);
+                d.writeInt(p.maxId);
+                d.write(p.iv);
+            }
+
+            byte[] iv = newIv();
+            byte[] sealed = encrypt(key, iv, pack(dir.toByteArray(), c));
+            file.write(sealed);
+
+            DataOutputStream footer = new DataOutputStream(file);
+            footer.write(iv);
+            footer.writeInt(sealed.length);
+            footer.writeLong(offset);
+            footer.flush();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Ошибка при шифровании", e);
+        }
+    }
+
+    static byte[] newIv() {
+        byte[] iv = new byte[IV_SIZE];
+        RANDOM.nextBytes(iv);
+        return iv;
+    }
+
+    private static ByteBuffer read(FileChannel ch, long offset, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, offset + buf.position()) < 0) throw new EOFException("Файл базы обрезан");
+        }
+        return buf.flip();
+    }
+
+    static byte[] encrypt(SecretKeySpec key, byte[] iv, byte[] data) throws GeneralSecurityException {
+        Cipher cipher = CipherPool.GCM.acquire();
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+            return cipher.doFinal(data);
+        } finally {
+            CipherPool.GCM.release(cipher);
+        }
+    }
+
+    static byte[] decrypt(SecretKeySpec key, byte[] iv, ByteBuffer data) throws GeneralSecurityException {
+        Cipher cipher = CipherPool.GCM.acquire();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+            byte[] out = new byte[cipher.getOutputSize(data.remaining())];
+            int n = cipher.doFinal(data, ByteBuffer.wrap(out));
+            return n == out.length ? out : Arrays.copyOf(out, n);
+        } finally {
+            CipherPool.GCM.release(cipher);
+        }
+    }
+
+    // Первый байт: 1 — данные сжаты (далее длина исходных данных и deflate), 0 — как есть
+    private static byte[] pack(byte[] raw, Compression c) {
+        if (c.deflate) {
+            Deflater deflater = new Deflater(c.level);
+            try {
+                deflater.setInput(raw);
+                deflater.finish();
+                byte[] buf = new byte[raw.length + 5];
+                int n = 5;
+                while (!deflater.finished() && n < buf.length)
+                    n += deflater.deflate(buf, n, buf.length - n);
+                if (deflater.finished() && n < raw.length) {
+                    buf[0] = 1;
+                    ByteBuffer.wrap(buf, 1, 4).putInt(raw.length);
+                    return Arrays.copyOf(buf, n);
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+
+        byte[] res = new byte[raw.length + 1];
+        System.arraycopy(raw, 0, res, 1, raw.length);
+        return res;
+    }
+
+    private static byte[] unpack(byte[] data) throws IOException {
+        if (data.length == 0) throw new IOException("Пустая страница");
+        if (data[0] == 0) return Arrays.copyOfRange(data, 1, data.length);
+
+        int length = ByteBuffer.wrap(data, 1, 4).getInt();
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, 5, data.length - 5);
+            byte[] out = new byte[length];
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int k = inflater.inflate(out, n, length - n);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += k;
+            }
+            if (n != length) throw new IOException("Повреждённая страница");
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException("Повреждённая страница", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
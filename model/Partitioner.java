@@ -0,0 +1,78 @@
+package model;
+
+import java.util.Arrays;
+
+public interface Partitioner {
+
+    int shardCount();
+
+    int shardOf(int id);
+
+    // Может ли шард содержать id из диапазона [lo, hi]; используется для отсечения шардов
+    default boolean overlaps(int shard, int lo, int hi) {
+        return true;
+    }
+
+    // Описание раскладки, сохраняемое в файлах шардов; файлы, записанные при другой
+    // раскладке, при загрузке раскладываются заново. null — раскладку нельзя сравнить
+    default String describe() {
+        return null;
+    }
+
+    static Partitioner hash(int shards) {
+        if (shards < 1) throw new IllegalArgumentException("shards < 1");
+
+        return new Partitioner() {
+            @Override
+            public int shardCount() {
+                return shards;
+            }
+
+            // Старшие биты произведения Фибоначчи: младшие повторяют младшие биты id,
+            // и id, кратные числу шардов, попадали бы в один шард
+            @Override
+            public int shardOf(int id) {
+                return (int) (((id * 0x9E3779B9) & 0xFFFFFFFFL) * shards >>> 32);
+            }
+
+            // "hash:" была раскладкой по младшим битам: её файлы при загрузке раскладываются заново
+            @Override
+            public String describe() {
+                return "fib:" + shards;
+            }
+        };
+    }
+
+    // upperBounds — отсортированные верхние границы (включительно) всех шардов, кроме последнего
+    static Partitioner range(int... upperBounds) {
+        int[] bounds = upperBounds.clone();
+        for (int i = 1; i < bounds.length; i++)
+            if (bounds[i] <= bounds[i - 1])
+                throw new IllegalArgumentException("Границы диапазонов должны возрастать");
+
+        return new Partitioner() {
+            @Override
+            public int shardCount() {
+                return bounds.length + 1;
+            }
+
+            @Override
+            public int shardOf(int id) {
+                int pos = Arrays.binarySearch(bounds, id);
+                return pos >= 0 ? pos : -pos - 1;
+            }
+
+            @Override
+            public boolean overlaps(int shard, int lo, int hi) {
+                int from = shard == 0 ? Integer.MIN_VALUE : bounds[shard - 1] + 1;
+                int to = shard == bounds.length ? Integer.MAX_VALUE : bounds[shard];
+                return lo <= to && hi >= from;
+            }
+
+            @Override
+            public String describe() {
+                return "range:" + Arrays.toString(bounds);
+            }
+        };
+    }
+}
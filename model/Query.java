@@ -0,0 +1,109 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+// Потоковый запрос к базе: db.query().where("price", ">", "100").orderBy("price", true).limit(10).forEach(...)
+public class Query {
+
+    private final Database db;
+
+    final List<Predicate<Record>> filters = new ArrayList<>();
+    // Условия where(поле, оператор, значение) для советника индексов
+    final List<String[]> conditions = new ArrayList<>();
+    int idLo = Integer.MIN_VALUE;
+    int idHi = Integer.MAX_VALUE;
+    Comparator<Record> order;
+    // Источник кандидатов в шарде по индексу; null — полный просмотр снимка
+    BiFunction<Shard, Long, List<Record>> source;
+    long offset;
+    long limit = Long.MAX_VALUE;
+
+    Query(Database db) {
+        this.db = db;
+    }
+
+    public Query where(String field, String op, String value) {
+        filters.add(db.matcher(field, value, op));
+        conditions.add(new String[]{field, op, value});
+
+        if (op.equalsIgnoreCase("LIKE")) {
+            if (source == null && (field.equals("name") || field.equals("supplier")))
+                source = (shard, at) -> shard.like(field, value, at);
+        } else if (field.equals("id")) {
+            int id = Integer.parseInt(value);
+            idLo = Math.max(idLo, Database.rangeLo(id, op));
+            idHi = Math.min(idHi, Database.rangeHi(id, op));
+        } else if (source == null && op.equals("=") && field.equals("name")) {
+            source = (shard, at) -> shard.byName(value, at);
+        } else if (source == null && op.equals("=") && field.equals("supplier")) {
+            source = (shard, at) -> shard.bySupplier(value, at);
+        }
+        return this;
+    }
+
+    public Query where(Predicate<Record> predicate) {
+        filters.add(predicate);
+        return this;
+    }
+
+    public Query orderBy(String field) {
+        return orderBy(field, false);
+    }
+
+    // Записи с равным значением поля упорядочиваются по id, чтобы страницы OFFSET не пересекались
+    public Query orderBy(String field, boolean descending) {
+        Comparator<Record> cmp = Record.comparator(field);
+        if (descending) cmp = cmp.reversed();
+        order = cmp.thenComparingInt(r -> r.id);
+        return this;
+    }
+
+    public Query offset(long offset) {
+        if (offset < 0) throw new IllegalArgumentException("OFFSET < 0");
+        this.offset = offset;
+        return this;
+    }
+
+    public Query limit(long limit) {
+        if (limit < 0) throw new IllegalArgumentException("LIMIT < 0");
+        this.limit = limit;
+        return this;
+    }
+
+    Predicate<Record> predicate() {
+        return r -> {
+            for (Predicate<Record> p : filters)
+                if (!p.test(r)) return false;
+            return true;
+        };
+    }
+
+    // Поток держит снимок базы, поэтому его нужно закрыть (try-with-resources)
+    public Stream<Record> stream() {
+        return db.execute(this);
+    }
+
+    public void forEach(Consumer<? super Record> action) {
+        try (Stream<Record> s = stream()) {
+            s.forEach(action);
+        }
+    }
+
+    public List<Record> list() {
+        try (Stream<Record> s = stream()) {
+            return s.toList();
+        }
+    }
+
+    public long count() {
+        try (Stream<Record> s = stream()) {
+            return s.count();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package model;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+// Кэш результатов search() и getSorted(): ключ — нормализованный запрос, вытеснение LRU по числу
+// запросов и по суммарному числу строк. Каждая запись кэша знает, от чего зависит: диапазон id,
+// столбец условия и само условие. Изменение записи сбрасывает только те результаты, в которые
+// запись входила до изменения или входит после. Если столбец условия не менялся, принадлежность
+// записи результату не изменилась и проверяется одна старая версия.
+// Все методы вызываются под локом кэша; invalidate — ещё и под commit-локом базы
+class QueryCache {
+
+    // Пачку изменений больше этой проще сбросить целиком, чем проверять по каждой записи кэша
+    private static final int MAX_PRECISE = 4096;
+
+    private static final class Entry {
+        final List<Record> rows;
+        final String column;
+        final int idLo;
+        final int idHi;
+        final Predicate<Record> match;
+
+        Entry(List<Record> rows, String column, int idLo, int idHi, Predicate<Record> match) {
+            this.rows = rows;
+            this.column = column;
+            this.idLo = idLo;
+            this.idHi = idHi;
+            this.match = match;
+        }
+
+        boolean affectedBy(Record old, Record r, boolean columnChanged) {
+            int id = old != null ? old.id : r.id;
+            boolean inRange = id >= idLo && id <= idHi;
+            if (old != null && r != null && old.id != r.id) inRange |= r.id >= idLo && r.id <= idHi;
+            if (!inRange) return false;
+
+            if (old != null && match.test(old)) return true;
+            return r != null && (old == null || columnChanged) && match.test(r);
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxRows;
+    private long rows;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long hits;
+    private long misses;
+    private long invalidations;
+    private long evictions;
+
+    QueryCache(int maxEntries, long maxRows) {
+        this.maxEntries = maxEntries;
+        this.maxRows = maxRows;
+    }
+
+    synchronized List<Record> get(String key) {
+        Entry e = entries.get(key);
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.rows;
+    }
+
+    // column == null — результат зависит от всех столбцов (полная таблица)
+    synchronized void put(String key, List<Record> rows, String column, int idLo, int idHi, Predicate<Record> match) {
+        if (maxEntries == 0 || rows.size() > maxRows) return;
+
+        Entry old = entries.put(key, new Entry(rows, column, idLo, idHi, match));
+        if (old != null) this.rows -= old.rows.size();
+        this.rows += rows.size();
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext() && (entries.size() > maxEntries || this.rows > maxRows)) {
+            this.rows -= it.next().rows.size();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    synchronized void invalidate(List<Record[]> changes) {
+        if (entries.isEmpty()) return;
+        if (changes.size() > MAX_PRECISE) {
+            clear();
+            return;
+        }
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            for (Record[] c : changes) {
+                boolean columnChanged = e.column == null || changed(c[0], c[1], e.column);
+                if (e.affectedBy(c[0], c[1], columnChanged)) {
+                    rows -= e.rows.size();
+                    it.remove();
+                    invalidations++;
+                    break;
+                }
+            }
+        }
+    }
+
+    private static boolean changed(Record old, Record r, String column) {
+        return old == null || r == null || !Objects.equals(Record.field(old, column), Record.field(r, column));
+    }
+
+    synchronized void clear() {
+        invalidations += entries.size();
+        entries.clear();
+        rows = 0;
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized long invalidations() {
+        return invalidations;
+    }
+
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+}
@@ -1,18 +1,28 @@
 package model;
 
+import java.util.Comparator;
+
 public class Record {
-    public int id;
-    public String name;
-    public int quantity;
-    public double price;
-    public String supplier;
+    public final int id;
+    public final String name;
+    public final int quantity;
+    public final double price;
+    public final String supplier;
+
+    // Код поставщика в словаре базы; -1, пока запись не попала в базу
+    final int supplierCode;
 
     public Record(int id, String name, int quantity, double price, String supplier) {
+        this(id, name, quantity, price, supplier, -1);
+    }
+
+    Record(int id, String name, int quantity, double price, String supplier, int supplierCode) {
         this.id = id;
         this.name = name;
         this.quantity = quantity;
         this.price = price;
         this.supplier = supplier;
+        this.supplierCode = supplierCode;
     }
 
     public static Record fromString(String line) {
@@ -26,8 +36,45 @@ public class Record {
         );
     }
 
+    public Record withQuantity(int quantity) {
+        return new Record(id, name, quantity, price, supplier, supplierCode);
+    }
+
+    public Record with(String field, String value) {
+        return switch (field) {
+            case "id"       -> new Record(Integer.parseInt(value), name, quantity, price, supplier, supplierCode);
+            case "price"    -> new Record(id, name, quantity, Double.parseDouble(value), supplier, supplierCode);
+            case "quantity" -> new Record(id, name, Integer.parseInt(value), price, supplier, supplierCode);
+            case "name"     -> new Record(id, value, quantity, price, supplier, supplierCode);
+            case "supplier" -> new Record(id, name, quantity, price, value);
+            default         -> this;
+        };
+    }
+
+    public static Object field(Record r, String field) {
+        return switch (field) {
+            case "id"       -> r.id;
+            case "name"     -> r.name;
+            case "quantity" -> r.quantity;
+            case "price"    -> r.price;
+            case "supplier" -> r.supplier;
+            default         -> null;
+        };
+    }
+
+    public static Comparator<Record> comparator(String field) {
+        return switch (field) {
+            case "id" -> Comparator.comparingInt(r -> r.id);
+            case "name" -> Comparator.comparing(r -> r.name);
+            case "supplier" -> Comparator.comparing(r -> r.supplier);
+            case "price" -> Comparator.comparingDouble(r -> r.price);
+            case "quantity" -> Comparator.comparingInt(r -> r.quantity);
+            default -> (a, b) -> 0;
+        };
+    }
+
     @Override
     public String toString() {
         return id + ";" + name + ";" + quantity + ";" + price + ";" + supplier;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,78 @@
+package model;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+// Представление над Query: записи, прошедшие фильтр, как строки из выбранных полей (по умолчанию всех).
+// Дельты считаются по всем подходящим записям, ORDER BY, OFFSET и LIMIT применяются при чтении rows()
+final class RecordView extends MaterializedView {
+
+    private static final String[] ALL = {"id", "name", "quantity", "price", "supplier"};
+
+    private final Predicate<Record> match;
+    private final Comparator<Record> order;
+    private final long offset;
+    private final long limit;
+    private final String[] fields;
+    private final Map<Integer, Record> records = new HashMap<>();
+
+    RecordView(Database db, Query q, String... fields) {
+        super(db);
+        for (String f : fields)
+            if (!GroupBy.isField(f)) throw new IllegalArgumentException("Неизвестное поле: " + f);
+        this.match = q.predicate();
+        this.order = q.order;
+        this.offset = q.offset;
+        this.limit = q.limit;
+        this.fields = fields.length == 0 ? ALL : fields.clone();
+    }
+
+    @Override
+    public List<String> columns() {
+        return List.of(fields);
+    }
+
+    @Override
+    public synchronized List<Object[]> rows() {
+        List<Record> res = new ArrayList<>(records.values());
+        if (order != null) res.sort(order);
+        else res.sort(Comparator.comparingInt(r -> r.id));
+
+        return res.stream()
+                .skip(offset)
+                .limit(limit)
+                .map(this::project)
+                .toList();
+    }
+
+    @Override
+    void reset(Snapshot snap, List<Object[]> removed, List<Object[]> added) {
+        for (Record r : records.values()) removed.add(project(r));
+        records.clear();
+        snap.stream().filter(match).forEach(r -> {
+            records.put(r.id, r);
+            added.add(project(r));
+        });
+    }
+
+    @Override
+    void apply(Record old, Record r, List<Object[]> removed, List<Object[]> added) {
+        Object[] before = old != null && records.remove(old.id) != null ? project(old) : null;
+        Object[] after = null;
+        if (r != null && match.test(r)) {
+            records.put(r.id, r);
+            after = project(r);
+        }
+
+        // Изменение полей, не попавших в проекцию, подписчикам не видно
+        if (before != null && after != null && Arrays.equals(before, after)) return;
+        if (before != null) removed.add(before);
+        if (after != null) added.add(after);
+    }
+
+    private Object[] project(Record r) {
+        Object[] row = new Object[fields.length];
+        for (int i = 0; i < fields.length; i++) row[i] = Record.field(r, fields[i]);
+        return row;
+    }
+}
@@ -0,0 +1,237 @@
+package model;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+// Точки заказа и набор товаров с низким остатком:
+//   ReorderAlerts alerts = db.openReorderAlerts(5);   // порог по умолчанию
+//   alerts.setThreshold(42, 20);                       // свой порог товара
+//   alerts.subscribe(a -> { if (a.type == ReorderAlerts.Type.LOW) order(a.record); });
+// Товар в наборе, пока quantity < порога. Набор меняется на каждом коммите по изменённым записям,
+// поэтому список и число товаров к заказу стоят O(k) и O(1), а не просмотр таблицы.
+// При пересечении порога создаётся событие; подписчики получают события по порядку в отдельном
+// потоке, поэтому обработчик может сам вызывать supply().
+// Свои пороги хранятся в файле <база>.reorder: "IMSR" | версия | IV | AES-GCM( число | id | порог ... )
+public class ReorderAlerts implements AutoCloseable {
+
+    static final int VERSION = 1;
+    static final byte[] MAGIC = {'I', 'M', 'S', 'R'};
+
+    public enum Type { LOW, RESTOCKED }
+
+    public static final class Alert {
+        public final Type type;
+        // Версия коммита, в котором остаток пересёк порог
+        public final long version;
+        public final Record record;
+        public final int threshold;
+
+        Alert(Type type, long version, Record record, int threshold) {
+            this.type = type;
+            this.version = version;
+            this.record = record;
+            this.threshold = threshold;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + record + " (порог " + threshold + ")";
+        }
+    }
+
+    private final Database db;
+    private final File file;
+    private final SecretKeySpec key;
+    private final int defaultThreshold;
+    private final Map<Integer, Integer> thresholds = new HashMap<>();
+    private boolean dirty;
+
+    // Товары ниже порога с их текущими версиями
+    private final Map<Integer, Record> low = new LinkedHashMap<>();
+
+    private final List<Consumer<Alert>> subscribers = new CopyOnWriteArrayList<>();
+    private final LinkedBlockingQueue<Alert> queue = new LinkedBlockingQueue<>();
+    private final Thread dispatcher;
+    private volatile boolean closed;
+
+    ReorderAlerts(Database db, File file, SecretKeySpec key, int defaultThreshold) throws IOException {
+        this.db = db;
+        this.file = file;
+        this.key = key;
+        this.defaultThreshold = defaultThreshold;
+        read();
+
+        dispatcher = new Thread(this::dispatch, "reorder-alerts");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    public void subscribe(Consumer<Alert> subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    public void unsubscribe(Consumer<Alert> subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    public int getDefaultThreshold() {
+        return defaultThreshold;
+    }
+
+    public synchronized int getThreshold(int id) {
+        return thresholds.getOrDefault(id, defaultThreshold);
+    }
+
+    // Свой порог товара; товар сразу попадает в набор или выходит из него
+    public void setThreshold(int id, int threshold) {
+        db.reorderThresholdChanged(this, id, threshold);
+    }
+
+    // Порог по умолчанию для товара
+    public void resetThreshold(int id) {
+        db.reorderThresholdChanged(this, id, null);
+    }
+
+    public synchronized List<Record> lowStock() {
+        return new ArrayList<>(low.values());
+    }
+
+    public synchronized int count() {
+        return low.size();
+    }
+
+    public synchronized boolean isLow(int id) {
+        return low.containsKey(id);
+    }
+
+    // Все товары с одним порогом — набор отвечает и на запрос getLowStockCount(threshold)
+    synchronized boolean isUniform(int threshold) {
+        return thresholds.isEmpty() && defaultThreshold == threshold;
+    }
+
+    // Начальный набор; вызывается под commit-локом базы
+    synchronized void reset(List<Record> records) {
+        low.clear();
+        for (Record r : records)
+            if (r.quantity < getThreshold(r.id)) low.put(r.id, r);
+    }
+
+    // Вызывается под commit-локом базы: changes — пары {старая, новая} версия записи
+    synchronized void commit(long version, List<Record[]> changes) {
+        for (Record[] c : changes) {
+            if (c[1] == null) {
+                low.remove(c[0].id);
+                continue;
+            }
+            check(version, c[1]);
+        }
+    }
+
+    // Вызывается под commit-локом базы; r — текущая версия записи или null
+    synchronized void setThreshold(long version, int id, Integer threshold, Record r) {
+        if (threshold == null) dirty |= thresholds.remove(id) != null;
+        else dirty |= !threshold.equals(thresholds.put(id, threshold));
+        if (r != null) check(version, r);
+    }
+
+    private void check(long version, Record r) {
+        int threshold = getThreshold(r.id);
+        boolean isLow = r.quantity < threshold;
+        boolean wasLow = isLow ? low.put(r.id, r) != null : low.remove(r.id) != null;
+        if (isLow != wasLow && !subscribers.isEmpty())
+            queue.add(new Alert(isLow ? Type.LOW : Type.RESTOCKED, version, r, threshold));
+    }
+
+    private void dispatch() {
+        try {
+            while (!closed || !queue.isEmpty()) {
+                Alert a = queue.take();
+                // Пустое событие от close() только будит поток
+                if (a.record == null) continue;
+                for (Consumer<Alert> s : subscribers) {
+                    try {
+                        s.accept(a);
+                    } catch (RuntimeException e) {
+                        db.log("REORDER ALERT handler failed: " + e.getMessage());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void read() throws IOException {
+        if (!file.exists()) return;
+        byte[] raw = Files.readAllBytes(file.toPath());
+        int header = MAGIC.length + 1 + PageFile.IV_SIZE;
+        if (raw.length < header || !Arrays.equals(raw, 0, MAGIC.length, MAGIC, 0, MAGIC.length) || raw[MAGIC.length] != VERSION)
+            throw new IOException("Неизвестный формат файла точек заказа: " + file);
+
+        try {
+            byte[] plain = PageFile.decrypt(key, Arrays.copyOfRange(raw, MAGIC.length + 1, header),
+                    ByteBuffer.wrap(raw, header, raw.length - header));
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain));
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) thresholds.put(in.readInt(), in.readInt());
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Ошибка при расшифровке точек заказа", e);
+        }
+    }
+
+    // Пороги пишутся при save(), если менялись
+    void save() throws IOException {
+        byte[] plain;
+        synchronized (this) {
+            if (!dirty) return;
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buf);
+            out.writeInt(thresholds.size());
+            for (Map.Entry<Integer, Integer> e : thresholds.entrySet()) {
+                out.writeInt(e.getKey());
+                out.writeInt(e.getValue());
+            }
+            plain = buf.toByteArray();
+            dirty = false;
+        }
+
+        File tmp = new File(file + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            byte[] iv = PageFile.newIv();
+            out.write(MAGIC);
+            out.write(VERSION);
+            out.write(iv);
+            out.write(PageFile.encrypt(key, iv, plain));
+        } catch (GeneralSecurityException | IOException e) {
+            tmp.delete();
+            synchronized (this) {
+                dirty = true;
+            }
+            throw new IOException("Ошибка при шифровании точек заказа", e);
+        }
+        Files.move(tmp.toPath(), Path.of(file.getPath()), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Сохраняет пороги и дожидается доставки уже созданных событий
+    @Override
+    public void close() throws IOException {
+        db.drop(this);
+        closed = true;
+        queue.add(new Alert(Type.LOW, 0, null, 0));
+        try {
+            dispatcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        save();
+    }
+}
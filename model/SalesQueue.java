@@ -0,0 +1,177 @@
+package model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Очередь продаж и поставок с одним писателем:
+//   SalesQueue q = db.openSalesQueue(65536, 1024, true);
+//   q.sell(id, 2).thenAccept(ok -> ...);   // true — принято, false — нет записи или не хватает товара
+// Производители без блокировок занимают номер в кольцевом буфере (CAS) и кладут событие в ячейку.
+// Поток-писатель забирает события пачками до maxBatch и применяет пачку одним коммитом:
+// одна запись в журнал, одно уведомление слушателей и, если нужно, один save() на пачку.
+// Будущие результаты завершаются после сохранения пачки. При заполненном буфере производители ждут.
+// Пустая очередь не тратит процессор: писатель спит в park, производитель будит его после записи в ячейку
+public class SalesQueue implements AutoCloseable {
+
+    static final class Sale {
+        final boolean sell;
+        final int id;
+        final int amount;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        Sale(boolean sell, int id, int amount) {
+            this.sell = sell;
+            this.id = id;
+            this.amount = amount;
+        }
+    }
+
+    private final Database db;
+    private final int maxBatch;
+    private final boolean saveEachBatch;
+
+    private final AtomicReferenceArray<Sale> slots;
+    // Следующий свободный номер; после close() хранится как ~номер, и новые события не принимаются
+    private final AtomicLong claimed = new AtomicLong();
+    // Все номера меньше consumed писатель уже забрал, их ячейки свободны
+    private volatile long consumed;
+
+    private final Thread writer;
+    // Писатель спит или собирается заснуть; производитель, увидевший true, будит его
+    private volatile boolean sleeping;
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+
+    SalesQueue(Database db, int capacity, int maxBatch, boolean saveEachBatch) {
+        if (capacity < 1 || maxBatch < 1) throw new IllegalArgumentException("Размер буфера и пачки должен быть больше 0");
+        this.db = db;
+        this.maxBatch = maxBatch;
+        this.saveEachBatch = saveEachBatch;
+        this.slots = new AtomicReferenceArray<>(capacity);
+
+        writer = new Thread(this::drain, "sales-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public CompletableFuture<Boolean> sell(int id, int amount) {
+        return offer(new Sale(true, id, amount));
+    }
+
+    public CompletableFuture<Boolean> supply(int id, int amount) {
+        return offer(new Sale(false, id, amount));
+    }
+
+    private CompletableFuture<Boolean> offer(Sale sale) {
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq < 0) {
+                sale.result.completeExceptionally(new IllegalStateException("Очередь продаж закрыта"));
+                return sale.result;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+
+        // Ячейка занята событием, которое писатель ещё не забрал
+        int capacity = slots.length();
+        for (int spins = 0; seq - capacity >= consumed; spins++) {
+            if (spins < 100) Thread.onSpinWait();
+            else Thread.yield();
+        }
+
+        slots.set((int) (seq % capacity), sale);
+        if (sleeping) LockSupport.unpark(writer);
+        return sale.result;
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    // Сколько событий ждут писателя
+    public long size() {
+        long c = claimed.get();
+        return (c < 0 ? ~c : c) - consumed;
+    }
+
+    private void drain() {
+        int capacity = slots.length();
+        long next = 0;
+        List<Sale> batch = new ArrayList<>(maxBatch);
+
+        while (true) {
+            long limit = claimed.get();
+            boolean closing = limit < 0;
+            if (closing) limit = ~limit;
+
+            // Номер занят, но событие ещё не записано — пачка заканчивается на нём
+            while (batch.size() < maxBatch && next < limit) {
+                int slot = (int) (next % capacity);
+                Sale sale = slots.get(slot);
+                if (sale == null) break;
+                slots.set(slot, null);
+                batch.add(sale);
+                next++;
+            }
+
+            if (batch.isEmpty()) {
+                if (closing && next == limit) return;
+                idle((int) (next % capacity));
+                continue;
+            }
+
+            consumed = next;
+            apply(batch);
+            batch.clear();
+        }
+    }
+
+    // Флаг ставится до повторной проверки ячейки: производитель либо увидит флаг и разбудит
+    // писателя, либо запишет событие раньше проверки. Ложные пробуждения безвредны
+    private void idle(int slot) {
+        sleeping = true;
+        if (slots.get(slot) == null) LockSupport.park(this);
+        sleeping = false;
+    }
+
+    private void apply(List<Sale> batch) {
+        boolean[] accepted;
+        try {
+            accepted = db.applySales(batch);
+            if (saveEachBatch) db.save();
+        } catch (IOException | RuntimeException e) {
+            for (Sale sale : batch) sale.result.completeExceptionally(e);
+            return;
+        }
+
+        batches.incrementAndGet();
+        processed.addAndGet(batch.size());
+        for (int i = 0; i < batch.size(); i++) batch.get(i).result.complete(accepted[i]);
+    }
+
+    // Новые события не принимаются, уже принятые применяются до конца
+    @Override
+    public void close() {
+        long c;
+        do {
+            c = claimed.get();
+            if (c < 0) break;
+        } while (!claimed.compareAndSet(c, ~c));
+        LockSupport.unpark(writer);
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,706 @@
+package model;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+class Shard {
+
+    static final String FORMAT_V2 = "#v2";
+
+    final int index;
+    final String file;
+    private final StringDictionary dict;
+    private final Object commitLock;
+
+    // Для каждого id хранится цепочка версий от новой к старой; record == null означает удаление
+    private final Map<Integer, Version> table = new ConcurrentHashMap<>();
+    private final Map<String, Set<Integer>> nameIndex = new ConcurrentHashMap<>();
+    private final Map<Integer, Set<Integer>> supplierIndex = new ConcurrentHashMap<>();
+    private final TextIndex nameText = new TextIndex();
+    private final TextIndex supplierText = new TextIndex();
+    // Индексы по числовым полям, созданные советником индексов (Database.createIndex)
+    private final Map<String, FieldIndex> fieldIndexes = new ConcurrentHashMap<>();
+
+    // Изменяются только под commit-локом базы
+    private final Set<Integer> pending = new HashSet<>();
+    private final Set<Integer> stale = new HashSet<>();
+    private volatile int live;
+
+    // Файл, подключённый лениво (см. attach): страницы расшифровываются при первом обращении
+    // и попадают в таблицу с версией загрузки. null — все записи уже в таблице
+    private volatile PageFile paged;
+    private AtomicIntegerArray loaded;
+    private int unloaded;
+    private long pagedVersion;
+    // Индексы подключённого файла загружены из снимка (IndexFile): страницы при загрузке
+    // не индексируются, а поиск по индексу загружает только страницы найденных id
+    private volatile boolean pagedIndexed;
+
+    // Дисковое хранилище (Database.onDisk): в таблице остаются только версии, которые ещё нужны
+    // снимкам; остальное переносится в B+деревья при сборке мусора. null — все записи в памяти
+    private volatile TreeStore base;
+    private static final int SCAN_BATCH = 256;
+
+    static final class Version {
+        final Record record;
+        final long version;
+        volatile Version prev;
+
+        Version(Record record, long version, Version prev) {
+            this.record = record;
+            this.version = version;
+            this.prev = prev;
+        }
+    }
+
+    Shard(int index, String file, StringDictionary dict, Object commitLock) {
+        this.index = index;
+        this.file = file;
+        this.dict = dict;
+        this.commitLock = commitLock;
+    }
+
+    // Вызывается под commit-локом; версии в таблице относились к прежнему хранилищу
+    void open(TreeStore store) {
+        base = store;
+        table.clear();
+        pending.clear();
+        stale.clear();
+        live = (int) store.size();
+    }
+
+    TreeStore store() {
+        return base;
+    }
+
+    boolean isEmpty() {
+        return live == 0 && paged == null;
+    }
+
+    // Вызывается под commit-локом для пустого шарда: в таблицу пока не попадает ни одной записи.
+    // indexes — снимок индексов файла или null, тогда индексы строятся при загрузке страниц
+    void attach(PageFile pf, long version, Map<String, Map<String, int[]>> indexes) throws IOException {
+        if (pf.pages.length == 0) {
+            pf.close();
+            return;
+        }
+        loaded = new AtomicIntegerArray(pf.pages.length);
+        unloaded = pf.pages.length;
+        pagedVersion = version;
+        live += pf.totalRows();
+
+        Map<String, int[]> names = indexes == null ? null : indexes.get("name");
+        Map<String, int[]> supplierIds = indexes == null ? null : indexes.get("supplier");
+        if (names != null && supplierIds != null) {
+            names.forEach((name, ids) -> restoreIndex(nameIndex, nameText, name, name, ids));
+            supplierIds.forEach((supplier, ids) -> restoreIndex(supplierIndex, supplierText, dict.encode(supplier), supplier, ids));
+            pagedIndexed = true;
+        }
+
+        // Индекс советника без раздела в снимке не знает записей файла: он убирается,
+        // и база строит его заново (Database.restoreIndexes)
+        for (String field : new ArrayList<>(fieldIndexes.keySet())) {
+            Map<String, int[]> keys = indexes == null ? null : indexes.get(FieldIndex.section(field));
+            if (keys == null) fieldIndexes.remove(field);
+        }
+        if (indexes != null) {
+            for (Map.Entry<String, Map<String, int[]>> e : indexes.entrySet()) {
+                String field = FieldIndex.fieldOf(e.getKey());
+                if (field == null) continue;
+                FieldIndex fi = new FieldIndex(field);
+                e.getValue().forEach((key, ids) -> fi.restore(Double.parseDouble(key), ids));
+                fi.ready = true;
+                fieldIndexes.put(field, fi);
+            }
+        }
+        paged = pf;
+    }
+
+    // Содержимое снимка индексов для записей, сохраняемых в файл шарда; fields — поля индексов советника
+    static Map<String, Map<String, List<Integer>>> indexSections(List<Record> records, Collection<String> fields) {
+        Map<String, List<Integer>> names = new HashMap<>();
+        Map<String, List<Integer>> supplierIds = new HashMap<>();
+        for (Record r : records) {
+            names.computeIfAbsent(r.name, k -> new ArrayList<>()).add(r.id);
+            supplierIds.computeIfAbsent(r.supplier, k -> new ArrayList<>()).add(r.id);
+        }
+
+        Map<String, Map<String, List<Integer>>> sections = new LinkedHashMap<>();
+        sections.put("name", names);
+        sections.put("supplier", supplierIds);
+        for (String field : fields) {
+            FieldIndex fi = new FieldIndex(field);
+            Map<String, List<Integer>> keys = new HashMap<>();
+            for (Record r : records) keys.computeIfAbsent(Double.toString(fi.key(r)), k -> new ArrayList<>()).add(r.id);
+            sections.put(FieldIndex.section(field), keys);
+        }
+        return sections;
+    }
+
+    // Поля готовых индексов советника
+    Set<String> fieldIndexNames() {
+        Set<String> res = new TreeSet<>();
+        fieldIndexes.forEach((field, fi) -> {
+            if (fi.ready) res.add(field);
+        });
+        return res;
+    }
+
+    private static <K> void restoreIndex(Map<K, Set<Integer>> index, TextIndex text, K key, String value, int[] ids) {
+        Set<Integer> set = ConcurrentHashMap.newKeySet(ids.length);
+        for (int id : ids) set.add(id);
+        if (index.putIfAbsent(key, set) == null) text.add(value);
+        else index.get(key).addAll(set);
+    }
+
+    // Точным индексам нужны все записи шарда, если их не дал снимок индексов
+    private void ensureIndexed() {
+        if (!pagedIndexed) ensureAll();
+    }
+
+    // Загружает страницу, которая может содержать id
+    private void ensure(int id) {
+        PageFile pf = paged;
+        if (pf == null || table.containsKey(id)) return;
+        int page = pf.pageOf(id);
+        if (page >= 0) fault(pf, page);
+    }
+
+    // Загружает страницы, пересекающиеся с [lo, hi]; несколько страниц расшифровываются параллельно
+    private void ensure(int lo, int hi) {
+        PageFile pf = paged;
+        if (pf == null) return;
+        IntStream.range(0, pf.pages.length)
+                .parallel()
+                .filter(i -> pf.pages[i].maxId >= lo && pf.pages[i].minId <= hi)
+                .forEach(i -> fault(pf, i));
+    }
+
+    void ensureAll() {
+        ensure(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    // Страниц лениво подключённого файла, которые ещё не расшифрованы
+    int unloadedPages() {
+        synchronized (commitLock) {
+            return paged == null ? 0 : unloaded;
+        }
+    }
+
+    private void fault(PageFile pf, int page) {
+        if (loaded.get(page) != 0) return;
+
+        List<Record> rows;
+        try {
+            rows = pf.read(page, dict);
+        } catch (IOException e) {
+            // Файл закрывается, когда другой поток загрузил последнюю страницу
+            if (loaded.get(page) != 0) return;
+            throw new UncheckedIOException(e);
+        }
+
+        synchronized (commitLock) {
+            if (loaded.get(page) != 0) return;
+
+            // Запись из файла ложится поверх удалений, сделанных до загрузки
+            for (Record r : rows) {
+                Version head = table.get(r.id);
+                if (head != null && head.version >= pagedVersion) continue;
+                table.put(r.id, new Version(r, pagedVersion, head));
+                if (!pagedIndexed) indexRecord(r);
+                for (FieldIndex fi : fieldIndexes.values()) fi.add(r);
+                if (head != null) pending.add(r.id);
+            }
+
+            loaded.set(page, 1);
+            if (--unloaded == 0) {
+                paged = null;
+                try {
+                    pf.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    private static Record visible(Version v, long at) {
+        while (v != null && v.version > at) v = v.prev;
+        return v == null ? null : v.record;
+    }
+
+    // Запись из хранилища видна всем снимкам, если её id нет в таблице: в хранилище попадают
+    // версии старше самого старого снимка, а более новые (см. persist) остаются и в таблице.
+    // Повторная проверка таблицы ловит версию, установленную и сохранённую во время чтения
+    private Version head(int id) {
+        Version head = table.get(id);
+        if (head != null || base == null) return head;
+        Record r = base.get(id);
+        head = table.get(id);
+        if (head != null) return head;
+        return r == null ? null : new Version(r, 0, null);
+    }
+
+    // Вызывается под commit-локом перед записью хранилища на диск: последние версии из таблицы
+    // пишутся в хранилище, но остаются в таблице, пока нужны открытым снимкам
+    void persist() {
+        for (Map.Entry<Integer, Version> e : table.entrySet()) {
+            Record r = e.getValue().record;
+            if (r == null) base.remove(e.getKey());
+            else base.put(r);
+        }
+    }
+
+    Record get(int id, long at) {
+        ensure(id);
+        return visible(head(id), at);
+    }
+
+    Record latest(int id) {
+        ensure(id);
+        Version head = head(id);
+        return head == null ? null : head.record;
+    }
+
+    int size() {
+        return live;
+    }
+
+    Set<Integer> ids() {
+        if (base != null) {
+            Set<Integer> ids = new HashSet<>();
+            merged(Long.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE).forEach(r -> ids.add(r.id));
+            return ids;
+        }
+        ensureAll();
+        return table.keySet();
+    }
+
+    // Вызывается под commit-локом; старая версия остаётся в цепочке до сборки мусора.
+    // Возвращает прежнюю версию записи
+    Record install(int id, Record r, long version) {
+        ensure(id);
+        Version head = head(id);
+        Record old = head == null ? null : head.record;
+        if (old == null && r == null) return null;
+
+        if (r != null) r = dict.encode(r);
+        table.put(id, new Version(r, version, head));
+        if (r != null && base == null) {
+            indexRecord(r);
+            for (FieldIndex fi : fieldIndexes.values()) fi.add(r);
+        }
+        if (head != null || base != null) pending.add(id);
+
+        if (old == null) live++;
+        if (r == null) live--;
+        return old;
+    }
+
+    // Сборка мусора только по id, изменённым с прошлого вызова
+    void collectPending(long oldest) {
+        for (int id : pending)
+            if (prune(id, oldest)) stale.add(id);
+        pending.clear();
+    }
+
+    // Полная сборка: вызывается, когда освобождается самый старый снимок
+    void collectAll(long oldest) {
+        collectPending(oldest);
+        stale.removeIf(id -> !prune(id, oldest));
+    }
+
+    // Отрезает версии, невидимые ни одному снимку; true, если в цепочке ещё остались старые версии
+    private boolean prune(int id, long oldest) {
+        Version head = table.get(id);
+        Version keep = head;
+        while (keep != null && keep.version > oldest) keep = keep.prev;
+        if (keep == null) return false;
+
+        Version dropped = keep.prev;
+        keep.prev = null;
+
+        // Версия, видимая всем снимкам, уходит в хранилище: сначала запись в B+дерево, затем
+        // удаление из таблицы, поэтому читатель без блокировок найдёт её хотя бы в одном месте
+        if (base != null) {
+            if (keep != head) return true;
+            if (head.record == null) base.remove(id);
+            else base.put(head.record);
+            table.remove(id, head);
+            return false;
+        }
+
+        boolean removed = keep == head && head.record == null && table.remove(id, head);
+
+        for (Version d = dropped; d != null; d = d.prev) {
+            if (d.record == null) continue;
+            if (removed || !retains(head, d.record.name, r -> r.name))
+                unindex(nameIndex, nameText, d.record.name, d.record.name, id);
+            if (removed || !retains(head, d.record.supplierCode, r -> r.supplierCode))
+                unindex(supplierIndex, supplierText, d.record.supplierCode, d.record.supplier, id);
+            for (FieldIndex fi : fieldIndexes.values())
+                if (removed || !retains(head, fi.key(d.record), fi::key)) fi.remove(d.record);
+        }
+
+        return keep != head;
+    }
+
+    private <K> boolean retains(Version head, K key, Function<Record, K> field) {
+        for (Version v = head; v != null; v = v.prev)
+            if (v.record != null && field.apply(v.record).equals(key)) return true;
+        return false;
+    }
+
+    Iterator<Record> iterator(long at) {
+        if (base != null) return merged(at, Integer.MIN_VALUE, Integer.MAX_VALUE).iterator();
+        ensureAll();
+        Iterator<Version> it = table.values().iterator();
+
+        return new Iterator<>() {
+            private Record next = advance();
+
+            private Record advance() {
+                while (it.hasNext()) {
+                    Record r = visible(it.next(), at);
+                    if (r != null) return r;
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Record next() {
+                if (next == null) throw new NoSuchElementException();
+                Record r = next;
+                next = advance();
+                return r;
+            }
+        };
+    }
+
+    Stream<Record> stream(long at) {
+        if (base != null) return merged(at, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        ensureAll();
+        return table.values().stream()
+                .map(v -> visible(v, at))
+                .filter(Objects::nonNull);
+    }
+
+    // Записи с id из [lo, hi]; расшифровываются только страницы этого диапазона
+    Stream<Record> stream(long at, int lo, int hi) {
+        if (base != null) return merged(at, lo, hi);
+        if (lo == Integer.MIN_VALUE && hi == Integer.MAX_VALUE) return stream(at);
+
+        ensure(lo, hi);
+        return table.values().stream()
+                .map(v -> visible(v, at))
+                .filter(r -> r != null && r.id >= lo && r.id <= hi);
+    }
+
+    // Таблица копируется раньше, чем читается хранилище, а при переносе версия сначала пишется
+    // в хранилище: запись, перенесённая во время чтения, попадёт хотя бы в одну из двух частей
+    private Stream<Record> merged(long at, int lo, int hi) {
+        Map<Integer, Version> recent = new HashMap<>(table);
+
+        Iterator<Record> stored = new Iterator<>() {
+            private long from = lo;
+            private Iterator<Record> batch = Collections.emptyIterator();
+            private boolean done;
+
+            @Override
+            public boolean hasNext() {
+                while (!batch.hasNext() && !done) {
+                    List<Record> rows = base.scan(from, hi, SCAN_BATCH);
+                    if (rows.size() < SCAN_BATCH) done = true;
+                    if (!rows.isEmpty()) from = rows.get(rows.size() - 1).id + 1L;
+
+                    List<Record> res = new ArrayList<>(rows.size());
+                    for (Record r : rows) {
+                        if (recent.containsKey(r.id)) continue;
+                        Version v = table.get(r.id);
+                        Record visible = v == null ? r : visible(v, at);
+                        if (visible != null) res.add(visible);
+                    }
+                    batch = res.iterator();
+                }
+                return batch.hasNext();
+            }
+
+            @Override
+            public Record next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return batch.next();
+            }
+        };
+
+        return Stream.concat(
+                StreamSupport.stream(Spliterators.spliteratorUnknownSize(stored,
+                        Spliterator.ORDERED | Spliterator.NONNULL), false),
+                recent.values().stream()
+                        .map(v -> visible(v, at))
+                        .filter(r -> r != null && r.id >= lo && r.id <= hi));
+    }
+
+    // Кандидаты из индекса хранилища и из таблицы проверяются по видимой версии записи
+    private List<Record> lookupStored(Function<TreeStore, List<Integer>> index, Predicate<Record> match, long at) {
+        Set<Integer> ids = new HashSet<>(table.keySet());
+        ids.addAll(index.apply(base));
+
+        List<Record> res = new ArrayList<>();
+        for (int id : ids) {
+            Record r = get(id, at);
+            if (r != null && match.test(r)) res.add(r);
+        }
+        return res;
+    }
+
+    List<Record> byName(String name, long at) {
+        if (base != null) return lookupStored(store -> store.byName(name), r -> r.name.equals(name), at);
+        ensureIndexed();
+        return lookup(nameIndex, name, at, r -> r.name);
+    }
+
+    // Регистрирует индекс советника: с этого момента его пополняют install и загрузка страниц.
+    // null — индекс по полю уже есть
+    FieldIndex addFieldIndex(String field) {
+        FieldIndex fi = new FieldIndex(field);
+        return fieldIndexes.putIfAbsent(field, fi) == null ? fi : null;
+    }
+
+    // Заполняет индекс по таблице, не останавливая читателей и писателей. Версии одного id
+    // перебираются под локом индекса, а сборка мусора удаляет ключ только после того, как
+    // отрезала версию, поэтому в индексе не останется ключа отрезанной версии
+    void build(FieldIndex fi) {
+        ensureAll();
+        for (int id : table.keySet()) {
+            synchronized (fi) {
+                for (Version v = table.get(id); v != null; v = v.prev)
+                    if (v.record != null) fi.add(v.record);
+            }
+        }
+        fi.ready = true;
+    }
+
+    void dropFieldIndex(String field) {
+        fieldIndexes.remove(field);
+    }
+
+    // Кандидаты по индексу советника; null — готового индекса нет, нужен полный просмотр
+    List<Record> byIndex(String field, String op, double value, long at) {
+        FieldIndex fi = fieldIndexes.get(field);
+        if (fi == null || !fi.ready || base != null) return null;
+
+        Set<Integer> ids = fi.find(op, value);
+        if (ids == null) return null;
+        List<Record> res = new ArrayList<>(ids.size());
+        for (int id : ids) {
+            Record r = get(id, at);
+            if (r != null) res.add(r);
+        }
+        return res;
+    }
+
+    List<Record> bySupplier(String supplier, long at) {
+        if (base != null) return lookupStored(store -> store.bySupplier(supplier), r -> r.supplier.equals(supplier), at);
+        int code = dict.lookup(supplier);
+        if (code < 0) return List.of();
+        ensureIndexed();
+        return lookup(supplierIndex, code, at, r -> r.supplierCode);
+    }
+
+    // Записи, у которых поле name или supplier подходит под шаблон LIKE
+    List<Record> like(String field, String pattern, long at) {
+        if (base != null) return filter(r -> TextIndex.like(pattern, String.valueOf(Record.field(r, field))), at);
+        ensureIndexed();
+        List<Record> res = new ArrayList<>();
+        switch (field) {
+            case "name" -> {
+                for (String value : nameText.match(pattern))
+                    res.addAll(byName(value, at));
+            }
+            case "supplier" -> {
+                for (String value : supplierText.match(pattern))
+                    res.addAll(bySupplier(value, at));
+            }
+            default -> {
+                return filter(r -> TextIndex.like(pattern, String.valueOf(Record.field(r, field))), at);
+            }
+        }
+        return res;
+    }
+
+    // Различные значения поля с данным префиксом (без учёта регистра); могут включать
+    // значения, ещё не собранные после удаления, поэтому используются только для подсказок
+    List<String> complete(String field, String prefix, int limit) {
+        // В дисковом режиме текстового индекса нет: значения ищутся просмотром шарда
+        if (base != null && (field.equals("name") || field.equals("supplier")))
+            return merged(Long.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE)
+                    .map(r -> String.valueOf(Record.field(r, field)))
+                    .filter(v -> TextIndex.like(prefix + "%", v))
+                    .distinct()
+                    .limit(limit)
+                    .toList();
+        ensureIndexed();
+        return switch (field) {
+            case "name"     -> nameText.complete(prefix, limit);
+            case "supplier" -> supplierText.complete(prefix, limit);
+            default         -> List.of();
+        };
+    }
+
+    List<Record> filter(Predicate<Record> p, long at) {
+        if (base != null) return merged(at, Integer.MIN_VALUE, Integer.MAX_VALUE).filter(p).collect(Collectors.toList());
+        ensureAll();
+        List<Record> res = new ArrayList<>();
+        for (Version v : table.values()) {
+            Record r = visible(v, at);
+            if (r != null && p.test(r)) res.add(r);
+        }
+        return res;
+    }
+
+    List<Record> sorted(Predicate<Record> p, Comparator<Record> cmp, long at) {
+        List<Record> list = filter(p, at);
+        list.sort(cmp);
+        return list;
+    }
+
+    // Первые k записей по cmp: куча из k элементов вместо сортировки всего шарда
+    static List<Record> top(Stream<Record> rows, Predicate<Record> p, Comparator<Record> cmp, int k) {
+        if (k <= 0) return List.of();
+
+        PriorityQueue<Record> heap = new PriorityQueue<>(k, cmp.reversed());
+        for (Iterator<Record> it = rows.iterator(); it.hasNext(); ) {
+            Record r = it.next();
+            if (!p.test(r)) continue;
+
+            if (heap.size() < k) {
+                heap.add(r);
+            } else if (cmp.compare(r, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(r);
+            }
+        }
+
+        List<Record> res = new ArrayList<>(heap);
+        res.sort(cmp);
+        return res;
+    }
+
+    // Формат v2: словарь поставщиков записывается один раз в начале файла,
+    // в строках записей вместо поставщика хранится его номер в этом словаре.
+    // Файлы старого формата (поставщик строкой в каждой записи) читаются как раньше
+    static List<Record> parse(BufferedReader br, StringDictionary dict) throws IOException {
+        List<Record> res = new ArrayList<>();
+        String line = br.readLine();
+        if (line == null) return res;
+
+        if (!line.equals(FORMAT_V2)) {
+            do {
+                if (!line.isEmpty()) res.add(dict.encode(Record.fromString(line)));
+            } while ((line = br.readLine()) != null);
+            return res;
+        }
+
+        List<Integer> local = new ArrayList<>();
+        while ((line = br.readLine()) != null) {
+            if (line.isEmpty()) continue;
+
+            if (line.charAt(0) == '@') {
+                local.add(dict.encode(line.substring(1)));
+                continue;
+            }
+
+            String[] p = line.split(";");
+            int code = local.get(Integer.parseInt(p[4]));
+            res.add(new Record(
+                    Integer.parseInt(p[0]),
+                    p[1],
+                    Integer.parseInt(p[2]),
+                    Double.parseDouble(p[3]),
+                    dict.decode(code),
+                    code
+            ));
+        }
+        return res;
+    }
+
+    // Записи версии at по возрастанию id, как их хранит страничный формат
+    List<Record> sortedById(long at) {
+        return sorted(r -> true, Comparator.comparingInt(r -> r.id), at);
+    }
+
+    // Два прохода по одной версии: сначала словарь поставщиков, затем сами записи
+    void write(Writer w, long at) throws IOException {
+        Map<String, Integer> local = new HashMap<>();
+        w.write(FORMAT_V2);
+        w.write('\n');
+        for (Iterator<Record> it = iterator(at); it.hasNext(); ) {
+            Record r = it.next();
+            if (local.containsKey(r.supplier)) continue;
+            local.put(r.supplier, local.size());
+            w.write('@');
+            w.write(r.supplier);
+            w.write('\n');
+        }
+
+        for (Iterator<Record> it = iterator(at); it.hasNext(); ) {
+            Record r = it.next();
+            w.write(r.id + ";" + r.name + ";" + r.quantity + ";" + r.price + ";" + local.get(r.supplier));
+            w.write('\n');
+        }
+    }
+
+    // Индекс может содержать id, у которых ключ был лишь в одной из версий, поэтому результат перепроверяется
+    private <K> List<Record> lookup(Map<K, Set<Integer>> index, K key, long at,
+                                    Function<Record, K> field) {
+        List<Record> res = new ArrayList<>();
+        Set<Integer> ids = index.get(key);
+        if (ids != null)
+            for (int id : ids) {
+                Record r = get(id, at);
+                if (r != null && field.apply(r).equals(key)) res.add(r);
+            }
+        return res;
+    }
+
+    private void indexRecord(Record r) {
+        addIndex(nameIndex, nameText, r.name, r.name, r.id);
+        addIndex(supplierIndex, supplierText, r.supplierCode, r.supplier, r.id);
+    }
+
+    // Текстовый индекс хранит только различные значения, поэтому меняется при появлении
+    // и исчезновении ключа в точном индексе
+    private static <K> void addIndex(Map<K, Set<Integer>> index, TextIndex text, K key, String value, int id) {
+        index.compute(key, (k, ids) -> {
+            if (ids == null) {
+                ids = ConcurrentHashMap.newKeySet();
+                text.add(value);
+            }
+            ids.add(id);
+            return ids;
+        });
+    }
+
+    private static <K> void unindex(Map<K, Set<Integer>> index, TextIndex text, K key, String value, int id) {
+        index.computeIfPresent(key, (k, ids) -> {
+            ids.remove(id);
+            if (!ids.isEmpty()) return ids;
+            text.remove(value);
+            return null;
+        });
+    }
+}
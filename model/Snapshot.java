@@ -0,0 +1,66 @@
+package model;
+
+import java.util.*;
+import java.util.stream.Stream;
+
+// Согласованный срез базы на момент создания; записи читаются без копирования таблицы.
+// Снимок нужно закрывать, иначе старые версии записей не будут собраны
+public final class Snapshot implements Iterable<Record>, AutoCloseable {
+
+    private final Database db;
+    private final Shard[] shards;
+    private final long version;
+    private boolean closed;
+
+    Snapshot(Database db, Shard[] shards, long version) {
+        this.db = db;
+        this.shards = shards;
+        this.version = version;
+    }
+
+    public long version() {
+        return version;
+    }
+
+    public Record get(int id) {
+        return db.shardFor(id).get(id, version);
+    }
+
+    @Override
+    public Iterator<Record> iterator() {
+        return new Iterator<>() {
+            private int shard;
+            private Iterator<Record> current = shards[0].iterator(version);
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext()) {
+                    if (++shard == shards.length) return false;
+                    current = shards[shard].iterator(version);
+                }
+                return true;
+            }
+
+            @Override
+            public Record next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return current.next();
+            }
+        };
+    }
+
+    public Stream<Record> stream() {
+        return Arrays.stream(shards).flatMap(s -> s.stream(version));
+    }
+
+    public Stream<Record> parallelStream() {
+        return Arrays.stream(shards).parallel().flatMap(s -> s.stream(version));
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        db.release(version);
+    }
+}
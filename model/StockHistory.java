@@ -0,0 +1,600 @@
+package model;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.*;
+
+// История остатков: для каждого товара ряд точек (время, количество, цена), точка пишется
+// только при изменении количества или цены. Ряд хранится сегментами по SEGMENT_POINTS точек:
+// первая точка целиком, остальные — разностями с предыдущей (varint), так точка занимает 2–4 байта.
+// У сегмента есть сводка (интервал времени, min/max/последнее количество), поэтому прореживание
+// не декодирует сегменты, целиком попадающие в один интервал.
+// Для графика общего остатка поддерживаются готовые интервалы по минутам (последние двое суток),
+// часам и дням: поступило, ушло и остаток на конец интервала.
+// Файл истории только дописывается блоками AES-GCM: "IMSH" | версия | блок... ,
+// блок = длина | IV | AES-GCM( число точек | точка... ). Блок пишется при save() и close()
+public class StockHistory implements Closeable {
+
+    static final int VERSION = 1;
+    static final byte[] MAGIC = {'I', 'M', 'S', 'H'};
+    private static final int SEGMENT_POINTS = 256;
+
+    private static final long MINUTE = 60_000L;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+    private static final long MINUTE_RETENTION = 2 * DAY;
+
+    public static final class Point {
+        public final long time;
+        public final int quantity;
+        public final double price;
+
+        Point(long time, int quantity, double price) {
+            this.time = time;
+            this.quantity = quantity;
+            this.price = price;
+        }
+
+        @Override
+        public String toString() {
+            return time + ": " + quantity + " x " + price;
+        }
+    }
+
+    // Интервал прореженного ряда товара [start, end)
+    public static final class Bucket {
+        public final long start;
+        public final long end;
+        public final int minQuantity;
+        public final int maxQuantity;
+        public final int lastQuantity;
+        public final double lastPrice;
+        // Сколько изменений было в интервале
+        public final int changes;
+
+        Bucket(long start, long end, int minQuantity, int maxQuantity, int lastQuantity, double lastPrice, int changes) {
+            this.start = start;
+            this.end = end;
+            this.minQuantity = minQuantity;
+            this.maxQuantity = maxQuantity;
+            this.lastQuantity = lastQuantity;
+            this.lastPrice = lastPrice;
+            this.changes = changes;
+        }
+    }
+
+    // Интервал графика общего остатка [start, end)
+    public static final class Trend {
+        public final long start;
+        public final long end;
+        public final long supplied;
+        public final long sold;
+        public final long quantity;
+        public final double value;
+
+        Trend(long start, long end, long supplied, long sold, long quantity, double value) {
+            this.start = start;
+            this.end = end;
+            this.supplied = supplied;
+            this.sold = sold;
+            this.quantity = quantity;
+            this.value = value;
+        }
+    }
+
+    // Сегмент ряда: первая точка и сводка хранятся полями, остальные точки — разностями в data
+    private static final class Segment {
+        final long firstTime;
+        final int firstQuantity;
+        final double firstPrice;
+        long lastTime;
+        int lastQuantity;
+        double lastPrice;
+        int minQuantity;
+        int maxQuantity;
+        int count = 1;
+        byte[] data = new byte[16];
+        int length;
+
+        Segment(long time, int quantity, double price) {
+            firstTime = lastTime = time;
+            firstQuantity = lastQuantity = minQuantity = maxQuantity = quantity;
+            firstPrice = lastPrice = price;
+        }
+
+        void add(long time, int quantity, double price) {
+            if (data.length - length < 32) data = Arrays.copyOf(data, data.length * 2);
+            length = encode(data, length, time - lastTime, quantity - lastQuantity,
+                    price == lastPrice ? null : price);
+            lastTime = time;
+            lastQuantity = quantity;
+            lastPrice = price;
+            minQuantity = Math.min(minQuantity, quantity);
+            maxQuantity = Math.max(maxQuantity, quantity);
+            count++;
+        }
+
+        void seal() {
+            data = Arrays.copyOf(data, length);
+        }
+
+        List<Point> points() {
+            List<Point> res = new ArrayList<>(count);
+            Decoder d = new Decoder(data, 0, length);
+            long time = firstTime;
+            int quantity = firstQuantity;
+            double price = firstPrice;
+            res.add(new Point(time, quantity, price));
+            for (int i = 1; i < count; i++) {
+                time += d.varLong();
+                boolean priceChanged = d.flag;
+                quantity += (int) d.zigzag();
+                if (priceChanged) price = d.price();
+                res.add(new Point(time, quantity, price));
+            }
+            return res;
+        }
+    }
+
+    private static final class Series {
+        final List<Segment> segments = new ArrayList<>();
+
+        Segment last() {
+            return segments.get(segments.size() - 1);
+        }
+
+        void add(long time, int quantity, double price) {
+            if (segments.isEmpty() || last().count == SEGMENT_POINTS) {
+                if (!segments.isEmpty()) last().seal();
+                segments.add(new Segment(time, quantity, price));
+            } else {
+                last().add(time, quantity, price);
+            }
+        }
+
+        // Последний сегмент, начавшийся не позже time, или -1
+        int floor(long time) {
+            int lo = 0, hi = segments.size() - 1, res = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (segments.get(mid).firstTime <= time) {
+                    res = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return res;
+        }
+    }
+
+    // Готовый интервал графика: поступления и расход за интервал, остаток и стоимость на его конец
+    private static final class Agg {
+        long supplied;
+        long sold;
+        long quantity;
+        double value;
+    }
+
+    private final Map<Integer, Series> series = new HashMap<>();
+    private final long[] levels = {MINUTE, HOUR, DAY};
+    private final List<TreeMap<Long, Agg>> aggregates = List.of(new TreeMap<>(), new TreeMap<>(), new TreeMap<>());
+    private long totalQuantity;
+    private double totalValue;
+    private long lastTime;
+    private long points;
+
+    // Точки, ещё не записанные в файл, в том же кодировании, что и в блоке
+    private byte[] pending = new byte[256];
+    private int pendingLength;
+    private int pendingCount;
+    private long pendingTime;
+
+    // База, которая дописывает историю при коммитах; null у истории, открытой отдельно
+    private final Database db;
+    private final File file;
+    private final SecretKeySpec key;
+    private final FileChannel channel;
+    private final Object fileLock = new Object();
+
+    StockHistory(File file, SecretKeySpec key) throws IOException {
+        this(null, file, key);
+    }
+
+    StockHistory(Database db, File file, SecretKeySpec key) throws IOException {
+        this.db = db;
+        this.file = file;
+        this.key = key;
+        boolean fresh = !file.exists() || file.length() == 0;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (fresh) {
+                ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 1).put(MAGIC).put((byte) VERSION).flip();
+                while (header.hasRemaining()) channel.write(header);
+            } else {
+                replay();
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Читает блоки файла; оборванный при сбое хвост отрезается
+    private void replay() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 1);
+        while (header.hasRemaining())
+            if (channel.read(header, header.position()) < 0) break;
+        if (header.position() < header.capacity()
+                || !Arrays.equals(header.array(), 0, MAGIC.length, MAGIC, 0, MAGIC.length)
+                || header.get(MAGIC.length) != VERSION)
+            throw new IOException("Неизвестный формат файла истории: " + file);
+
+        long offset = header.capacity();
+        long size = channel.size();
+        while (offset + 4 + PageFile.IV_SIZE <= size) {
+            ByteBuffer head = ByteBuffer.allocate(4 + PageFile.IV_SIZE);
+            read(head, offset);
+            int length = head.getInt(0);
+            if (length <= 0 || offset + head.capacity() + length > size) break;
+
+            ByteBuffer sealed = ByteBuffer.allocate(length);
+            read(sealed, offset + head.capacity());
+            byte[] plain;
+            try {
+                plain = PageFile.decrypt(key, Arrays.copyOfRange(head.array(), 4, head.capacity()), sealed.flip());
+            } catch (GeneralSecurityException e) {
+                break;
+            }
+
+            Decoder d = new Decoder(plain, 0, plain.length);
+            int count = (int) d.raw();
+            long time = 0;
+            for (int i = 0; i < count; i++) {
+                int id = (int) d.zigzag();
+                time += d.varLong();
+                boolean priceChanged = d.flag;
+                Series s = series.get(id);
+                Segment last = s == null ? null : s.last();
+                int quantity = (int) ((last == null ? 0 : last.lastQuantity) + d.zigzag());
+                double price = priceChanged || last == null ? d.price() : last.lastPrice;
+                apply(id, time, quantity, price);
+            }
+            offset += head.capacity() + length;
+        }
+        if (offset < size) channel.truncate(offset);
+    }
+
+    private void read(ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining())
+            if (channel.read(buf, offset + buf.position()) < 0) throw new EOFException("Файл истории обрезан");
+    }
+
+    // Вызывается под commit-локом базы: changes — пары {старая, новая} версия записи
+    synchronized void append(long time, List<Record[]> changes) {
+        for (Record[] c : changes) {
+            if (c[1] != null) record(c[1].id, time, c[1].quantity, c[1].price);
+            else record(c[0].id, time, 0, c[0].price);
+        }
+    }
+
+    // Выравнивает историю с текущими записями базы: новые и изменённые получают точку,
+    // исчезнувшие — точку с нулевым остатком
+    synchronized void sync(long time, List<Record> records) {
+        Set<Integer> present = new HashSet<>(records.size() * 2);
+        for (Record r : records) {
+            present.add(r.id);
+            record(r.id, time, r.quantity, r.price);
+        }
+        for (Map.Entry<Integer, Series> e : new ArrayList<>(series.entrySet()))
+            if (!present.contains(e.getKey())) record(e.getKey(), time, 0, e.getValue().last().lastPrice);
+    }
+
+    private void record(int id, long time, int quantity, double price) {
+        Series s = series.get(id);
+        Segment last = s == null ? null : s.last();
+        if (last != null && last.lastQuantity == quantity && last.lastPrice == price) return;
+
+        time = Math.max(time, lastTime);
+        if (pending.length - pendingLength < 48) pending = Arrays.copyOf(pending, pending.length * 2);
+        pendingLength = putZigzag(pending, pendingLength, id);
+        pendingLength = encode(pending, pendingLength, time - pendingTime,
+                quantity - (last == null ? 0 : last.lastQuantity),
+                last == null || last.lastPrice != price ? price : null);
+        pendingTime = time;
+        pendingCount++;
+
+        apply(id, time, quantity, price);
+    }
+
+    private void apply(int id, long time, int quantity, double price) {
+        Series s = series.computeIfAbsent(id, k -> new Series());
+        int oldQuantity = 0;
+        double oldPrice = 0;
+        if (!s.segments.isEmpty()) {
+            oldQuantity = s.last().lastQuantity;
+            oldPrice = s.last().lastPrice;
+        }
+        s.add(time, quantity, price);
+        lastTime = Math.max(lastTime, time);
+        points++;
+
+        long delta = quantity - oldQuantity;
+        totalQuantity += delta;
+        totalValue += quantity * price - oldQuantity * oldPrice;
+        for (int l = 0; l < levels.length; l++) {
+            Agg a = aggregates.get(l).computeIfAbsent(time - Math.floorMod(time, levels[l]), k -> new Agg());
+            if (delta > 0) a.supplied += delta;
+            else a.sold -= delta;
+            a.quantity = totalQuantity;
+            a.value = totalValue;
+        }
+
+        TreeMap<Long, Agg> minutes = aggregates.get(0);
+        while (minutes.firstKey() < lastTime - MINUTE_RETENTION) minutes.pollFirstEntry();
+    }
+
+    // Точки товара в [from, to]
+    public synchronized List<Point> range(int id, long from, long to) {
+        Series s = series.get(id);
+        List<Point> res = new ArrayList<>();
+        if (s == null) return res;
+
+        for (int i = Math.max(0, s.floor(from)); i < s.segments.size(); i++) {
+            Segment seg = s.segments.get(i);
+            if (seg.firstTime > to) break;
+            if (seg.lastTime < from) continue;
+            for (Point p : seg.points())
+                if (p.time >= from && p.time <= to) res.add(p);
+        }
+        return res;
+    }
+
+    // Остаток и цена товара на момент time; null — товара тогда ещё не было
+    public synchronized Point at(int id, long time) {
+        Series s = series.get(id);
+        int i = s == null ? -1 : s.floor(time);
+        if (i < 0) return null;
+
+        Segment seg = s.segments.get(i);
+        if (seg.lastTime <= time) return new Point(seg.lastTime, seg.lastQuantity, seg.lastPrice);
+        Point res = null;
+        for (Point p : seg.points()) {
+            if (p.time > time) break;
+            res = p;
+        }
+        return res;
+    }
+
+    // Ряд товара в [from, to), прореженный до count интервалов. Интервалы, где товара ещё не было, пропускаются
+    public synchronized List<Bucket> downsample(int id, long from, long to, int count) {
+        List<Bucket> res = new ArrayList<>();
+        Series s = series.get(id);
+        if (s == null || count < 1 || to <= from) return res;
+
+        long width = Math.max(1, (to - from + count - 1) / count);
+        int n = (int) ((to - from + width - 1) / width);
+        int[] min = new int[n], max = new int[n], last = new int[n], changes = new int[n];
+        double[] price = new double[n];
+        boolean[] seen = new boolean[n];
+
+        for (int i = Math.max(0, s.floor(from)); i < s.segments.size(); i++) {
+            Segment seg = s.segments.get(i);
+            if (seg.firstTime >= to) break;
+            if (seg.lastTime < from) continue;
+
+            int b = (int) ((seg.firstTime - from) / width);
+            if (seg.firstTime >= from && b == (int) ((seg.lastTime - from) / width)) {
+                // Сегмент целиком в одном интервале — хватает сводки
+                if (!seen[b]) {
+                    min[b] = seg.minQuantity;
+                    max[b] = seg.maxQuantity;
+                } else {
+                    min[b] = Math.min(min[b], seg.minQuantity);
+                    max[b] = Math.max(max[b], seg.maxQuantity);
+                }
+                last[b] = seg.lastQuantity;
+                price[b] = seg.lastPrice;
+                changes[b] += seg.count;
+                seen[b] = true;
+                continue;
+            }
+
+            for (Point p : seg.points()) {
+                if (p.time < from || p.time >= to) continue;
+                b = (int) ((p.time - from) / width);
+                min[b] = seen[b] ? Math.min(min[b], p.quantity) : p.quantity;
+                max[b] = seen[b] ? Math.max(max[b], p.quantity) : p.quantity;
+                last[b] = p.quantity;
+                price[b] = p.price;
+                changes[b]++;
+                seen[b] = true;
+            }
+        }
+
+        // Интервал без изменений продолжает остаток предыдущего
+        Point carry = at(id, from - 1);
+        for (int b = 0; b < n; b++) {
+            long start = from + b * width;
+            long end = Math.min(to, start + width);
+            if (seen[b]) {
+                if (carry != null) {
+                    min[b] = Math.min(min[b], carry.quantity);
+                    max[b] = Math.max(max[b], carry.quantity);
+                }
+                res.add(new Bucket(start, end, min[b], max[b], last[b], price[b], changes[b]));
+                carry = new Point(end - 1, last[b], price[b]);
+            } else if (carry != null) {
+                res.add(new Bucket(start, end, carry.quantity, carry.quantity, carry.quantity, carry.price, 0));
+            }
+        }
+        return res;
+    }
+
+    // Общий остаток в [from, to), сведённый в count интервалов из готовых минутных, часовых
+    // или дневных интервалов — самых крупных, которые ещё мельче запрошенных
+    public synchronized List<Trend> trend(long from, long to, int count) {
+        List<Trend> res = new ArrayList<>();
+        if (count < 1 || to <= from) return res;
+
+        long width = Math.max(1, (to - from + count - 1) / count);
+        int level = 0;
+        for (int l = 1; l < levels.length; l++)
+            if (levels[l] <= width) level = l;
+        TreeMap<Long, Agg> minutes = aggregates.get(0);
+        if (level == 0 && !minutes.isEmpty() && from < minutes.firstKey()) level = 1;
+        TreeMap<Long, Agg> source = aggregates.get(level);
+
+        for (long start = from; start < to; start += width) {
+            long end = Math.min(to, start + width);
+            long supplied = 0, sold = 0;
+            for (Agg a : source.subMap(start, true, end, false).values()) {
+                supplied += a.supplied;
+                sold += a.sold;
+            }
+            Map.Entry<Long, Agg> last = source.lowerEntry(end);
+            res.add(new Trend(start, end, supplied, sold,
+                    last == null ? 0 : last.getValue().quantity,
+                    last == null ? 0 : last.getValue().value));
+        }
+        return res;
+    }
+
+    public synchronized long getPoints() {
+        return points;
+    }
+
+    public synchronized int getSeries() {
+        return series.size();
+    }
+
+    // Примерный объём памяти сегментов: закодированные точки и сводка
+    public synchronized long getEncodedBytes() {
+        long bytes = 0;
+        for (Series s : series.values())
+            for (Segment seg : s.segments) bytes += seg.data.length + 48;
+        return bytes;
+    }
+
+    public long getFileSize() throws IOException {
+        synchronized (fileLock) {
+            return channel.size();
+        }
+    }
+
+    // Дописывает накопленные точки одним блоком; коммиты базы ждут только обмена буфера
+    public void flush() throws IOException {
+        synchronized (fileLock) {
+            byte[] data;
+            int length, count;
+            synchronized (this) {
+                if (pendingCount == 0) return;
+                data = pending;
+                length = pendingLength;
+                count = pendingCount;
+                pending = new byte[256];
+                pendingLength = 0;
+                pendingCount = 0;
+                pendingTime = 0;
+            }
+
+            byte[] plain = new byte[length + 5];
+            int off = putVarLong(plain, 0, count);
+            System.arraycopy(data, 0, plain, off, length);
+
+            try {
+                byte[] iv = PageFile.newIv();
+                byte[] sealed = PageFile.encrypt(key, iv, Arrays.copyOf(plain, off + length));
+                ByteBuffer block = ByteBuffer.allocate(4 + iv.length + sealed.length)
+                        .putInt(sealed.length).put(iv).put(sealed).flip();
+                long at = channel.size();
+                while (block.hasRemaining()) channel.write(block, at + block.position());
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Ошибка при шифровании истории", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Закрытую историю база больше не дописывает и не сбрасывает при save()
+        if (db != null) db.drop(this);
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Точка после первой: varint(разность времени << 1 | цена изменилась), zigzag(разность количества),
+    // новая цена (8 байт), если изменилась
+    private static int encode(byte[] buf, int off, long timeDelta, int quantityDelta, Double price) {
+        off = putVarLong(buf, off, timeDelta << 1 | (price != null ? 1 : 0));
+        off = putZigzag(buf, off, quantityDelta);
+        if (price != null) {
+            long bits = Double.doubleToLongBits(price);
+            for (int i = 0; i < 8; i++) buf[off++] = (byte) (bits >>> (8 * i));
+        }
+        return off;
+    }
+
+    private static int putZigzag(byte[] buf, int off, long v) {
+        return putVarLong(buf, off, (v << 1) ^ (v >> 63));
+    }
+
+    private static int putVarLong(byte[] buf, int off, long v) {
+        while ((v & ~0x7FL) != 0) {
+            buf[off++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[off++] = (byte) v;
+        return off;
+    }
+
+    private static final class Decoder {
+        final byte[] buf;
+        int pos;
+        final int end;
+        // Младший бит последней прочитанной разности времени
+        boolean flag;
+
+        Decoder(byte[] buf, int pos, int end) {
+            this.buf = buf;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        long raw() {
+            long v = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (pos >= end || shift > 63) throw new IllegalStateException("Повреждена история остатков");
+                int b = buf[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+        }
+
+        // Разность времени; флаг изменения цены сохраняется в flag
+        long varLong() {
+            long v = raw();
+            flag = (v & 1) != 0;
+            return v >>> 1;
+        }
+
+        long zigzag() {
+            long z = raw();
+            return (z >>> 1) ^ -(z & 1);
+        }
+
+        double price() {
+            if (end - pos < 8) throw new IllegalStateException("Повреждена история остатков");
+            long bits = 0;
+            for (int i = 0; i < 8; i++) bits |= (buf[pos++] & 0xFFL) << (8 * i);
+            return Double.longBitsToDouble(bits);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package model;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Форматы файла базы; все, кроме старого, начинаются с заголовка
+//   "IMSB" | версия (1 байт) | тип сжатия (1 байт)
+// Версия 3 — дисковое хранилище с B+деревьями (см. TreeFile).
+// Версия 2 — страничный формат (см. PageFile), в нём сохраняются новые файлы.
+// Версия 1 — поток: AES( блок, блок, ..., конец ),
+//   блок = тип (1 байт) | длина исходных данных (int) | длина хранимых данных (int) | данные
+// Без заголовка — старый формат: AES от всего текста целиком
+class StorageFormat {
+
+    static final byte[] MAGIC = {'I', 'M', 'S', 'B'};
+    static final int STREAM = 1;
+    static final int HEADER_SIZE = MAGIC.length + 2;
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final int RAW = 0;
+    private static final int DEFLATED = 1;
+    private static final int END = 0xFF;
+
+    // Версия формата файла; 0 для файлов без заголовка
+    static int version(File f) throws IOException {
+        try (InputStream in = new FileInputStream(f)) {
+            byte[] head = in.readNBytes(HEADER_SIZE);
+            if (head.length < HEADER_SIZE || !Arrays.equals(head, 0, MAGIC.length, MAGIC, 0, MAGIC.length))
+                return 0;
+
+            int version = head[MAGIC.length];
+            // Шифротекст старого формата кратен 16 байтам, поэтому его не спутать с потоковым заголовком
+            if (version == STREAM && (f.length() - HEADER_SIZE) % 16 == 0) return STREAM;
+            if (version == PageFile.VERSION) return PageFile.VERSION;
+            if (version == TreeFile.VERSION || version == TreeFile.LEGACY_VERSION) return version;
+            return 0;
+        }
+    }
+
+    // Построчное чтение файлов старого и потокового форматов
+    static BufferedReader openReader(File f, SecretKeySpec key) throws IOException, GeneralSecurityException {
+        int version = version(f);
+        Cipher cipher = CipherPool.ECB.acquire();
+        InputStream in = null;
+        // Поток и шифр передаются BlockInputStream только после успешного открытия, иначе освобождаются здесь
+        boolean handedOver = false;
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key);
+            in = new BufferedInputStream(new FileInputStream(f));
+
+            if (version == 0)
+                return reader(new ByteArrayInputStream(cipher.doFinal(in.readAllBytes())), Charset.defaultCharset());
+
+            in.skipNBytes(HEADER_SIZE);
+            BufferedReader reader = reader(new BlockInputStream(new CipherInputStream(in, cipher), cipher), StandardCharsets.UTF_8);
+            handedOver = true;
+            return reader;
+        } finally {
+            if (!handedOver) {
+                CipherPool.ECB.release(cipher);
+                if (in != null) in.close();
+            }
+        }
+    }
+
+    private static BufferedReader reader(InputStream in, Charset charset) {
+        return new BufferedReader(new InputStreamReader(in, charset));
+    }
+
+    // Запись в старом формате; новые файлы пишутся в страничном (PageFile.write)
+    static Writer openLegacyWriter(File f, SecretKeySpec key) throws GeneralSecurityException {
+        Cipher cipher = CipherPool.ECB.acquire();
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            CipherPool.ECB.release(cipher);
+            throw e;
+        }
+        return new BufferedWriter(new OutputStreamWriter(new LegacyOutputStream(f, cipher), Charset.defaultCharset()));
+    }
+
+    // Старый формат можно зашифровать только целиком, поэтому данные копятся в памяти до close()
+    private static class LegacyOutputStream extends ByteArrayOutputStream {
+        private final File file;
+        private final Cipher cipher;
+
+        LegacyOutputStream(File file, Cipher cipher) {
+            this.file = file;
+            this.cipher = cipher;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(cipher.doFinal(buf, 0, count));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Ошибка при шифровании", e);
+            } finally {
+                CipherPool.ECB.release(cipher);
+            }
+        }
+    }
+
+    private static class BlockInputStream extends InputStream {
+        private final DataInputStream in;
+        private final Cipher cipher;
+        private final Inflater inflater = new Inflater();
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private final byte[] packed = new byte[BLOCK_SIZE];
+        private int size;
+        private int pos;
+        private boolean eof;
+
+        BlockInputStream(InputStream in, Cipher cipher) {
+            this.in = new DataInputStream(in);
+            this.cipher = cipher;
+        }
+
+        private boolean nextBlock() throws IOException {
+            if (eof) return false;
+
+            int type;
+            try {
+                type = in.readUnsignedByte();
+            } catch (EOFException e) {
+                throw new IOException("Файл базы обрезан: нет маркера конца");
+            }
+            if (type == END) {
+                eof = true;
+                return false;
+            }
+
+            int raw = in.readInt();
+            int stored = in.readInt();
+            if (raw < 0 || stored < 0 || raw > BLOCK_SIZE || stored > BLOCK_SIZE)
+                throw new IOException("Повреждённый блок файла базы");
+
+            if (type == RAW) {
+                in.readFully(block, 0, raw);
+            } else if (type == DEFLATED) {
+                in.readFully(packed, 0, stored);
+                inflater.reset();
+                inflater.setInput(packed, 0, stored);
+                try {
+                    if (inflater.inflate(block, 0, raw) != raw) throw new IOException("Повреждённый блок файла базы");
+                } catch (DataFormatException e) {
+                    throw new IOException("Повреждённый блок файла базы", e);
+                }
+            } else {
+                throw new IOException("Неизвестный тип блока: " + type);
+            }
+
+            size = raw;
+            pos = 0;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (pos == size)
+                if (!nextBlock()) return -1;
+            return block[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (pos == size)
+                if (!nextBlock()) return -1;
+            int n = Math.min(len, size - pos);
+            System.arraycopy(block, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            in.close();
+            CipherPool.ECB.release(cipher);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package model;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Глобальный словарь строк с небольшим числом различных значений (поставщики).
+// Каждое значение хранится один раз, записи ссылаются на него по коду; коды не переиспользуются
+class StringDictionary {
+
+    private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[64];
+    private int size;
+
+    int encode(String value) {
+        Integer code = codes.get(value);
+        if (code != null) return code;
+
+        synchronized (this) {
+            code = codes.get(value);
+            if (code != null) return code;
+
+            String[] arr = values;
+            if (size == arr.length) arr = Arrays.copyOf(arr, size * 2);
+            arr[size] = value;
+            values = arr;
+            codes.put(value, size);
+            return size++;
+        }
+    }
+
+    // -1, если такого значения в словаре нет
+    int lookup(String value) {
+        Integer code = codes.get(value);
+        return code == null ? -1 : code;
+    }
+
+    String decode(int code) {
+        return values[code];
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    // Запись с каноническим экземпляром строки поставщика и его кодом. Код записи мог выдать
+    // словарь другой базы (записи передаются между базами), поэтому он принимается, только если
+    // в этом словаре под ним тот же поставщик
+    Record encode(Record r) {
+        if (owns(r)) return r;
+        int code = encode(r.supplier);
+        return new Record(r.id, r.name, r.quantity, r.price, decode(code), code);
+    }
+
+    boolean owns(Record r) {
+        String[] arr = values;
+        int code = r.supplierCode;
+        return code >= 0 && code < arr.length && r.supplier.equals(arr[code]);
+    }
+}
@@ -0,0 +1,135 @@
+package model;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// Индекс для LIKE и автодополнения по строковому полю. Хранит различные значения поля
+// (без учёта регистра): упорядоченную карту для префиксов и триграммы для подстрок.
+// Записи по найденным значениям достаются через точный индекс шарда
+class TextIndex {
+
+    private final NavigableMap<String, Set<String>> values = new ConcurrentSkipListMap<>();
+    private final Map<String, Set<String>> grams = new ConcurrentHashMap<>();
+
+    static String normalize(String s) {
+        return s.toLowerCase(Locale.ROOT);
+    }
+
+    // Изменяется только под commit-локом базы; читатели работают без блокировок
+    void add(String value) {
+        String key = normalize(value);
+        Set<String> originals = values.get(key);
+        if (originals == null) {
+            originals = ConcurrentHashMap.newKeySet();
+            values.put(key, originals);
+            for (String g : trigrams(key))
+                grams.computeIfAbsent(g, k -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+        originals.add(value);
+    }
+
+    void remove(String value) {
+        String key = normalize(value);
+        Set<String> originals = values.get(key);
+        if (originals == null || !originals.remove(value) || !originals.isEmpty()) return;
+
+        values.remove(key);
+        for (String g : trigrams(key))
+            grams.computeIfPresent(g, (k, keys) -> {
+                keys.remove(key);
+                return keys.isEmpty() ? null : keys;
+            });
+    }
+
+    void clear() {
+        values.clear();
+        grams.clear();
+    }
+
+    // Значения поля (в исходном написании), подходящие под шаблон LIKE
+    List<String> match(String pattern) {
+        String p = normalize(pattern);
+        String[] parts = p.split("%", -1);
+
+        Collection<String> candidates;
+        if (parts.length == 1) {
+            candidates = values.containsKey(p) ? List.of(p) : List.of();
+        } else if (!parts[0].isEmpty()) {
+            candidates = withPrefix(parts[0]).keySet();
+        } else {
+            String longest = Arrays.stream(parts).max(Comparator.comparingInt(String::length)).orElse("");
+            candidates = longest.length() >= 3 ? containing(longest) : values.keySet();
+        }
+
+        List<String> res = new ArrayList<>();
+        for (String key : candidates) {
+            if (!like(parts, key)) continue;
+            Set<String> originals = values.get(key);
+            if (originals != null) res.addAll(originals);
+        }
+        return res;
+    }
+
+    List<String> complete(String prefix, int limit) {
+        List<String> res = new ArrayList<>();
+        for (Set<String> originals : withPrefix(normalize(prefix)).values()) {
+            for (String v : originals) {
+                if (res.size() >= limit) return res;
+                res.add(v);
+            }
+        }
+        return res;
+    }
+
+    private NavigableMap<String, Set<String>> withPrefix(String prefix) {
+        return values.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    // Пересечение множеств значений по всем триграммам подстроки, начиная с самого редкого
+    private Collection<String> containing(String part) {
+        List<Set<String>> sets = new ArrayList<>();
+        for (String g : trigrams(part)) {
+            Set<String> keys = grams.get(g);
+            if (keys == null) return List.of();
+            sets.add(keys);
+        }
+        sets.sort(Comparator.comparingInt(Set::size));
+
+        List<String> res = new ArrayList<>();
+        for (String key : sets.get(0)) {
+            boolean all = true;
+            for (int i = 1; i < sets.size() && all; i++)
+                all = sets.get(i).contains(key);
+            if (all) res.add(key);
+        }
+        return res;
+    }
+
+    private static Set<String> trigrams(String s) {
+        Set<String> res = new HashSet<>();
+        for (int i = 0; i + 3 <= s.length(); i++)
+            res.add(s.substring(i, i + 3));
+        return res;
+    }
+
+    // Сопоставление с шаблоном LIKE, где % — любая последовательность символов; без учёта регистра
+    static boolean like(String pattern, String value) {
+        return like(normalize(pattern).split("%", -1), normalize(value));
+    }
+
+    private static boolean like(String[] parts, String value) {
+        if (parts.length == 1) return value.equals(parts[0]);
+        if (!value.startsWith(parts[0])) return false;
+
+        int pos = parts[0].length();
+        for (int i = 1; i < parts.length - 1; i++) {
+            int at = value.indexOf(parts[i], pos);
+            if (at < 0) return false;
+            pos = at + parts[i].length();
+        }
+
+        String last = parts[parts.length - 1];
+        return value.length() - last.length() >= pos && value.endsWith(last);
+    }
+}
@@ -0,0 +1,214 @@
+package model;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+// Файл дискового хранилища шарда (версия 4): страницы фиксированного размера,
+// каждая шифруется AES-GCM со своим IV.
+//   "IMSB" | версия | 0 | слот 0 | слот 1 | ...
+//   слот = IV (12 байт) | шифротекст страницы (PAGE_SIZE + 16 байт тега)
+// Страницы 0 и 1 — служебные: поколение, число страниц, корни и размеры деревьев.
+// Изменения пишутся копированием при записи: страница, достижимая из последней записанной
+// служебной страницы, не перезаписывается, вместо неё берётся свежая (fresh). checkpoint()
+// записывает служебную страницу следующего поколения в другой слот, поэтому сбой посреди
+// записи оставляет файл в состоянии предыдущего checkpoint. Страницы, освобождённые после
+// checkpoint, ещё нужны этому состоянию и переиспользуются только после следующего.
+// Версия 3 (одна служебная страница, запись на месте) открывается для переноса, см. TreeStore
+class TreeFile implements Closeable {
+
+    static final int VERSION = 4;
+    static final int LEGACY_VERSION = 3;
+    static final int PAGE_SIZE = 4096;
+    static final int TREES = 3;
+
+    private static final int SLOT_SIZE = PageFile.IV_SIZE + PAGE_SIZE + PageFile.TAG_BITS / 8;
+
+    final File file;
+    private final FileChannel channel;
+    private final SecretKeySpec key;
+    final int version;
+
+    // Изменяются под локом файла (см. BTree)
+    int pageCount;
+    final int[] roots = new int[TREES];
+    final long[] counts = new long[TREES];
+    private long generation;
+    private final BitSet fresh = new BitSet();
+    private final ArrayDeque<Integer> free = new ArrayDeque<>();
+    private final List<Integer> released = new ArrayList<>();
+
+    private TreeFile(File file, FileChannel channel, SecretKeySpec key, int version) {
+        this.file = file;
+        this.channel = channel;
+        this.key = key;
+        this.version = version;
+    }
+
+    static TreeFile open(File f, SecretKeySpec key) throws IOException {
+        FileChannel ch = FileChannel.open(f.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (ch.size() == 0) {
+                ByteBuffer head = ByteBuffer.allocate(StorageFormat.HEADER_SIZE)
+                        .put(StorageFormat.MAGIC).put((byte) VERSION).put((byte) 0).flip();
+                ch.write(head, 0);
+                TreeFile tf = new TreeFile(f, ch, key, VERSION);
+                tf.pageCount = 2;
+                // Оба служебных слота заполняются сразу
+                tf.checkpoint();
+                tf.checkpoint();
+                return tf;
+            }
+
+            int version = StorageFormat.version(f);
+            if (version != VERSION && version != LEGACY_VERSION)
+                throw new IOException("Файл " + f + " не является дисковым хранилищем");
+            TreeFile tf = new TreeFile(f, ch, key, version);
+            if (version == LEGACY_VERSION) tf.readMeta(tf.readPage(0));
+            else tf.readMeta();
+            return tf;
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    // Свободная страница или новая в конце файла; до checkpoint её можно менять на месте
+    int allocate() {
+        Integer page = free.poll();
+        int res = page != null ? page : pageCount++;
+        fresh.set(res);
+        return res;
+    }
+
+    boolean isFresh(int page) {
+        return fresh.get(page);
+    }
+
+    // Страница больше не нужна дереву. Свежая сразу свободна, остальные — после checkpoint
+    void release(int page) {
+        if (fresh.get(page)) {
+            fresh.clear(page);
+            free.add(page);
+        } else {
+            released.add(page);
+        }
+    }
+
+    // При открытии: свободны все страницы, не достижимые из корней
+    void reclaim(BitSet used) {
+        free.clear();
+        for (int page = 2; page < pageCount; page++)
+            if (!used.get(page)) free.add(page);
+    }
+
+    int freePages() {
+        return free.size();
+    }
+
+    void readPage(int page, byte[] dst) throws IOException {
+        long pos = StorageFormat.HEADER_SIZE + (long) page * SLOT_SIZE;
+        ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+        while (slot.hasRemaining())
+            if (channel.read(slot, pos + slot.position()) < 0) throw new EOFException("Файл " + file + " обрезан");
+        slot.flip();
+
+        byte[] iv = new byte[PageFile.IV_SIZE];
+        slot.get(iv);
+        try {
+            byte[] plain = PageFile.decrypt(key, iv, slot);
+            System.arraycopy(plain, 0, dst, 0, PAGE_SIZE);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Ошибка при расшифровке страницы " + page + " файла " + file, e);
+        }
+    }
+
+    void writePage(int page, byte[] src) throws IOException {
+        byte[] iv = PageFile.newIv();
+        byte[] sealed;
+        try {
+            sealed = PageFile.encrypt(key, iv, src);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Ошибка при шифровании", e);
+        }
+
+        ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE).put(iv).put(sealed).flip();
+        long pos = StorageFormat.HEADER_SIZE + (long) page * SLOT_SIZE;
+        while (slot.hasRemaining()) channel.write(slot, pos + slot.position());
+    }
+
+    private byte[] readPage(int page) throws IOException {
+        byte[] data = new byte[PAGE_SIZE];
+        readPage(page, data);
+        return data;
+    }
+
+    // Действует служебная страница последнего поколения; недописанная не проходит проверку тега
+    private void readMeta() throws IOException {
+        byte[][] metas = new byte[2][];
+        IOException error = null;
+        for (int i = 0; i < 2; i++) {
+            try {
+                metas[i] = readPage(i);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (metas[0] == null && metas[1] == null) throw error;
+        if (metas[0] == null || metas[1] != null && generation(metas[1]) > generation(metas[0]))
+            readMeta(metas[1]);
+        else
+            readMeta(metas[0]);
+    }
+
+    private static long generation(byte[] meta) {
+        return ByteBuffer.wrap(meta).getLong(4 + TREES * 12);
+    }
+
+    private void readMeta(byte[] page) {
+        ByteBuffer b = ByteBuffer.wrap(page);
+        pageCount = b.getInt();
+        for (int i = 0; i < TREES; i++) roots[i] = b.getInt();
+        for (int i = 0; i < TREES; i++) counts[i] = b.getLong();
+        if (version == VERSION) generation = b.getLong();
+    }
+
+    // Все изменённые страницы уже записаны и сброшены на диск (BufferPool.flush, force):
+    // служебная страница нового поколения делает их текущим состоянием файла
+    void checkpoint() throws IOException {
+        if (version != VERSION) throw new IOException("Файл " + file + " версии " + version + " открыт только для чтения");
+        ByteBuffer b = ByteBuffer.allocate(PAGE_SIZE);
+        b.putInt(pageCount);
+        for (int root : roots) b.putInt(root);
+        for (long count : counts) b.putLong(count);
+        b.putLong(generation + 1);
+        writePage((int) ((generation + 1) % 2), b.array());
+        force();
+
+        generation++;
+        free.addAll(released);
+        released.clear();
+        fresh.clear();
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    long length() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,217 @@
+package model;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+// Дисковое хранилище записей шарда: B+дерево записей по id и B+деревья индексов name и supplier.
+// Ключ индекса — хэш строки в старших 32 битах и id в младших, поэтому все id с данным значением
+// лежат в одном диапазоне ключей; совпадения хэшей отсеиваются проверкой самой записи.
+// Ошибки ввода-вывода при чтении и изменении пробрасываются как UncheckedIOException
+class TreeStore implements Closeable {
+
+    private static final int RECORDS = 0;
+    private static final int NAMES = 1;
+    private static final int SUPPLIERS = 2;
+    private static final byte[] EMPTY = new byte[0];
+
+    final TreeFile file;
+    private final BufferPool pool;
+    private final StringDictionary dict;
+    private final BTree records;
+    private final BTree names;
+    private final BTree suppliers;
+
+    TreeStore(TreeFile file, BufferPool pool, StringDictionary dict) {
+        this.file = file;
+        this.pool = pool;
+        this.dict = dict;
+        this.records = new BTree(file, pool, RECORDS);
+        this.names = new BTree(file, pool, NAMES);
+        this.suppliers = new BTree(file, pool, SUPPLIERS);
+    }
+
+    static TreeStore open(File f, SecretKeySpec key, BufferPool pool, StringDictionary dict)
+            throws IOException {
+        TreeFile file = TreeFile.open(f, key);
+        if (file.version == TreeFile.LEGACY_VERSION) file = migrate(file, key, pool, dict);
+
+        TreeStore store = new TreeStore(file, pool, dict);
+        try {
+            BitSet used = new BitSet();
+            store.records.collect(used);
+            store.names.collect(used);
+            store.suppliers.collect(used);
+            file.reclaim(used);
+        } catch (IOException | RuntimeException e) {
+            store.close();
+            throw e;
+        }
+        return store;
+    }
+
+    // Файл версии 3 переписывается в новый формат через временный файл
+    private static TreeFile migrate(TreeFile legacy, SecretKeySpec key, BufferPool pool, StringDictionary dict)
+            throws IOException {
+        File tmp = new File(legacy.file + ".tmp");
+        tmp.delete();
+        try (TreeStore from = new TreeStore(legacy, pool, dict);
+             TreeStore to = new TreeStore(TreeFile.open(tmp, key), pool, dict)) {
+            List<Record> batch;
+            for (long id = Integer.MIN_VALUE; !(batch = from.scan(id, Integer.MAX_VALUE, 1024)).isEmpty(); ) {
+                for (Record r : batch) to.put(r);
+                id = batch.get(batch.size() - 1).id + 1L;
+            }
+            to.flush();
+        }
+        Files.move(tmp.toPath(), legacy.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return TreeFile.open(legacy.file, key);
+    }
+
+    // Помещается ли запись в страницу B+дерева
+    static boolean fits(Record r) {
+        try {
+            return encode(r).length <= BTree.MAX_VALUE;
+        } catch (UncheckedIOException e) {
+            return false;
+        }
+    }
+
+    long size() {
+        return records.size();
+    }
+
+    Record get(int id) {
+        try {
+            byte[] value = records.get(id);
+            return value == null ? null : decode(id, value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void put(Record r) {
+        try {
+            synchronized (file) {
+                Record old = get(r.id);
+                if (old != null) unindex(old);
+                records.put(r.id, encode(r));
+                names.put(key(r.name, r.id), EMPTY);
+                suppliers.put(key(r.supplier, r.id), EMPTY);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void remove(int id) {
+        try {
+            synchronized (file) {
+                Record old = get(id);
+                if (old == null) return;
+                unindex(old);
+                records.remove(id);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Не больше max записей с id из [from, to] по возрастанию id
+    List<Record> scan(long from, int to, int max) {
+        try {
+            List<Record> res = new ArrayList<>();
+            for (BTree.Entry e : records.scan(from, to, max))
+                res.add(decode((int) e.key, e.value));
+            return res;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Кандидаты: id записей, у которых значение может совпадать с данным
+    List<Integer> byName(String name) {
+        return lookup(names, name);
+    }
+
+    List<Integer> bySupplier(String supplier) {
+        return lookup(suppliers, supplier);
+    }
+
+    private List<Integer> lookup(BTree index, String value) {
+        long lo = key(value, 0);
+        try {
+            List<Integer> res = new ArrayList<>();
+            List<BTree.Entry> batch;
+            do {
+                batch = index.scan(lo, lo | 0xFFFFFFFFL, 1024);
+                for (BTree.Entry e : batch) res.add((int) e.key);
+                if (!batch.isEmpty()) lo = batch.get(batch.size() - 1).key + 1;
+            } while (batch.size() == 1024);
+            return res;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void unindex(Record r) throws IOException {
+        names.remove(key(r.name, r.id));
+        suppliers.remove(key(r.supplier, r.id));
+    }
+
+    private static long key(String value, int id) {
+        return ((long) value.hashCode() << 32) | (id & 0xFFFFFFFFL);
+    }
+
+    private static byte[] encode(Record r) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(buf)) {
+            out.writeUTF(r.name);
+            out.writeInt(r.quantity);
+            out.writeDouble(r.price);
+            out.writeUTF(r.supplier);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buf.toByteArray();
+    }
+
+    private Record decode(int id, byte[] value) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+        String name = in.readUTF();
+        int quantity = in.readInt();
+        double price = in.readDouble();
+        return dict.encode(new Record(id, name, quantity, price, in.readUTF()));
+    }
+
+    // Изменённые страницы записываются на диск, затем служебная страница нового поколения
+    void flush() throws IOException {
+        synchronized (file) {
+            pool.flush(file);
+            file.force();
+            file.checkpoint();
+        }
+    }
+
+    long length() throws IOException {
+        return file.length();
+    }
+
+    int freePages() {
+        synchronized (file) {
+            return file.freePages();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (file) {
+            pool.discard(file);
+            file.close();
+        }
+    }
+}
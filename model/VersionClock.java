@@ -0,0 +1,46 @@
+package model;
+
+import java.util.TreeMap;
+
+// Счётчик версий MVCC и учёт открытых снимков
+class VersionClock {
+
+    private volatile long published;
+    private final TreeMap<Long, Integer> active = new TreeMap<>();
+
+    long current() {
+        return published;
+    }
+
+    // Вызывается только под commit-локом базы, после установки всех изменений версии v
+    void publish(long v) {
+        published = v;
+    }
+
+    long acquire() {
+        synchronized (active) {
+            long v = published;
+            active.merge(v, 1, Integer::sum);
+            return v;
+        }
+    }
+
+    void release(long v) {
+        synchronized (active) {
+            active.computeIfPresent(v, (k, c) -> c == 1 ? null : c - 1);
+        }
+    }
+
+    // Самая старая версия, которую ещё может прочитать кто-либо из читателей
+    long oldest() {
+        synchronized (active) {
+            return active.isEmpty() ? published : active.firstKey();
+        }
+    }
+
+    int activeSnapshots() {
+        synchronized (active) {
+            return active.values().stream().mapToInt(Integer::intValue).sum();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package model;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static model.Tests.*;
+
+// Поток изменений: смещения, файл подкачки и переполнение без блокировки писателей
+public class ChangeFeedTest {
+
+    public static void main(String[] args) {
+        Tests.run(ChangeFeedTest.class);
+    }
+
+    private static List<ChangeFeed.Event> drain(ChangeFeed.Cursor c) throws Exception {
+        List<ChangeFeed.Event> res = new ArrayList<>();
+        List<ChangeFeed.Event> batch;
+        while (!(batch = c.poll(100, 10, TimeUnit.MILLISECONDS)).isEmpty()) {
+            res.addAll(batch);
+            c.commit();
+        }
+        return res;
+    }
+
+    private static void contiguous(List<ChangeFeed.Event> events) {
+        for (int i = 1; i < events.size(); i++)
+            equal(events.get(i - 1).sequence + Math.max(1, events.get(i - 1).lost), events.get(i).sequence, "номера подряд");
+    }
+
+    @Test
+    static void eventsCarryOrderedSequencesAndVersions() throws Exception {
+        Database db = new Database(dir() + "/db");
+        ChangeFeed feed = db.openChangeFeed(64);
+        ChangeFeed.Cursor c = feed.cursor();
+        equal(1L, c.position());
+
+        db.addRecord(new Record(1, "tv", 5, 100, "Sony"));
+        db.addRecords(List.of(new Record(2, "a", 1, 1, "s"), new Record(3, "b", 1, 1, "s")));
+        db.sell(1, 2);
+        db.deleteById(2);
+
+        List<ChangeFeed.Event> events = drain(c);
+        equal(List.of("INSERT", "INSERT", "INSERT", "UPDATE", "DELETE"),
+                events.stream().map(e -> e.type().name()).toList());
+        contiguous(events);
+        equal(events.get(1).version, events.get(2).version, "события одного коммита — одна версия");
+        check(events.get(0).version < events.get(1).version, "версии растут");
+        equal(5, events.get(3).before.quantity);
+        equal(3, events.get(3).after.quantity);
+        equal(6L, feed.nextSequence());
+        equal(0L, c.lag());
+
+        // Курсор с заданного номера читает ещё хранимые события
+        ChangeFeed.Cursor from = feed.cursor(feed.nextSequence());
+        db.supply(3, 10);
+        equal(List.of(6L), drain(from).stream().map(e -> e.sequence).toList());
+        fails(IllegalArgumentException.class, () -> feed.cursor(feed.nextSequence() + 1));
+        fails(IllegalStateException.class, () -> db.openChangeFeed(8));
+    }
+
+    @Test
+    static void laggingEventsAreSpilledAndReadBack() throws Exception {
+        String dir = dir();
+        Database db = new Database(dir + "/db");
+        ChangeFeed feed = db.openChangeFeed(16, dir + "/db.cdc", 1 << 20);
+        ChangeFeed.Cursor c = feed.cursor();
+
+        List<Record> records = sample(1000, 1);
+        for (Record r : records) db.addRecord(r);
+        check(feed.getSpillSize() > 0, "события ушли в файл подкачки");
+        equal(1L, feed.firstSequence());
+
+        List<ChangeFeed.Event> events = drain(c);
+        equal(1000, events.size());
+        contiguous(events);
+        List<Record> after = new ArrayList<>();
+        for (ChangeFeed.Event e : events) after.add(e.after);
+        equal(rows(records), rows(after));
+        equal(0L, feed.getSpillSize(), "подтверждённые блоки удалены");
+        equal(0L, feed.getLostEvents());
+
+        feed.close();
+        check(!new File(dir + "/db.cdc").exists(), "файл подкачки удалён при закрытии");
+    }
+
+    @Test
+    static void overflowWithoutSpillLeavesGap() throws Exception {
+        Database db = new Database(dir() + "/db");
+        ChangeFeed feed = db.openChangeFeed(8);
+        ChangeFeed.Cursor c = feed.cursor();
+        for (Record r : sample(100, 2)) db.addRecord(r);
+
+        List<ChangeFeed.Event> events = drain(c);
+        ChangeFeed.Event gap = events.get(0);
+        equal(ChangeFeed.Type.GAP, gap.type());
+        equal(1L, gap.sequence);
+        equal(feed.getLostEvents(), gap.lost);
+        contiguous(events);
+        equal(100L, events.get(events.size() - 1).sequence);
+        equal(100L, gap.lost + events.size() - 1, "потерянные и прочитанные — все события");
+    }
+
+    @Test
+    static void spillLimitDropsOldestBlocks() throws Exception {
+        String dir = dir();
+        Database db = new Database(dir + "/db");
+        ChangeFeed feed = db.openChangeFeed(16, dir + "/db.cdc", 2000);
+        ChangeFeed.Cursor c = feed.cursor();
+        for (Record r : sample(2000, 3)) db.addRecord(r);
+        check(feed.getLostEvents() > 0, "лимит файла подкачки исчерпан");
+        check(feed.getSpillSize() < 4000, "файл подкачки не растёт сверх лимита: " + feed.getSpillSize());
+
+        List<ChangeFeed.Event> events = drain(c);
+        equal(ChangeFeed.Type.GAP, events.get(0).type());
+        contiguous(events);
+        equal(2000L, events.get(events.size() - 1).sequence);
+        for (ChangeFeed.Event e : events.subList(1, events.size()))
+            equal(e.sequence, (long) e.after.id, "содержимое события после разрыва");
+    }
+
+    @Test
+    static void slowHandlerDoesNotBlockWriters() throws Exception {
+        Database db = new Database(dir() + "/db");
+        db.addRecords(sample(100, 4));
+        ChangeFeed feed = db.openChangeFeed(4);
+        ChangeFeed.Cursor c = feed.cursor();
+
+        // Обработчик читает базу снимками: закрытие снимка берёт commit-лок
+        List<Long> seen = Collections.synchronizedList(new ArrayList<>());
+        Thread handler = c.start(events -> {
+            try (Snapshot snap = db.snapshot()) {
+                snap.stream().count();
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (ChangeFeed.Event e : events) seen.add(e.sequence);
+        });
+
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 3000; i++) db.sell(1 + i % 100, 0);
+        });
+        writer.start();
+        writer.join(20_000);
+        check(!writer.isAlive(), "писатель не ждёт медленного обработчика");
+        equal(3001L, feed.nextSequence());
+
+        feed.close();
+        handler.join(5000);
+        check(!handler.isAlive(), "обработчик завершился после закрытия");
+        check(!seen.isEmpty(), "обработчик получал события");
+        equal(List.of(), c.poll(10, 1, TimeUnit.MILLISECONDS), "закрытый поток пуст");
+    }
+
+    @Test
+    static void closedFeedCanBeReopened() throws Exception {
+        Database db = new Database(dir() + "/db");
+        ChangeFeed feed = db.openChangeFeed(8);
+        fails(IllegalStateException.class, () -> db.openChangeFeed(8));
+        feed.close();
+        check(db.getChangeFeed() == null, "база отпустила закрытый поток");
+
+        ChangeFeed again = db.openChangeFeed(8);
+        ChangeFeed.Cursor c = again.cursor();
+        db.addRecord(new Record(1, "tv", 5, 100, "Sony"));
+        equal(List.of("1 INSERT " + db.getAll().get(0)), drain(c).stream().map(ChangeFeed.Event::toString).toList());
+        feed.close();
+        check(db.getChangeFeed() == again, "повторное закрытие старого потока не трогает новый");
+        again.close();
+    }
+}
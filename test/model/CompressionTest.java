@@ -0,0 +1,131 @@
+package model;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.InvalidKeyException;
+import java.util.*;
+import java.util.zip.Deflater;
+
+import static model.Tests.*;
+
+// Сжатие перед шифрованием и чтение файлов всех прежних форматов
+public class CompressionTest {
+
+    // Ключ, которым Database шифрует файлы
+    private static final SecretKeySpec KEY = new SecretKeySpec("1234567890ABCDEF".getBytes(), "AES");
+
+    public static void main(String[] args) {
+        Tests.run(CompressionTest.class);
+    }
+
+    @Test
+    static void everyModeRoundTrips() throws Exception {
+        List<Record> records = sample(5000, 1);
+        Map<Compression, Long> sizes = new EnumMap<>(Compression.class);
+
+        for (Compression c : Compression.values()) {
+            String file = dir() + "/db";
+            Database db = new Database(file, 1);
+            db.setCompression(c);
+            db.addRecords(records);
+            db.save();
+
+            equal(c == Compression.LEGACY ? 0 : PageFile.VERSION, StorageFormat.version(new File(file)), c.name());
+            sizes.put(c, new File(file).length());
+
+            Database loaded = new Database(file, 1);
+            loaded.load();
+            equal(rows(records), rows(loaded.getAll()), c.name());
+        }
+        check(sizes.get(Compression.FAST) < sizes.get(Compression.NONE), "FAST меньше NONE: " + sizes);
+        check(sizes.get(Compression.DEFLATE) <= sizes.get(Compression.FAST), "DEFLATE не больше FAST: " + sizes);
+    }
+
+    @Test
+    static void streamFormatIsReadable() throws Exception {
+        List<Record> records = sample(5000, 2);
+        StringBuilder text = new StringBuilder();
+        for (Record r : records) text.append(r).append('\n');
+        byte[] data = text.toString().getBytes(StandardCharsets.UTF_8);
+        check(data.length > 2 * StorageFormat.BLOCK_SIZE, "несколько блоков");
+
+        String file = dir() + "/db";
+        writeStream(new File(file), data, true);
+
+        Database db = new Database(file, 1);
+        db.load();
+        equal(rows(records), rows(db.getAll()));
+    }
+
+    @Test
+    static void truncatedStreamIsRejected() throws Exception {
+        String file = dir() + "/db";
+        writeStream(new File(file), "1;a;1;1.0;s\n".getBytes(StandardCharsets.UTF_8), false);
+
+        Database db = new Database(file, 1);
+        fails(IOException.class, db::load);
+    }
+
+    @Test
+    static void failedOpenReturnsCipherToPool() throws Exception {
+        String file = dir() + "/db";
+        writeStream(new File(file), "1;a;1;1.0;s\n".getBytes(StandardCharsets.UTF_8), true);
+        CipherPool.ECB.release(CipherPool.ECB.acquire());
+        int idle = CipherPool.ECB.idle();
+
+        // Ключ неверной длины: init бросает исключение уже после того, как шифр взят из пула
+        SecretKeySpec bad = new SecretKeySpec("12345".getBytes(), "AES");
+        fails(InvalidKeyException.class, () -> StorageFormat.openReader(new File(file), bad));
+        fails(InvalidKeyException.class, () -> StorageFormat.openLegacyWriter(new File(dir(), "out"), bad));
+        equal(idle, CipherPool.ECB.idle(), "шифры вернулись в пул");
+
+        try (BufferedReader r = StorageFormat.openReader(new File(file), KEY)) {
+            equal("1;a;1;1.0;s", r.readLine());
+        }
+    }
+
+    @Test
+    static void unknownCodeIsRejected() {
+        equal(Compression.DEFLATE, Compression.byCode(3));
+        fails(IllegalArgumentException.class, () -> Compression.byCode(9));
+    }
+
+    // Файл версии 1: заголовок и AES-поток блоков; чётные блоки сжаты, нечётные хранятся как есть
+    private static void writeStream(File f, byte[] data, boolean withEnd) throws Exception {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(plain);
+        for (int off = 0, n = 0; off < data.length; off += StorageFormat.BLOCK_SIZE, n++) {
+            int len = Math.min(StorageFormat.BLOCK_SIZE, data.length - off);
+            if (n % 2 == 0) {
+                Deflater deflater = new Deflater();
+                deflater.setInput(data, off, len);
+                deflater.finish();
+                byte[] packed = new byte[StorageFormat.BLOCK_SIZE];
+                int stored = deflater.deflate(packed);
+                deflater.end();
+                out.writeByte(1);
+                out.writeInt(len);
+                out.writeInt(stored);
+                out.write(packed, 0, stored);
+            } else {
+                out.writeByte(0);
+                out.writeInt(len);
+                out.writeInt(len);
+                out.write(data, off, len);
+            }
+        }
+        if (withEnd) out.writeByte(0xFF);
+
+        Cipher cipher = Cipher.getInstance("AES");
+        cipher.init(Cipher.ENCRYPT_MODE, KEY);
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        file.write(StorageFormat.MAGIC);
+        file.write(StorageFormat.STREAM);
+        file.write(Compression.FAST.code);
+        file.write(cipher.doFinal(plain.toByteArray()));
+        Files.write(f.toPath(), file.toByteArray());
+    }
+}
@@ -0,0 +1,132 @@
+package model;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static model.Tests.*;
+
+// GROUP BY: параллельная хэш-агрегация против прямого подсчёта
+public class GroupByTest {
+
+    public static void main(String[] args) {
+        Tests.run(GroupByTest.class);
+    }
+
+    private static Map<Object, Object[]> bySupplier(List<Object[]> rows) {
+        Map<Object, Object[]> res = new HashMap<>();
+        for (Object[] row : rows) res.put(row[0], row);
+        return res;
+    }
+
+    @Test
+    static void aggregatesMatchBruteForce() throws Exception {
+        List<Record> records = sample(60_000, 1);
+        Database db = new Database(dir() + "/db", 4);
+        db.addRecords(records);
+
+        List<Object[]> rows = db.groupBy("supplier")
+                .aggregate("COUNT(*)")
+                .aggregate("sum( quantity * price )")
+                .aggregate("AVG(price)")
+                .aggregate("MIN(quantity)")
+                .aggregate("MAX(price)")
+                .list();
+        equal(List.of("supplier", "COUNT(*)", "SUM(quantity*price)", "AVG(price)", "MIN(quantity)", "MAX(price)"),
+                db.groupBy("supplier").aggregate("COUNT(*)").aggregate("sum( quantity * price )")
+                        .aggregate("AVG(price)").aggregate("MIN(quantity)").aggregate("MAX(price)").columns());
+
+        Map<String, List<Record>> groups = records.stream().collect(Collectors.groupingBy(r -> r.supplier));
+        Map<Object, Object[]> found = bySupplier(rows);
+        equal(groups.size(), found.size());
+        for (Map.Entry<String, List<Record>> e : groups.entrySet()) {
+            List<Record> g = e.getValue();
+            Object[] row = found.get(e.getKey());
+            equal((long) g.size(), row[1], e.getKey());
+            double sum = g.stream().mapToDouble(r -> r.quantity * r.price).sum();
+            check(Math.abs(sum - (double) row[2]) < 1e-6 * Math.max(1, sum), e.getKey() + " SUM");
+            double avg = g.stream().mapToDouble(r -> r.price).average().orElseThrow();
+            check(Math.abs(avg - (double) row[3]) < 1e-9 * Math.max(1, avg), e.getKey() + " AVG");
+            equal((long) g.stream().mapToInt(r -> r.quantity).min().orElseThrow(), row[4], e.getKey());
+            equal(g.stream().mapToDouble(r -> r.price).max().orElseThrow(), row[5], e.getKey());
+        }
+    }
+
+    @Test
+    static void havingOrderAndLimitApplyToGroups() throws Exception {
+        List<Record> records = sample(10_000, 2);
+        Database db = new Database(dir() + "/db", 2);
+        db.addRecords(records);
+
+        Map<String, Long> counts = records.stream()
+                .filter(r -> r.quantity >= 50)
+                .collect(Collectors.groupingBy(r -> r.supplier, Collectors.counting()));
+        // Группы с равным количеством идут в любом порядке, поэтому сравниваются количества
+        List<Long> expected = counts.values().stream()
+                .filter(c -> c > 240)
+                .sorted(Comparator.reverseOrder())
+                .limit(3)
+                .toList();
+
+        List<Object[]> rows = db.groupBy("supplier")
+                .where("quantity", ">=", "50")
+                .aggregate("COUNT(*)")
+                .having("count(*)", ">", 240)
+                .orderBy("COUNT(*)", true)
+                .limit(3)
+                .list();
+        check(!expected.isEmpty(), "есть группы больше 240");
+        equal(expected, rows.stream().map(r -> (Long) r[1]).toList());
+        for (Object[] row : rows) equal(counts.get((String) row[0]), row[1], (String) row[0]);
+    }
+
+    @Test
+    static void severalFieldsFormOneKey() throws Exception {
+        Database db = new Database(dir() + "/db");
+        db.addRecord(new Record(1, "tv", 1, 10, "Sony"));
+        db.addRecord(new Record(2, "tv", 2, 10, "Sony"));
+        db.addRecord(new Record(3, "tv", 3, 10, "LG"));
+        db.addRecord(new Record(4, "radio", 4, 10, "Sony"));
+
+        List<String> rows = db.groupBy("supplier", "name").aggregate("SUM(quantity)").list().stream()
+                .map(Arrays::toString).sorted().toList();
+        equal(List.of("[LG, tv, 3]", "[Sony, radio, 4]", "[Sony, tv, 3]"), rows);
+    }
+
+    @Test
+    static void withoutFieldsResultIsOneRow() throws Exception {
+        Database db = new Database(dir() + "/db");
+        List<Object[]> empty = db.groupBy().aggregate("COUNT(*)").aggregate("SUM(price)").list();
+        equal(1, empty.size());
+        equal(0L, empty.get(0)[0]);
+
+        db.addRecords(sample(100, 3));
+        equal(100L, db.groupBy().aggregate("COUNT(*)").list().get(0)[0]);
+    }
+
+    @Test
+    static void emptyGlobalAggregateHasNoMinMaxOrAvg() throws Exception {
+        Database db = new Database(dir() + "/db");
+        GroupBy g = db.groupBy().aggregate("COUNT(*)").aggregate("SUM(quantity)")
+                .aggregate("MIN(quantity)").aggregate("MAX(quantity)").aggregate("MIN(price)").aggregate("AVG(price)");
+        equal("[0, 0, null, null, null, null]", Arrays.toString(g.list().get(0)));
+        equal(List.of(), db.groupBy().aggregate("AVG(price)").having("AVG(price)", "<", 1).list(), "null не проходит HAVING");
+
+        MaterializedView view = db.materialize(db.groupBy().aggregate("COUNT(*)").aggregate("MAX(quantity)").aggregate("AVG(price)"));
+        equal("[0, null, null]", Arrays.toString(view.rows().get(0)));
+        db.addRecord(new Record(1, "tv", 4, 10, "Sony"));
+        equal("[1, 4, 10.0]", Arrays.toString(view.rows().get(0)));
+        db.deleteById(1);
+        equal("[0, null, null]", Arrays.toString(view.rows().get(0)), "после удаления последней записи");
+    }
+
+    @Test
+    static void invalidExpressionsAreRejected() throws Exception {
+        Database db = new Database(dir() + "/db");
+        fails(IllegalArgumentException.class, () -> db.groupBy("color"));
+        fails(IllegalArgumentException.class, () -> db.groupBy("supplier").aggregate("MEDIAN(price)"));
+        fails(IllegalArgumentException.class, () -> db.groupBy("supplier").aggregate("SUM(name)"));
+        fails(IllegalArgumentException.class, () -> db.groupBy("supplier").aggregate("SUM(*)"));
+        fails(IllegalArgumentException.class, () -> db.groupBy("supplier").aggregate("COUNT(*)").having("supplier", ">", 1));
+        fails(IllegalArgumentException.class, () -> db.groupBy("supplier").orderBy("SUM(price)", true));
+    }
+}
@@ -0,0 +1,107 @@
+package model;
+
+import java.util.*;
+
+import static model.Tests.*;
+
+// Советник индексов: рекомендации по статистике запросов, режимы и база без индексов советника
+public class IndexAdvisorTest {
+
+    public static void main(String[] args) {
+        Tests.run(IndexAdvisorTest.class);
+    }
+
+    // Разные значения: повторный запрос взяли бы из кэша результатов, мимо советника
+    private static void selective(Database db, int count, int from) {
+        for (int i = 0; i < count; i++) db.search("quantity", String.valueOf(from + i));
+    }
+
+    private static List<String> actions(IndexAdvisor advisor) {
+        return advisor.recommendations().stream().map(r -> r.action + " " + r.field).toList();
+    }
+
+    private static void awaitIndexes(IndexAdvisor advisor, Set<String> expected) throws InterruptedException {
+        for (int i = 0; i < 500 && !advisor.getIndexes().equals(expected); i++) Thread.sleep(10);
+        equal(expected, advisor.getIndexes());
+    }
+
+    @Test
+    static void selectiveScansAreRecommended() throws Exception {
+        Database db = new Database(dir() + "/db", 2);
+        db.addRecords(sample(5000, 1));
+        IndexAdvisor advisor = db.getIndexAdvisor();
+        equal(IndexAdvisor.Mode.RECOMMEND, advisor.getMode(), "по умолчанию только рекомендации");
+
+        selective(db, 19, 0);
+        equal(List.of(), actions(advisor), "мало запросов");
+        selective(db, 20, 19);
+        // Условие, отбирающее почти всё, индекс не ускорит
+        for (int i = 0; i < 30; i++) db.search("price", String.valueOf(i + 0.5), ">=");
+        equal(List.of("CREATE quantity"), actions(advisor));
+        equal(Set.of(), advisor.getIndexes(), "в режиме RECOMMEND индекс не создаётся сам");
+
+        IndexAdvisor.Recommendation r = advisor.recommendations().get(0);
+        check(r.selectivity < 0.05, "выборка " + r.selectivity);
+        check(r.savedMillis > 0, "оценка экономии");
+
+        advisor.apply(advisor.recommendations());
+        awaitIndexes(advisor, Set.of("quantity"));
+        equal(List.of(), actions(advisor));
+
+        List<Record> found = db.search("quantity", "77");
+        equal(rows(db.getAll().stream().filter(x -> x.quantity == 77).toList()), rows(found));
+        check(advisor.getStats().stream().anyMatch(s -> s.field.equals("quantity") && s.indexed > 0), "запрос прошёл по индексу");
+    }
+
+    @Test
+    static void autoModeCreatesAndDropsIndexes() throws Exception {
+        Database db = new Database(dir() + "/db");
+        db.addRecords(sample(5000, 2));
+        IndexAdvisor advisor = db.getIndexAdvisor();
+        advisor.setMode(IndexAdvisor.Mode.AUTO);
+
+        selective(db, 50, 0);
+        awaitIndexes(advisor, Set.of("quantity"));
+
+        // Индексом давно не пользуются — советник удаляет его сам
+        for (int i = 0; i < 2100; i++) db.query().where("name", "=", "x" + i).list();
+        awaitIndexes(advisor, Set.of());
+    }
+
+    @Test
+    static void unusedIndexIsRecommendedForDrop() throws Exception {
+        Database db = new Database(dir() + "/db");
+        db.addRecords(sample(2000, 3));
+        IndexAdvisor advisor = db.getIndexAdvisor();
+        db.createIndex("price").get();
+        equal(Set.of("price"), advisor.getIndexes());
+
+        for (int i = 0; i < 2000; i++) db.query().where("name", "=", "x" + i).list();
+        equal(List.of("DROP price"), actions(advisor));
+        equal(Set.of("price"), advisor.getIndexes(), "в режиме RECOMMEND индекс не удаляется сам");
+
+        advisor.setMode(IndexAdvisor.Mode.OFF);
+        long queries = advisor.getQueries();
+        selective(db, 10, 0);
+        equal(queries, advisor.getQueries(), "выключенный советник не записывает запросы");
+    }
+
+    @Test
+    static void diskDatabaseIsNeverAdvisedToCreate() throws Exception {
+        Database db = Database.onDisk(dir() + "/disk.db", 2, 64);
+        try {
+            db.addRecords(sample(5000, 4));
+            IndexAdvisor advisor = db.getIndexAdvisor();
+            advisor.setMode(IndexAdvisor.Mode.AUTO);
+
+            // В режиме AUTO советник оценивает рекомендации каждые 50 запросов
+            selective(db, 100, 0);
+            equal(List.of(), actions(advisor));
+            equal(Set.of(), advisor.getIndexes());
+            check(advisor.getStats().stream().anyMatch(s -> s.field.equals("quantity") && s.queries == 100), "статистика собрана");
+            fails(UnsupportedOperationException.class, () -> db.createIndex("quantity"));
+        } finally {
+            db.close();
+        }
+    }
+}
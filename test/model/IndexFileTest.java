@@ -0,0 +1,130 @@
+package model;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.*;
+
+import static model.Tests.*;
+
+// Снимок индексов шарда: чтение записанного, отказ при несовпадении и восстановление индексов советника
+public class IndexFileTest {
+
+    private static final SecretKeySpec KEY = new SecretKeySpec("1234567890ABCDEF".getBytes(), "AES");
+
+    public static void main(String[] args) {
+        Tests.run(IndexFileTest.class);
+    }
+
+    private static Map<String, String> strings(Map<String, Map<String, int[]>> sections) {
+        Map<String, String> res = new TreeMap<>();
+        sections.forEach((name, keys) -> keys.forEach((key, ids) -> res.put(name + "/" + key, Arrays.toString(ids))));
+        return res;
+    }
+
+    // Записи с quantity == id: условие quantity = x попадает в одну страницу
+    private static List<Record> distinct(int count) {
+        List<Record> res = new ArrayList<>();
+        for (int id = 1; id <= count; id++) res.add(new Record(id, "item" + id % 50, id, id % 7, "sup" + id % 20));
+        return res;
+    }
+
+    @Test
+    static void sectionsRoundTrip() throws Exception {
+        File data = new File(dir(), "data");
+        Files.write(data.toPath(), new byte[1000]);
+        File f = new File(dir(), "data.idx");
+
+        List<Record> records = sample(3000, 1);
+        Map<String, Map<String, List<Integer>>> sections = Shard.indexSections(records, List.of("price"));
+        IndexFile.write(f, KEY, data, sections);
+
+        Map<String, Map<String, int[]>> read = IndexFile.read(f, KEY, data);
+        equal(Set.of("name", "supplier", "field:price"), read.keySet());
+        Map<String, String> expected = new TreeMap<>();
+        sections.forEach((name, keys) -> keys.forEach((key, ids) ->
+                expected.put(name + "/" + key, Arrays.toString(ids.stream().mapToInt(Integer::intValue).toArray()))));
+        equal(expected, strings(read));
+        equal("price", FieldIndex.fieldOf("field:price"));
+        equal(null, FieldIndex.fieldOf("name"));
+    }
+
+    @Test
+    static void mismatchedSnapshotIsIgnored() throws Exception {
+        File data = new File(dir(), "data");
+        Files.write(data.toPath(), new byte[1000]);
+        File f = new File(dir(), "data.idx");
+        IndexFile.write(f, KEY, data, Shard.indexSections(sample(100, 2), List.of()));
+        check(IndexFile.read(f, KEY, data) != null, "снимок подходит");
+
+        check(IndexFile.read(f, new SecretKeySpec("FEDCBA0987654321".getBytes(), "AES"), data) == null, "другой ключ");
+        check(IndexFile.read(new File(dir(), "missing.idx"), KEY, data) == null, "нет файла");
+
+        byte[] raw = Files.readAllBytes(f.toPath());
+        raw[IndexFile.MAGIC.length] = (byte) (IndexFile.VERSION + 1);
+        File other = new File(dir(), "other.idx");
+        Files.write(other.toPath(), raw);
+        check(IndexFile.read(other, KEY, data) == null, "другая версия");
+
+        Files.write(other.toPath(), Arrays.copyOf(Files.readAllBytes(f.toPath()), 30));
+        check(IndexFile.read(other, KEY, data) == null, "обрезанный снимок");
+
+        // Файл данных другого сохранения: та же длина, другой хвост
+        try (RandomAccessFile raf = new RandomAccessFile(data, "rw")) {
+            raf.seek(999);
+            raf.write(1);
+        }
+        check(IndexFile.read(f, KEY, data) == null, "снимок другого файла данных");
+    }
+
+    @Test
+    static void warmStartRestoresAdvisorIndexes() throws Exception {
+        String file = dir() + "/db";
+        List<Record> records = distinct(50_000);
+        Database db = new Database(file, 2);
+        db.addRecords(records);
+        db.createIndex("quantity").get();
+        db.save();
+
+        Database lazy = new Database(file, 2);
+        lazy.load();
+        int pages = lazy.getUnloadedPages();
+        check(pages > 4, "страницы не загружены при load(): " + pages);
+        equal(Set.of("quantity"), lazy.getIndexAdvisor().getIndexes(), "индекс восстановлен из снимка");
+
+        equal(List.of(records.get(776).toString()), rows(lazy.search("quantity", "777")));
+        equal(pages - 1, lazy.getUnloadedPages(), "поиск по индексу загрузил одну страницу");
+        equal(rows(records.subList(0, 9)), rows(lazy.search("quantity", "10", "<")));
+
+        // Индекс продолжает обновляться после загрузки
+        lazy.sell(777, 700);
+        equal(List.of(), lazy.search("quantity", "777"));
+        equal(List.of(77, 777), lazy.search("quantity", "77").stream().map(r -> r.id).sorted().toList());
+    }
+
+    @Test
+    static void droppedOrStaleIndexesAreNotRestored() throws Exception {
+        String file = dir() + "/db";
+        List<Record> records = distinct(5000);
+        Database db = new Database(file, 2);
+        db.addRecords(records);
+        db.createIndex("price").get();
+        db.save();
+        db.dropIndex("price");
+        db.save();
+
+        Database reloaded = new Database(file, 2);
+        reloaded.load();
+        equal(Set.of(), reloaded.getIndexAdvisor().getIndexes(), "удалённый индекс не восстанавливается");
+
+        // Индекс, созданный до загрузки, перестраивается по файлам без его раздела
+        Database early = new Database(file, 2);
+        early.createIndex("quantity").get();
+        early.load();
+        for (int i = 0; i < 500 && early.getUnloadedPages() > 0; i++) Thread.sleep(10);
+        equal(0, early.getUnloadedPages(), "перестройка прочитала все страницы");
+        equal(Set.of("quantity"), early.getIndexAdvisor().getIndexes());
+        equal(List.of(records.get(41).toString()), rows(early.search("quantity", "42")));
+    }
+}
@@ -0,0 +1,171 @@
+package model;
+
+import java.util.*;
+
+import static model.Tests.*;
+
+// Материализованные представления: после любых изменений результат равен пересчёту запроса
+public class MaterializedViewTest {
+
+    public static void main(String[] args) {
+        Tests.run(MaterializedViewTest.class);
+    }
+
+    private static List<String> strings(List<Object[]> rows) {
+        List<String> res = new ArrayList<>();
+        for (Object[] row : rows) res.add(Arrays.toString(row));
+        return res;
+    }
+
+    // Представление и пересчёт складывают в разном порядке, поэтому дробные значения сравниваются с допуском
+    private static void sameGroups(List<Object[]> expected, List<Object[]> actual) {
+        Comparator<Object[]> byKey = Comparator.comparing(r -> String.valueOf(r[0]));
+        expected = new ArrayList<>(expected);
+        actual = new ArrayList<>(actual);
+        expected.sort(byKey);
+        actual.sort(byKey);
+        equal(expected.size(), actual.size(), "число групп");
+        for (int i = 0; i < expected.size(); i++) {
+            Object[] e = expected.get(i), a = actual.get(i);
+            for (int j = 0; j < e.length; j++) {
+                if (e[j] instanceof Double x)
+                    check(Math.abs(x - (Double) a[j]) <= 1e-6 * Math.max(1, Math.abs(x)),
+                            Arrays.toString(e) + " != " + Arrays.toString(a));
+                else
+                    equal(e[j], a[j], Arrays.toString(e));
+            }
+        }
+    }
+
+    private static void randomChanges(Database db, Random rnd, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            int id = 1 + rnd.nextInt(600);
+            switch (rnd.nextInt(6)) {
+                case 0 -> db.addRecord(new Record(id, "item" + rnd.nextInt(30), rnd.nextInt(20), rnd.nextInt(100), "sup" + rnd.nextInt(8)));
+                case 1 -> db.deleteById(id);
+                case 2 -> db.sell(id, 1 + rnd.nextInt(5));
+                case 3 -> db.supply(id, 1 + rnd.nextInt(5));
+                case 4 -> db.update("supplier", "sup" + rnd.nextInt(8), "id", String.valueOf(id));
+                default -> db.update("price", String.valueOf(rnd.nextInt(100)), "supplier", "sup" + rnd.nextInt(8));
+            }
+        }
+    }
+
+    @Test
+    static void recordViewEqualsRecomputedQuery() throws Exception {
+        Database db = new Database(dir() + "/db", 2);
+        db.addRecords(sample(500, 1));
+        Query q = db.query().where("quantity", "<", "10").orderBy("quantity", true).limit(25);
+        MaterializedView view = db.materialize(q, "id", "quantity", "supplier");
+        equal(List.of("id", "quantity", "supplier"), view.columns());
+
+        Random rnd = new Random(1);
+        for (int round = 0; round < 20; round++) {
+            randomChanges(db, rnd, 50);
+            List<Object[]> expected = new ArrayList<>();
+            for (Record r : db.query().where("quantity", "<", "10").orderBy("quantity", true).limit(25).list())
+                expected.add(new Object[]{r.id, r.quantity, r.supplier});
+            equal(strings(expected), strings(view.rows()), "раунд " + round);
+        }
+    }
+
+    @Test
+    static void groupViewEqualsRecomputedAggregation() throws Exception {
+        Database db = new Database(dir() + "/db", 3);
+        db.addRecords(sample(500, 2));
+        MaterializedView view = db.materialize(db.groupBy("supplier")
+                .aggregate("COUNT(*)").aggregate("SUM(quantity*price)").aggregate("AVG(price)")
+                .aggregate("MIN(quantity)").aggregate("MAX(price)"));
+
+        Random rnd = new Random(2);
+        for (int round = 0; round < 20; round++) {
+            randomChanges(db, rnd, 50);
+            List<Object[]> expected = db.groupBy("supplier")
+                    .aggregate("COUNT(*)").aggregate("SUM(quantity*price)").aggregate("AVG(price)")
+                    .aggregate("MIN(quantity)").aggregate("MAX(price)").list();
+            sameGroups(expected, view.rows());
+        }
+
+        // Минимум и максимум пересчитываются, когда уходит последняя запись с этим значением
+        db.deleteAll();
+        db.addRecord(new Record(1, "a", 1, 10, "s"));
+        db.addRecord(new Record(2, "b", 5, 50, "s"));
+        db.deleteById(1);
+        equal(List.of("[s, 1, 250.0, 50.0, 5, 50.0]"), strings(view.rows()));
+        db.deleteById(2);
+        equal(List.of(), view.rows());
+    }
+
+    @Test
+    static void sumsDoNotDriftAfterManyUpdates() throws Exception {
+        Database db = new Database(dir() + "/db", 2);
+        db.addRecords(sample(500, 5));
+        GroupBy spec = db.groupBy("supplier").aggregate("SUM(quantity*price)").aggregate("AVG(price)").aggregate("SUM(quantity)");
+        MaterializedView view = db.materialize(spec);
+
+        // Крупные суммы приходят и уходят: простое вычитание теряло бы младшие разряды оставшихся записей
+        Random rnd = new Random(5);
+        for (int i = 0; i < 20_000; i++) {
+            int id = 10_000 + i % 50;
+            if (i % 2 == 0) db.addRecord(new Record(id, "big", 1_000_000, 1e9 + rnd.nextInt(1000) / 7.0, "sup" + rnd.nextInt(8)));
+            else db.deleteById(id - 1);
+            if (i % 10 == 0) db.update("price", String.valueOf(rnd.nextInt(1000) / 7.0), "id", String.valueOf(1 + rnd.nextInt(500)));
+        }
+
+        Map<Object, Object[]> expected = new HashMap<>();
+        for (Object[] row : spec.list()) expected.put(row[0], row);
+        equal(expected.size(), view.rows().size(), "число групп");
+        for (Object[] row : view.rows()) {
+            Object[] e = expected.get(row[0]);
+            for (int j = 1; j <= 2; j++) {
+                double x = (Double) e[j], y = (Double) row[j];
+                check(Math.abs(x - y) <= 1e-9 * Math.max(1, Math.abs(x)), Arrays.toString(e) + " != " + Arrays.toString(row));
+            }
+            equal(e[3], row[3], "целая сумма точна");
+        }
+    }
+
+    @Test
+    static void deltasReplayToCurrentRows() throws Exception {
+        Database db = new Database(dir() + "/db");
+        db.addRecords(sample(300, 3));
+        MaterializedView view = db.materialize(db.query().where("supplier", "=", "sup1"));
+
+        List<String> replica = new ArrayList<>(strings(view.rows()));
+        List<Long> versions = new ArrayList<>();
+        view.subscribe(d -> {
+            versions.add(d.version);
+            for (String row : strings(d.removed)) check(replica.remove(row), "удаляемая строка есть: " + row);
+            replica.addAll(strings(d.added));
+        });
+
+        randomChanges(db, new Random(3), 400);
+        db.update("supplier", "sup1", "supplier", "sup2");
+
+        Collections.sort(replica);
+        List<String> rows = strings(view.rows());
+        Collections.sort(rows);
+        equal(rows, replica);
+        check(!versions.isEmpty(), "дельты пришли");
+        for (int i = 1; i < versions.size(); i++)
+            check(versions.get(i - 1) < versions.get(i), "дельты в порядке коммитов");
+    }
+
+    @Test
+    static void loadAndCloseAreHandled() throws Exception {
+        String file = dir() + "/db";
+        Database saved = new Database(file);
+        saved.addRecords(sample(200, 4));
+        saved.save();
+
+        Database db = new Database(file);
+        MaterializedView view = db.materialize(db.groupBy().aggregate("COUNT(*)"));
+        equal(0L, view.rows().get(0)[0]);
+        db.load();
+        equal(200L, view.rows().get(0)[0]);
+
+        view.close();
+        db.deleteById(1);
+        equal(200L, view.rows().get(0)[0], "закрытое представление не обновляется");
+    }
+}
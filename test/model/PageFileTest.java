@@ -0,0 +1,111 @@
+package model;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.*;
+
+import static model.Tests.*;
+
+// Страничный формат файла шарда и ленивая расшифровка страниц
+public class PageFileTest {
+
+    private static final SecretKeySpec KEY = new SecretKeySpec("1234567890ABCDEF".getBytes(), "AES");
+
+    public static void main(String[] args) {
+        Tests.run(PageFileTest.class);
+    }
+
+    @Test
+    static void writeAndOpenRoundTrip() throws Exception {
+        List<Record> records = sample(20_000, 1);
+        File f = new File(dir(), "pages");
+        PageFile.write(f, KEY, Compression.FAST, "hash:1", records);
+        equal(PageFile.VERSION, StorageFormat.version(f));
+
+        StringDictionary dict = new StringDictionary();
+        try (PageFile pf = PageFile.open(f, KEY, dict)) {
+            check(pf.pages.length > 1, "несколько страниц");
+            equal("hash:1", pf.layout);
+            equal(records.size(), pf.totalRows());
+            equal(rows(records), rows(pf.readAll(dict)));
+
+            for (int id : new int[]{1, 777, 20_000}) {
+                int page = pf.pageOf(id);
+                check(pf.read(page, dict).stream().anyMatch(r -> r.id == id), "страница " + page + " содержит " + id);
+            }
+            equal(-1, pf.pageOf(0));
+            equal(-1, pf.pageOf(20_001));
+        }
+    }
+
+    @Test
+    static void emptyFileRoundTrips() throws Exception {
+        File f = new File(dir(), "pages");
+        PageFile.write(f, KEY, Compression.NONE, "", List.of());
+        try (PageFile pf = PageFile.open(f, KEY, new StringDictionary())) {
+            equal(0, pf.pages.length);
+        }
+    }
+
+    @Test
+    static void loadDecryptsPagesOnDemand() throws Exception {
+        String file = dir() + "/db";
+        List<Record> records = sample(50_000, 2);
+        Database db = new Database(file, 2);
+        db.addRecords(records);
+        db.save();
+
+        Database lazy = new Database(file, 2);
+        lazy.load();
+        int pages = lazy.getUnloadedPages();
+        check(pages > 4, "страницы не загружены при load(): " + pages);
+        equal(50_000, lazy.getTotalRecords());
+
+        equal(List.of(records.get(41).toString()), rows(lazy.search("id", "42")));
+        equal(pages - 1, lazy.getUnloadedPages(), "поиск по id загрузил одну страницу");
+
+        equal(rows(records), rows(lazy.getAll()));
+        equal(0, lazy.getUnloadedPages());
+    }
+
+    @Test
+    static void writesBeforeLoadingWin() throws Exception {
+        String file = dir() + "/db";
+        List<Record> records = sample(30_000, 3);
+        Database db = new Database(file, 1);
+        db.addRecords(records);
+        db.save();
+
+        Database lazy = new Database(file, 1);
+        lazy.load();
+        lazy.deleteById(25_000);
+        lazy.supply(29_000, 1000);
+        lazy.addRecord(new Record(40_000, "new", 1, 1, "s"));
+
+        List<Record> all = lazy.getAll();
+        equal(30_000, all.size());
+        check(all.stream().noneMatch(r -> r.id == 25_000), "удалённая запись не вернулась из файла");
+        equal(records.get(28_999).quantity + 1000, lazy.search("id", "29000").get(0).quantity);
+    }
+
+    @Test
+    static void tamperedPageIsDetected() throws Exception {
+        String file = dir() + "/db";
+        Database db = new Database(file, 1);
+        db.addRecords(sample(10_000, 4));
+        db.save();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(StorageFormat.HEADER_SIZE + 100);
+            int b = raf.read();
+            raf.seek(StorageFormat.HEADER_SIZE + 100);
+            raf.write(b ^ 1);
+        }
+
+        Database lazy = new Database(file, 1);
+        lazy.load();
+        fails(UncheckedIOException.class, lazy::getAll);
+    }
+}
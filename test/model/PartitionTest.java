@@ -0,0 +1,145 @@
+package model;
+
+import java.io.File;
+import java.util.*;
+
+import static model.Tests.*;
+
+// Разбиение таблицы на шарды и scatter-gather запросы
+public class PartitionTest {
+
+    public static void main(String[] args) {
+        Tests.run(PartitionTest.class);
+    }
+
+    @Test
+    static void hashSpreadsRecordsOverAllShards() throws Exception {
+        Database db = new Database(dir() + "/db", 4);
+        db.addRecords(sample(1000, 1));
+
+        Set<Shard> used = new HashSet<>();
+        for (int id = 1; id <= 1000; id++) used.add(db.shardFor(id));
+        equal(4, used.size(), "шардов с записями");
+        equal(1000, used.stream().mapToInt(Shard::size).sum(), "записей во всех шардах");
+
+        // id с шагом, кратным числу шардов, тоже расходятся по всем шардам поровну
+        for (int shards : new int[]{2, 4, 8, 16}) {
+            Partitioner p = Partitioner.hash(shards);
+            for (int stride : new int[]{1, 2, 4, 8, 16, 1024}) {
+                int[] counts = new int[shards];
+                for (int i = 1; i <= 1000 * shards; i++) counts[p.shardOf(i * stride)]++;
+                for (int c : counts)
+                    check(c > 800 && c < 1200, shards + " шардов, шаг " + stride + ": " + Arrays.toString(counts));
+            }
+        }
+    }
+
+    @Test
+    static void diskStoresOfOtherLayoutAreRepartitioned() throws Exception {
+        String file = dir() + "/db";
+        List<Record> records = sample(2000, 5);
+        Database db = Database.onDisk(file, 2, 64);
+        db.addRecords(records);
+        db.close();
+
+        // Файлы шардов переставлены: каждая запись лежит не в своём шарде
+        File a = new File(file + ".0.tree"), b = new File(file + ".1.tree"), tmp = new File(file + ".tmp.tree");
+        check(a.renameTo(tmp) && b.renameTo(a) && tmp.renameTo(b), "файлы переставлены");
+
+        Database reopened = Database.onDisk(file, 2, 64);
+        try {
+            equal(rows(records), rows(reopened.getAll()));
+            for (Record r : records.subList(0, 50))
+                equal(r.toString(), reopened.search("id", String.valueOf(r.id)).get(0).toString());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    static void rangePartitionerRoutesByBounds() {
+        Partitioner p = Partitioner.range(100, 200);
+        equal(3, p.shardCount());
+        equal(0, p.shardOf(-5));
+        equal(0, p.shardOf(100));
+        equal(1, p.shardOf(101));
+        equal(2, p.shardOf(201));
+        check(!p.overlaps(0, 150, 190), "шард 0 не содержит id из [150, 190]");
+        fails(IllegalArgumentException.class, () -> Partitioner.range(5, 5));
+    }
+
+    @Test
+    static void queriesMergeResultsOfAllShards() throws Exception {
+        List<Record> records = sample(2000, 2);
+        Database db = new Database(dir() + "/db", Partitioner.range(500, 1000, 1500));
+        db.addRecords(records);
+
+        List<Double> prices = new ArrayList<>();
+        for (Record r : records) prices.add(r.price);
+        Collections.sort(prices);
+        List<Double> sorted = new ArrayList<>();
+        for (Record r : db.getSorted("price")) sorted.add(r.price);
+        equal(prices, sorted, "сортировка по цене");
+
+        List<Integer> top = new ArrayList<>();
+        for (Record r : db.getTop("quantity", 10, true)) top.add(r.quantity);
+        List<Integer> quantities = new ArrayList<>();
+        for (Record r : records) quantities.add(r.quantity);
+        quantities.sort(Comparator.reverseOrder());
+        equal(quantities.subList(0, 10), top, "top-10 по количеству");
+
+        List<Record> expected = new ArrayList<>();
+        for (Record r : records) if (r.supplier.equals("sup3")) expected.add(r);
+        equal(rows(expected), rows(db.search("supplier", "sup3")), "поиск по поставщику");
+    }
+
+    @Test
+    static void updateIdDoesNotOverwriteOtherRecords() throws Exception {
+        Database db = new Database(dir() + "/db", 4);
+        for (int i = 1; i <= 6; i++) db.addRecord(new Record(i, "n" + i, 1, 1.0, "s"));
+
+        equal(1, db.update("id", "100", "supplier", "s"), "переименован только один");
+        equal(6, db.getAll().size());
+        equal(0, db.update("id", "3", "id", "100"), "id 3 занят");
+        equal(6, db.getAll().size());
+        equal(1, db.search("id", "100").size());
+    }
+
+    @Test
+    static void saveWritesFilePerShardAndLoadsBack() throws Exception {
+        String file = dir() + "/db";
+        List<Record> records = sample(500, 3);
+        Database db = new Database(file, 4);
+        db.addRecords(records);
+        db.save();
+
+        for (int i = 0; i < 4; i++) check(new File(file + "." + i).exists(), "файл шарда " + i);
+
+        Database loaded = new Database(file, 4);
+        loaded.load();
+        equal(rows(records), rows(loaded.getAll()));
+    }
+
+    @Test
+    static void loadWithOtherLayoutRedistributes() throws Exception {
+        String file = dir() + "/db";
+        List<Record> records = sample(500, 4);
+        Database db = new Database(file, 4);
+        db.addRecords(records);
+        db.save();
+
+        Database loaded = new Database(file, Partitioner.range(250));
+        loaded.load();
+        equal(rows(records), rows(loaded.getAll()));
+        equal(250, loaded.shardFor(1).size());
+
+        // После сохранения лишние файлы прежней раскладки удаляются и не читаются повторно
+        loaded.deleteById(1);
+        loaded.save();
+        check(!new File(file + ".2").exists() && !new File(file + ".3").exists(), "лишние файлы удалены");
+
+        Database single = new Database(file, 1);
+        single.load();
+        equal(rows(records.subList(1, records.size())), rows(single.getAll()));
+    }
+}
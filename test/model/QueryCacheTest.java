@@ -0,0 +1,129 @@
+package model;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+import static model.Tests.*;
+
+// Кэш результатов поиска: попадания, точный сброс после изменений и вытеснение
+public class QueryCacheTest {
+
+    public static void main(String[] args) {
+        Tests.run(QueryCacheTest.class);
+    }
+
+    private static List<Record> brute(Database db, Predicate<Record> match) {
+        List<Record> res = new ArrayList<>();
+        for (Record r : db.getAll()) if (match.test(r)) res.add(r);
+        return res;
+    }
+
+    @Test
+    static void repeatedSearchIsServedFromCache() throws Exception {
+        Database db = new Database(dir() + "/db");
+        db.addRecords(sample(1000, 1));
+
+        List<Record> first = db.search("supplier", "sup3");
+        long misses = db.getQueryCacheMisses();
+        check(db.search("supplier", "sup3") == first, "тот же результат из кэша");
+        equal(1L, db.getQueryCacheHits());
+        equal(misses, db.getQueryCacheMisses());
+
+        // Разные записи одного числа — один запрос
+        db.search("quantity", "5");
+        db.search("quantity", "05");
+        equal(2L, db.getQueryCacheHits());
+    }
+
+    @Test
+    static void unrelatedWritesKeepEntries() throws Exception {
+        Database db = new Database(dir() + "/db");
+        db.addRecord(new Record(1, "tv", 5, 100, "Sony"));
+        db.addRecord(new Record(2, "radio", 5, 10, "LG"));
+        db.addRecord(new Record(3, "phone", 7, 50, "LG"));
+
+        db.search("supplier", "Sony");
+        db.search("id", "3");
+        long invalidations = db.getQueryCacheInvalidations();
+
+        // Запись LG не входила в результат Sony и не вошла в него; id 2 вне диапазона запроса id=3
+        db.supply(2, 10);
+        db.addRecord(new Record(4, "mon", 1, 1, "LG"));
+        equal(invalidations, db.getQueryCacheInvalidations());
+        equal(2, db.getQueryCacheSize());
+
+        // Запись стала подходить под условие — результат сброшен и пересчитан
+        db.update("supplier", "Sony", "id", "2");
+        equal(List.of("1;tv;5;100.0;Sony", "2;radio;15;10.0;Sony"), rows(db.search("supplier", "Sony")));
+        db.sell(3, 1);
+        equal(6, db.search("id", "3").get(0).quantity);
+    }
+
+    @Test
+    static void cachedResultsMatchRecomputationAfterWrites() throws Exception {
+        Database db = new Database(dir() + "/db", 3);
+        db.addRecords(sample(2000, 2));
+        Random rnd = new Random(2);
+
+        for (int i = 0; i < 2000; i++) {
+            int id = 1 + rnd.nextInt(2100);
+            switch (rnd.nextInt(7)) {
+                case 0 -> db.addRecord(new Record(id, "item" + rnd.nextInt(40), rnd.nextInt(20), rnd.nextInt(50), "sup" + rnd.nextInt(20)));
+                case 1 -> db.deleteById(id);
+                case 2 -> db.sell(id, 1);
+                case 3 -> db.update("supplier", "sup" + rnd.nextInt(20), "id", String.valueOf(id));
+                case 4 -> db.update("id", String.valueOf(3000 + rnd.nextInt(100)), "id", String.valueOf(id));
+                default -> { }
+            }
+
+            String sup = "sup" + rnd.nextInt(20);
+            int quantity = rnd.nextInt(20), probe = 1 + rnd.nextInt(3100);
+            equal(rows(brute(db, r -> r.supplier.equals(sup))), rows(db.search("supplier", sup)), sup);
+            equal(rows(brute(db, r -> r.quantity == quantity)), rows(db.search("quantity", String.valueOf(quantity))));
+            equal(rows(brute(db, r -> r.id == probe)), rows(db.search("id", String.valueOf(probe))));
+            equal(rows(brute(db, r -> r.quantity < quantity)), rows(db.search("quantity", String.valueOf(quantity), "<")));
+            if (i % 100 == 0) equal(rows(db.getAll()), rows(db.getSorted("price")));
+        }
+        check(db.getQueryCacheHits() > 0, "были попадания");
+        check(db.getQueryCacheInvalidations() > 0, "были сбросы");
+    }
+
+    @Test
+    static void largeBatchClearsAndLoadResets() throws Exception {
+        String file = dir() + "/db";
+        Database saved = new Database(file);
+        saved.addRecord(new Record(1, "tv", 5, 100, "Sony"));
+        saved.save();
+
+        Database db = new Database(file);
+        db.addRecord(new Record(2, "radio", 5, 10, "LG"));
+        db.search("supplier", "LG");
+        db.search("supplier", "Sony");
+        db.addRecords(sample(5000, 3));
+        equal(0, db.getQueryCacheSize());
+
+        db.search("supplier", "Sony");
+        db.load();
+        equal(List.of("1;tv;5;100.0;Sony"), rows(db.search("supplier", "Sony")));
+    }
+
+    @Test
+    static void lruEvictsByEntriesAndRows() {
+        QueryCache cache = new QueryCache(2, 5);
+        List<Record> one = List.of(new Record(1, "a", 1, 1, "s"));
+        cache.put("a", one, "id", 1, 1, r -> true);
+        cache.put("b", one, "id", 1, 1, r -> true);
+        cache.get("a");
+        cache.put("c", one, "id", 1, 1, r -> true);
+        check(cache.get("b") == null, "вытеснен давно не читанный");
+        check(cache.get("a") != null, "недавно читанный остался");
+        equal(1L, cache.evictions());
+
+        cache.put("big", Collections.nCopies(6, one.get(0)), "id", 1, 1, r -> true);
+        check(cache.get("big") == null, "результат больше лимита строк не кэшируется");
+        // 1 + 1 + 4 строк больше 5: вытесняется давно не читанный c
+        cache.put("four", Collections.nCopies(4, one.get(0)), "id", 1, 1, r -> true);
+        check(cache.get("c") == null, "вытеснен по лимиту строк");
+        equal(2, cache.size());
+    }
+}
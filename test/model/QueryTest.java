@@ -0,0 +1,89 @@
+package model;
+
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static model.Tests.*;
+
+// Потоковые запросы: условия, ORDER BY, LIMIT/OFFSET и top-k
+public class QueryTest {
+
+    public static void main(String[] args) {
+        Tests.run(QueryTest.class);
+    }
+
+    private static List<String> ids(List<Record> records) {
+        return records.stream().map(r -> String.valueOf(r.id)).collect(Collectors.toList());
+    }
+
+    @Test
+    static void pagesMatchSortedFullResult() throws Exception {
+        List<Record> records = sample(3000, 1);
+        Database db = new Database(dir() + "/db");
+        db.addRecords(records);
+
+        Comparator<Record> order = Comparator.comparingDouble((Record r) -> r.price).reversed()
+                .thenComparingInt(r -> r.id);
+        List<Record> expected = records.stream()
+                .filter(r -> r.supplier.equals("sup3") && r.quantity >= 10)
+                .sorted(order)
+                .toList();
+
+        List<Record> paged = new ArrayList<>();
+        for (int offset = 0; offset < expected.size() + 7; offset += 7)
+            paged.addAll(db.query()
+                    .where("supplier", "=", "sup3")
+                    .where("quantity", ">=", "10")
+                    .orderBy("price", true)
+                    .offset(offset)
+                    .limit(7)
+                    .list());
+        equal(ids(expected), ids(paged), "страницы OFFSET/LIMIT не пересекаются и не теряют записей");
+    }
+
+    @Test
+    static void topKWithTiesIsOrderedById() throws Exception {
+        Database db = new Database(dir() + "/db");
+        for (int i = 1; i <= 100; i++) db.addRecord(new Record(i, "n", i % 3, 1, "s"));
+
+        List<Record> top = db.query().orderBy("quantity", true).limit(5).list();
+        equal(List.of("2", "5", "8", "11", "14"), ids(top));
+        equal(List.of("2", "5", "8", "11", "14"), ids(db.getTop("quantity", 5, true)));
+    }
+
+    @Test
+    static void unorderedQueryStreamsWithIdRange() throws Exception {
+        Database db = new Database(dir() + "/db", Partitioner.range(100, 200, 300));
+        db.addRecords(sample(400, 2));
+
+        equal(50L, db.query().where("id", ">", "150").where("id", "<=", "200").count());
+        equal(11, db.query().where("id", ">=", "390").list().size());
+        equal(3L, db.query().limit(3).count());
+        equal(0L, db.query().offset(400).count());
+        fails(IllegalArgumentException.class, () -> db.query().limit(-1));
+    }
+
+    @Test
+    static void streamHoldsSnapshotUntilClosed() throws Exception {
+        Database db = new Database(dir() + "/db");
+        db.addRecords(sample(100, 3));
+
+        try (Stream<Record> s = db.query().where("quantity", ">=", "0").stream()) {
+            equal(1, db.getActiveSnapshots());
+            db.deleteAll();
+            equal(100L, s.count(), "поток читает снимок на момент запуска");
+        }
+        equal(0, db.getActiveSnapshots());
+    }
+
+    @Test
+    static void likeConditionUsesTextIndex() throws Exception {
+        Database db = new Database(dir() + "/db");
+        db.addRecord(new Record(1, "Телевизор Sony", 1, 1, "Sony"));
+        db.addRecord(new Record(2, "Монитор LG", 1, 1, "LG"));
+        db.addRecord(new Record(3, "Телефон", 1, 1, "Nokia"));
+
+        equal(List.of("1", "3"), ids(db.query().where("name", "LIKE", "Тел%").orderBy("id").list()));
+    }
+}
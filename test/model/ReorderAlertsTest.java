@@ -0,0 +1,124 @@
+package model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static model.Tests.*;
+
+// Точки заказа: набор товаров ниже порога, события пересечения и файл порогов
+public class ReorderAlertsTest {
+
+    public static void main(String[] args) {
+        Tests.run(ReorderAlertsTest.class);
+    }
+
+    private static List<Integer> brute(Database db, ReorderAlerts alerts) {
+        List<Integer> res = new ArrayList<>();
+        for (Record r : db.getAll()) if (r.quantity < alerts.getThreshold(r.id)) res.add(r.id);
+        Collections.sort(res);
+        return res;
+    }
+
+    private static List<Integer> low(ReorderAlerts alerts) {
+        List<Integer> res = new ArrayList<>();
+        for (Record r : alerts.lowStock()) res.add(r.id);
+        Collections.sort(res);
+        return res;
+    }
+
+    @Test
+    static void lowSetMatchesBruteForce() throws Exception {
+        Database db = new Database(dir() + "/db", 3);
+        db.addRecords(sample(1000, 1));
+        ReorderAlerts alerts = db.openReorderAlerts(10);
+        fails(IllegalStateException.class, () -> db.openReorderAlerts(10));
+        equal(brute(db, alerts), low(alerts));
+        equal(db.getLowStockCount(10), (long) alerts.count(), "единый порог отвечает на getLowStockCount");
+
+        Random rnd = new Random(1);
+        for (int i = 0; i < 3000; i++) {
+            int id = 1 + rnd.nextInt(1100);
+            switch (rnd.nextInt(8)) {
+                case 0 -> db.addRecord(new Record(id, "n", rnd.nextInt(30), 1, "s"));
+                case 1 -> db.deleteById(id);
+                case 2, 3 -> db.sell(id, 1 + rnd.nextInt(10));
+                case 4 -> db.supply(id, 1 + rnd.nextInt(10));
+                case 5 -> db.update("quantity", String.valueOf(rnd.nextInt(30)), "id", String.valueOf(id));
+                case 6 -> alerts.setThreshold(id, rnd.nextInt(40));
+                default -> alerts.resetThreshold(id);
+            }
+            if (i % 100 == 0) equal(brute(db, alerts), low(alerts), "шаг " + i);
+        }
+        equal(brute(db, alerts), low(alerts));
+        for (int id : low(alerts)) check(alerts.isLow(id), "isLow " + id);
+
+        // Набор держит текущие версии записей
+        for (Record r : alerts.lowStock()) equal(db.search("id", String.valueOf(r.id)).get(0).toString(), r.toString());
+
+        db.load();
+        equal(brute(db, alerts), low(alerts), "после load()");
+    }
+
+    @Test
+    static void crossingsAreDeliveredInOrder() throws Exception {
+        Database db = new Database(dir() + "/db");
+        db.addRecord(new Record(1, "tv", 8, 100, "Sony"));
+        db.addRecord(new Record(2, "radio", 2, 10, "LG"));
+        ReorderAlerts alerts = db.openReorderAlerts(5);
+        equal(List.of(2), low(alerts));
+
+        BlockingQueue<String> events = new LinkedBlockingQueue<>();
+        // Обработчик сам пополняет склад: события доставляются вне commit-лока
+        alerts.subscribe(a -> {
+            events.add(a.type + " " + a.record.id + " " + a.record.quantity + " <" + a.threshold);
+            if (a.type == ReorderAlerts.Type.LOW && a.record.id == 1) db.supply(1, 10);
+        });
+
+        db.sell(1, 2);          // 6 — ещё не ниже порога
+        db.sell(1, 2);          // 4 — LOW, обработчик пополняет до 14
+        equal("LOW 1 4 <5", events.poll(5, TimeUnit.SECONDS));
+        equal("RESTOCKED 1 14 <5", events.poll(5, TimeUnit.SECONDS));
+
+        alerts.setThreshold(2, 2);
+        equal("RESTOCKED 2 2 <2", events.poll(5, TimeUnit.SECONDS));
+        alerts.resetThreshold(2);
+        equal("LOW 2 2 <5", events.poll(5, TimeUnit.SECONDS));
+        db.deleteById(2);
+        equal(List.of(), low(alerts), "удалённый товар выходит из набора без события");
+
+        alerts.close();
+        db.sell(1, 14);
+        check(events.poll(100, TimeUnit.MILLISECONDS) == null, "закрытые точки заказа не шлют событий");
+        check(db.getReorderAlerts() == null, "база отпустила точки заказа");
+    }
+
+    @Test
+    static void thresholdsSurviveReopen() throws Exception {
+        String file = dir() + "/db";
+        Database db = new Database(file);
+        db.addRecords(sample(100, 3));
+        ReorderAlerts alerts = db.openReorderAlerts(5);
+        alerts.setThreshold(1, 50);
+        alerts.setThreshold(2, 0);
+        alerts.setThreshold(3, 7);
+        alerts.resetThreshold(3);
+        db.save();
+        alerts.close();
+        check(new File(file + ".reorder").exists(), "пороги записаны");
+
+        Database reopened = new Database(file);
+        reopened.load();
+        ReorderAlerts again = reopened.openReorderAlerts(5);
+        equal(50, again.getThreshold(1));
+        equal(0, again.getThreshold(2));
+        equal(5, again.getThreshold(3));
+        equal(brute(reopened, again), low(again));
+        again.close();
+
+        Files.write(new File(file + ".reorder").toPath(), new byte[]{'I', 'M', 'S', 'R', 1, 0, 0});
+        fails(IOException.class, () -> new Database(file).openReorderAlerts(5));
+    }
+}
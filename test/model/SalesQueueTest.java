@@ -0,0 +1,97 @@
+package model;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static model.Tests.*;
+
+// Очередь продаж: пачки одним коммитом, порядок событий и простаивающий писатель
+public class SalesQueueTest {
+
+    public static void main(String[] args) {
+        Tests.run(SalesQueueTest.class);
+    }
+
+    @Test
+    static void eventsApplyInOrderWithinBatch() throws Exception {
+        Database db = new Database(dir() + "/db");
+        db.addRecord(new Record(1, "tv", 3, 100, "Sony"));
+        try (SalesQueue q = db.openSalesQueue(16, 8, false)) {
+            List<CompletableFuture<Boolean>> results = List.of(
+                    q.sell(1, 2),
+                    q.sell(1, 2),      // осталась 1 — отклонено
+                    q.supply(1, 10),
+                    q.sell(1, 5),
+                    q.sell(99, 1));    // нет записи
+            List<Boolean> accepted = new ArrayList<>();
+            for (CompletableFuture<Boolean> f : results) accepted.add(f.get(5, TimeUnit.SECONDS));
+            equal(List.of(true, false, true, true, false), accepted);
+        }
+        equal(6, db.search("id", "1").get(0).quantity);
+    }
+
+    @Test
+    static void concurrentProducersLoseNothing() throws Exception {
+        Database db = new Database(dir() + "/db", 4);
+        for (int id = 1; id <= 10; id++) db.addRecord(new Record(id, "n", 100_000, 1, "s"));
+
+        int threads = 4, perThread = 5000;
+        List<CompletableFuture<Boolean>> results = Collections.synchronizedList(new ArrayList<>());
+        try (SalesQueue q = db.openSalesQueue(64, 256, false)) {
+            List<Thread> producers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int seed = t;
+                Thread p = new Thread(() -> {
+                    for (int i = 0; i < perThread; i++) results.add(q.sell(1 + (seed + i) % 10, 1));
+                });
+                producers.add(p);
+                p.start();
+            }
+            for (Thread p : producers) p.join();
+            for (CompletableFuture<Boolean> f : results) check(f.get(5, TimeUnit.SECONDS), "продажа принята");
+
+            equal((long) threads * perThread, q.getProcessed());
+            check(q.getBatches() < q.getProcessed(), "события применяются пачками: " + q.getBatches());
+            equal(0L, q.size());
+        }
+        equal(10 * 100_000 - threads * perThread, db.getTotalQuantity());
+    }
+
+    @Test
+    static void idleWriterSleepsUntilWoken() throws Exception {
+        Database db = new Database(dir() + "/db");
+        db.addRecord(new Record(1, "tv", 1000, 1, "s"));
+        try (SalesQueue q = db.openSalesQueue(8, 4, false)) {
+            for (int round = 0; round < 3; round++) {
+                Thread.sleep(100);
+                for (Thread t : Thread.getAllStackTraces().keySet())
+                    if (t.getName().equals("sales-writer"))
+                        equal(Thread.State.WAITING, t.getState(), "писатель спит без тайм-аута");
+                check(q.sell(1, 1).get(5, TimeUnit.SECONDS), "спящий писатель разбужен");
+            }
+        }
+        equal(997, db.search("id", "1").get(0).quantity);
+    }
+
+    @Test
+    static void closeDrainsAcceptedAndRejectsNew() throws Exception {
+        String file = dir() + "/db";
+        Database db = new Database(file);
+        db.addRecord(new Record(1, "tv", 1000, 1, "s"));
+        SalesQueue q = db.openSalesQueue(1024, 32, true);
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < 500; i++) results.add(q.sell(1, 1));
+        q.close();
+
+        for (CompletableFuture<Boolean> f : results) check(f.isDone() && f.get(), "принятое событие применено до close");
+        ExecutionException e = fails(ExecutionException.class, () -> q.sell(1, 1).get());
+        check(e.getCause() instanceof IllegalStateException, "очередь закрыта");
+
+        // Пачки сохранялись по мере применения
+        Database loaded = new Database(file);
+        loaded.load();
+        equal(500, loaded.search("id", "1").get(0).quantity);
+    }
+}
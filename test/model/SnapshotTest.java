@@ -0,0 +1,115 @@
+package model;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static model.Tests.*;
+
+// Версии записей и снимки (MVCC)
+public class SnapshotTest {
+
+    public static void main(String[] args) {
+        Tests.run(SnapshotTest.class);
+    }
+
+    @Test
+    static void snapshotSeesStateAtCreation() throws Exception {
+        Database db = new Database(dir() + "/db");
+        List<Record> records = sample(200, 1);
+        db.addRecords(records);
+
+        try (Snapshot snap = db.snapshot()) {
+            db.sell(1, records.get(0).quantity);
+            db.deleteById(2);
+            db.update("price", "1.5", "supplier", "sup3");
+            db.addRecord(new Record(1000, "new", 1, 1, "sup1"));
+
+            List<Record> seen = new ArrayList<>();
+            for (Record r : snap) seen.add(r);
+            equal(rows(records), rows(seen), "снимок не видит последующих изменений");
+            equal(records.get(0).quantity, snap.get(1).quantity);
+            check(snap.get(1000) == null, "новая запись не видна старому снимку");
+        }
+
+        try (Snapshot snap = db.snapshot()) {
+            equal(0, snap.get(1).quantity);
+            check(snap.get(2) == null, "удалённая запись не видна");
+            check(snap.stream().filter(r -> r.supplier.equals("sup3")).allMatch(r -> r.price == 1.5), "цены обновлены");
+            equal(200, (int) snap.stream().count());
+        }
+    }
+
+    @Test
+    static void multiRecordUpdateIsVisibleAtOnce() throws Exception {
+        Database db = new Database(dir() + "/db");
+        List<Record> records = new ArrayList<>();
+        for (int i = 1; i <= 2000; i++) records.add(new Record(i, "n" + i, 1, 1.0, "s"));
+        db.addRecords(records);
+
+        AtomicBoolean stop = new AtomicBoolean();
+        ExecutorService readers = Executors.newFixedThreadPool(2);
+        List<Future<Integer>> torn = new ArrayList<>();
+        for (int t = 0; t < 2; t++) {
+            torn.add(readers.submit(() -> {
+                int bad = 0;
+                while (!stop.get()) {
+                    try (Snapshot snap = db.snapshot()) {
+                        long distinct = snap.stream().mapToDouble(r -> r.price).distinct().count();
+                        if (distinct != 1) bad++;
+                    }
+                }
+                return bad;
+            }));
+        }
+        for (int i = 2; i <= 30; i++) db.update("price", String.valueOf(i), "supplier", "s");
+        stop.set(true);
+        for (Future<Integer> f : torn) equal(0, f.get(), "снимков с частично применённым update");
+        readers.shutdown();
+    }
+
+    @Test
+    static void oldVersionsAreCollectedAfterClose() throws Exception {
+        Database db = new Database(dir() + "/db");
+        db.addRecord(new Record(1, "a", 10, 1, "s"));
+
+        Snapshot old = db.snapshot();
+        db.supply(1, 5);
+        db.supply(1, 5);
+        equal(1, db.getActiveSnapshots());
+        equal(10, old.get(1).quantity, "версия удерживается открытым снимком");
+
+        old.close();
+        equal(0, db.getActiveSnapshots());
+        db.supply(1, 1);
+        check(db.shardFor(1).get(1, old.version()) == null, "старые версии собраны");
+        equal(21, db.search("id", "1").get(0).quantity);
+    }
+
+    @Test
+    static void iterationIsNotDisturbedByWriters() throws Exception {
+        Database db = new Database(dir() + "/db");
+        db.addRecords(sample(20_000, 2));
+
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try (Snapshot snap = db.snapshot()) {
+            Future<?> writes = writer.submit(() -> {
+                Random rnd = new Random(3);
+                for (int i = 0; i < 20_000; i++) {
+                    int id = 1 + rnd.nextInt(20_000);
+                    if (i % 3 == 0) db.deleteById(id);
+                    else db.addRecord(new Record(20_000 + i, "x", 1, 1, "s"));
+                }
+            });
+            long total = 0, quantity = 0;
+            for (Record r : snap) {
+                total++;
+                quantity += r.quantity;
+            }
+            writes.get();
+            equal(20_000L, total);
+            equal(quantity, snap.stream().mapToLong(r -> r.quantity).sum(), "повторное чтение снимка");
+        }
+        writer.shutdown();
+    }
+}
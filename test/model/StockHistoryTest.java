@@ -0,0 +1,230 @@
+package model;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.*;
+
+import static model.Tests.*;
+
+// История остатков: файл блоков после перезапуска и сбоя, точки, срезы и прореживание
+public class StockHistoryTest {
+
+    private static final SecretKeySpec KEY = new SecretKeySpec("1234567890ABCDEF".getBytes(), "AES");
+
+    public static void main(String[] args) {
+        Tests.run(StockHistoryTest.class);
+    }
+
+    private static List<String> points(List<StockHistory.Point> points) {
+        return points.stream().map(StockHistory.Point::toString).toList();
+    }
+
+    // Случайные изменения нескольких товаров; expected — ожидаемые точки каждого ряда
+    private static void changes(StockHistory h, Random rnd, long[] time, int count, Map<Integer, List<StockHistory.Point>> expected) {
+        for (int i = 0; i < count; i++) {
+            time[0] += rnd.nextInt(5000);
+            int id = 1 + rnd.nextInt(5);
+            List<StockHistory.Point> series = expected.computeIfAbsent(id, k -> new ArrayList<>());
+            StockHistory.Point last = series.isEmpty() ? null : series.get(series.size() - 1);
+
+            Record r = new Record(id, "n" + id, rnd.nextInt(30), rnd.nextInt(4) == 0 ? rnd.nextInt(100) : 10, "s");
+            Record old = last == null ? null : new Record(id, "n" + id, last.quantity, last.price, "s");
+            boolean delete = old != null && rnd.nextInt(10) == 0;
+            h.append(time[0], List.<Record[]>of(delete ? new Record[]{old, null} : new Record[]{old, r}));
+
+            int quantity = delete ? 0 : r.quantity;
+            double price = delete ? old.price : r.price;
+            if (last == null || last.quantity != quantity || last.price != price)
+                series.add(new StockHistory.Point(time[0], quantity, price));
+        }
+    }
+
+    @Test
+    static void pointsSurviveReopen() throws Exception {
+        File f = new File(dir(), "db.history");
+        Map<Integer, List<StockHistory.Point>> expected = new TreeMap<>();
+        Random rnd = new Random(1);
+        long[] time = {1_000_000};
+
+        for (int session = 0; session < 3; session++) {
+            try (StockHistory h = new StockHistory(f, KEY)) {
+                for (int block = 0; block < 4; block++) {
+                    changes(h, rnd, time, 300, expected);
+                    h.flush();
+                }
+                changes(h, rnd, time, 50, expected);
+            }
+        }
+
+        try (StockHistory h = new StockHistory(f, KEY)) {
+            long total = 0;
+            for (Map.Entry<Integer, List<StockHistory.Point>> e : expected.entrySet()) {
+                equal(points(e.getValue()), points(h.range(e.getKey(), Long.MIN_VALUE, Long.MAX_VALUE)), "ряд " + e.getKey());
+                total += e.getValue().size();
+            }
+            equal(total, h.getPoints());
+            equal(expected.size(), h.getSeries());
+        }
+    }
+
+    @Test
+    static void tornTailIsDropped() throws Exception {
+        File f = new File(dir(), "db.history");
+        long complete;
+        try (StockHistory h = new StockHistory(f, KEY)) {
+            h.append(1000, List.<Record[]>of(new Record[]{null, new Record(1, "a", 5, 10, "s")}));
+            h.flush();
+            complete = h.getFileSize();
+            h.append(2000, List.<Record[]>of(new Record[]{null, new Record(2, "b", 7, 10, "s")}));
+        }
+        check(f.length() > complete, "второй блок записан");
+
+        // Блок оборван при записи
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(f.length() - 3);
+        }
+        try (StockHistory h = new StockHistory(f, KEY)) {
+            equal(1L, h.getPoints());
+            equal(List.of("1000: 5 x 10.0"), points(h.range(1, 0, Long.MAX_VALUE)));
+            check(h.at(2, Long.MAX_VALUE) == null, "оборванный блок отброшен");
+            equal(complete, h.getFileSize(), "хвост отрезан");
+
+            h.append(3000, List.<Record[]>of(new Record[]{null, new Record(2, "b", 8, 10, "s")}));
+        }
+
+        // Мусор после последнего целого блока тоже отрезается, а дописанное после отрезания читается
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek(raf.length());
+            raf.write(new byte[]{0, 0, 0, 40, 1, 2, 3});
+        }
+        try (StockHistory h = new StockHistory(f, KEY)) {
+            equal(List.of("3000: 8 x 10.0"), points(h.range(2, 0, Long.MAX_VALUE)));
+            equal(2L, h.getPoints());
+        }
+
+        File other = new File(dir(), "other.history");
+        try (RandomAccessFile raf = new RandomAccessFile(other, "rw")) {
+            raf.write(new byte[]{'I', 'M', 'S', 'X', 1});
+        }
+        fails(IOException.class, () -> new StockHistory(other, KEY));
+    }
+
+    @Test
+    static void rangeAtAndDownsampleMatchPoints() throws Exception {
+        Map<Integer, List<StockHistory.Point>> expected = new TreeMap<>();
+        Random rnd = new Random(2);
+        long[] time = {0};
+        try (StockHistory h = new StockHistory(new File(dir(), "db.history"), KEY)) {
+            // Несколько сегментов на ряд
+            changes(h, rnd, time, 5000, expected);
+
+            for (Map.Entry<Integer, List<StockHistory.Point>> e : expected.entrySet()) {
+                int id = e.getKey();
+                List<StockHistory.Point> all = e.getValue();
+                check(all.size() > 256, "больше одного сегмента: " + all.size());
+
+                for (int i = 0; i < 50; i++) {
+                    long from = rnd.nextInt((int) time[0]), to = from + rnd.nextInt(200_000);
+                    equal(points(all.stream().filter(p -> p.time >= from && p.time <= to).toList()),
+                            points(h.range(id, from, to)), "range " + from + ".." + to);
+
+                    StockHistory.Point at = h.at(id, from);
+                    StockHistory.Point brute = at(all, from);
+                    equal(String.valueOf(brute), String.valueOf(at), "at " + from);
+
+                    int count = 1 + rnd.nextInt(40);
+                    equal(downsample(all, from, to, count), buckets(h.downsample(id, from, to, count)),
+                            "downsample " + from + ".." + to + " / " + count);
+                }
+                // Интервалы до первой точки пропускаются
+                equal(downsample(all, -100_000, time[0], 7), buckets(h.downsample(id, -100_000, time[0], 7)));
+            }
+            check(h.at(99, time[0]) == null, "нет такого товара");
+            equal(List.of(), h.downsample(1, 10, 10, 5));
+        }
+    }
+
+    private static StockHistory.Point at(List<StockHistory.Point> all, long time) {
+        StockHistory.Point res = null;
+        for (StockHistory.Point p : all) {
+            if (p.time > time) break;
+            res = p;
+        }
+        return res;
+    }
+
+    private static List<String> buckets(List<StockHistory.Bucket> buckets) {
+        List<String> res = new ArrayList<>();
+        for (StockHistory.Bucket b : buckets)
+            res.add(b.start + ".." + b.end + " " + b.minQuantity + "/" + b.maxQuantity + "/" + b.lastQuantity
+                    + " x " + b.lastPrice + " (" + b.changes + ")");
+        return res;
+    }
+
+    // Прореживание перебором: интервал без точек продолжает остаток предыдущего
+    private static List<String> downsample(List<StockHistory.Point> all, long from, long to, int count) {
+        List<String> res = new ArrayList<>();
+        long width = Math.max(1, (to - from + count - 1) / count);
+        StockHistory.Point carry = at(all, from - 1);
+        for (long start = from; start < to; start += width) {
+            long s = start, end = Math.min(to, start + width);
+            List<StockHistory.Point> in = all.stream().filter(p -> p.time >= s && p.time < end).toList();
+            if (in.isEmpty()) {
+                if (carry != null)
+                    res.add(start + ".." + end + " " + carry.quantity + "/" + carry.quantity + "/" + carry.quantity
+                            + " x " + carry.price + " (0)");
+                continue;
+            }
+            int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+            if (carry != null) min = max = carry.quantity;
+            for (StockHistory.Point p : in) {
+                min = Math.min(min, p.quantity);
+                max = Math.max(max, p.quantity);
+            }
+            StockHistory.Point last = in.get(in.size() - 1);
+            res.add(start + ".." + end + " " + min + "/" + max + "/" + last.quantity + " x " + last.price + " (" + in.size() + ")");
+            carry = last;
+        }
+        return res;
+    }
+
+    @Test
+    static void databaseHistoryFollowsCommits() throws Exception {
+        String file = dir() + "/db";
+        Database db = new Database(file);
+        db.addRecord(new Record(1, "tv", 5, 100, "Sony"));
+        StockHistory h = db.openHistory();
+        fails(IllegalStateException.class, db::openHistory);
+
+        db.addRecord(new Record(2, "radio", 3, 10, "LG"));
+        db.sell(1, 2);
+        db.supply(2, 4);
+        db.deleteById(2);
+        equal(List.of(5, 3), h.range(1, 0, Long.MAX_VALUE).stream().map(p -> p.quantity).toList());
+        equal(List.of(3, 7, 0), h.range(2, 0, Long.MAX_VALUE).stream().map(p -> p.quantity).toList());
+        long now = System.currentTimeMillis();
+        equal(3L, h.trend(now - 60_000, now + 60_000, 1).get(0).quantity, "общий остаток на конец интервала");
+        db.save();
+        h.close();
+        check(db.getHistory() == null, "база отпустила закрытую историю");
+        db.sell(1, 1);
+        db.save();
+        db.sell(1, 1);
+        StockHistory same = db.openHistory();
+        equal(List.of(5, 3, 1), same.range(1, 0, Long.MAX_VALUE).stream().map(p -> p.quantity).toList(),
+                "изменения без истории догоняются при открытии");
+        db.save();
+        same.close();
+
+        // История открывается после загрузки и выравнивается с записями базы
+        Database reopened = new Database(file);
+        reopened.load();
+        reopened.sell(1, 1);
+        StockHistory again = reopened.openHistory();
+        equal(List.of(5, 3, 1, 0), again.range(1, 0, Long.MAX_VALUE).stream().map(p -> p.quantity).toList());
+        equal(0, again.at(2, Long.MAX_VALUE).quantity);
+        again.close();
+    }
+}
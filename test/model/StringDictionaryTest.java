@@ -0,0 +1,96 @@
+package model;
+
+import java.util.*;
+
+import static model.Tests.*;
+
+// Словарь поставщиков: коды записей действительны только в словаре своей базы
+public class StringDictionaryTest {
+
+    public static void main(String[] args) {
+        Tests.run(StringDictionaryTest.class);
+    }
+
+    @Test
+    static void codesAreStableAndCanonical() {
+        StringDictionary dict = new StringDictionary();
+        equal(0, dict.encode("Sony"));
+        equal(1, dict.encode("LG"));
+        equal(0, dict.encode(new String("Sony")));
+        equal(-1, dict.lookup("Philips"));
+
+        Record r = dict.encode(new Record(1, "tv", 1, 1, new String("LG")));
+        equal(1, r.supplierCode);
+        check(r.supplier == dict.decode(1), "канонический экземпляр строки");
+        check(dict.encode(r) == r, "своя запись не перекодируется");
+    }
+
+    @Test
+    static void foreignCodeIsReencoded() {
+        StringDictionary a = new StringDictionary();
+        StringDictionary b = new StringDictionary();
+        b.encode("LG");
+
+        Record sony = a.encode(new Record(1, "tv", 1, 1, "Sony"));
+        equal(0, sony.supplierCode);
+        check(!b.owns(sony), "код 0 в словаре b — другой поставщик");
+
+        Record copied = b.encode(sony);
+        equal("Sony", copied.supplier);
+        equal(1, copied.supplierCode);
+    }
+
+    @Test
+    static void recordsCopiedBetweenDatabasesKeepSuppliers() throws Exception {
+        String dir = dir();
+        Database a = new Database(dir + "/a");
+        a.addRecord(new Record(1, "tv", 5, 100, "Sony"));
+        a.addRecord(new Record(2, "radio", 5, 10, "Philips"));
+
+        Database b = new Database(dir + "/b");
+        b.addRecord(new Record(10, "mon", 3, 50, "LG"));
+        for (Record r : a.getAll()) b.addRecord(r);
+
+        equal(List.of("1;tv;5;100.0;Sony"), rows(b.search("supplier", "Sony")));
+        equal(List.of("10;mon;3;50.0;LG"), rows(b.search("supplier", "LG")));
+        equal(1L, b.query().where("supplier", "=", "Philips").count());
+    }
+
+    @Test
+    static void copiedRecordsSurviveSaveAndLoad() throws Exception {
+        for (Compression c : Compression.values()) {
+            String dir = dir();
+            Database a = new Database(dir + "/a", 1);
+            a.addRecord(new Record(1, "tv", 5, 100, "Sony"));
+
+            Database b = new Database(dir + "/b", 1);
+            b.setCompression(c);
+            b.addRecord(new Record(10, "mon", 3, 50, "LG"));
+            for (Record r : a.getAll()) b.addRecord(r);
+            b.save();
+
+            Database loaded = new Database(dir + "/b", 1);
+            loaded.load();
+            equal(List.of("1;tv;5;100.0;Sony", "10;mon;3;50.0;LG"), rows(loaded.getAll()), c.name());
+            equal(1, loaded.search("supplier", "LG").size(), c.name());
+        }
+    }
+
+    @Test
+    static void copiedRecordsSurviveDiskStorage() throws Exception {
+        String dir = dir();
+        Database a = new Database(dir + "/a");
+        a.addRecord(new Record(1, "tv", 5, 100, "Sony"));
+
+        Database b = Database.onDisk(dir + "/b", 2, 16);
+        b.addRecord(new Record(10, "mon", 3, 50, "LG"));
+        for (Record r : a.getAll()) b.addRecord(r);
+        b.close();
+
+        Database loaded = Database.onDisk(dir + "/b", 2, 16);
+        loaded.load();
+        equal(List.of("1;tv;5;100.0;Sony", "10;mon;3;50.0;LG"), rows(loaded.getAll()));
+        equal(List.of("10;mon;3;50.0;LG"), rows(loaded.search("supplier", "LG")));
+        loaded.close();
+    }
+}
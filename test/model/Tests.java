@@ -0,0 +1,100 @@
+package model;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+// Запуск тестов без внешних библиотек: main класса теста вызывает Tests.run(Класс.class),
+// тот выполняет методы с @Test по алфавиту и завершает процесс с кодом 1, если хоть один упал
+public final class Tests {
+
+    private Tests() {
+    }
+
+    public static void run(Class<?> c) {
+        List<Method> methods = new ArrayList<>();
+        for (Method m : c.getDeclaredMethods())
+            if (m.isAnnotationPresent(Test.class)) methods.add(m);
+        methods.sort(Comparator.comparing(Method::getName));
+
+        int failed = 0;
+        for (Method m : methods) {
+            long start = System.nanoTime();
+            try {
+                m.setAccessible(true);
+                m.invoke(null);
+                System.out.printf("  ok   %s.%s (%d мс)%n", c.getSimpleName(), m.getName(),
+                        (System.nanoTime() - start) / 1_000_000);
+            } catch (InvocationTargetException e) {
+                failed++;
+                System.out.printf("  FAIL %s.%s%n", c.getSimpleName(), m.getName());
+                e.getCause().printStackTrace(System.out);
+            } catch (ReflectiveOperationException e) {
+                failed++;
+                System.out.printf("  FAIL %s.%s: %s%n", c.getSimpleName(), m.getName(), e);
+            }
+        }
+        System.out.printf("%s: %d тестов, ошибок %d%n", c.getSimpleName(), methods.size(), failed);
+        // Потоки баз (CDC, очереди, фоновые копии) не должны задерживать завершение
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    // Новый пустой каталог для файлов одного теста
+    public static String dir() throws IOException {
+        return Files.createTempDirectory(Path.of("").toAbsolutePath(), "t").toString();
+    }
+
+    public static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+
+    public static void equal(Object expected, Object actual) {
+        equal(expected, actual, "");
+    }
+
+    public static void equal(Object expected, Object actual, String message) {
+        if (!Objects.equals(expected, actual))
+            throw new AssertionError((message.isEmpty() ? "" : message + ": ")
+                    + "ожидалось " + brief(expected) + ", получено " + brief(actual));
+    }
+
+    private static String brief(Object value) {
+        String s = String.valueOf(value);
+        return s.length() <= 300 ? s : s.substring(0, 300) + "... (" + s.length() + " символов)";
+    }
+
+    public interface Action {
+        void run() throws Exception;
+    }
+
+    public static <T extends Throwable> T fails(Class<T> type, Action action) {
+        try {
+            action.run();
+        } catch (Throwable e) {
+            if (type.isInstance(e)) return type.cast(e);
+            throw new AssertionError("ожидалось " + type.getSimpleName() + ", получено " + e, e);
+        }
+        throw new AssertionError("ожидалось " + type.getSimpleName());
+    }
+
+    // Записи как строки id;name;quantity;price;supplier, упорядоченные по id, — для сравнения результатов
+    public static List<String> rows(Collection<Record> records) {
+        List<Record> sorted = new ArrayList<>(records);
+        sorted.sort(Comparator.comparingInt(r -> r.id));
+        List<String> res = new ArrayList<>();
+        for (Record r : sorted) res.add(r.toString());
+        return res;
+    }
+
+    public static List<Record> sample(int count, long seed) {
+        Random rnd = new Random(seed);
+        List<Record> res = new ArrayList<>();
+        for (int i = 1; i <= count; i++)
+            res.add(new Record(i, "item" + rnd.nextInt(count), rnd.nextInt(100),
+                    rnd.nextInt(100_000) / 100.0, "sup" + rnd.nextInt(20)));
+        return res;
+    }
+}
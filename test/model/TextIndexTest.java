@@ -0,0 +1,101 @@
+package model;
+
+import java.util.*;
+
+import static model.Tests.*;
+
+// Индекс LIKE и автодополнения по name и supplier
+public class TextIndexTest {
+
+    public static void main(String[] args) {
+        Tests.run(TextIndexTest.class);
+    }
+
+    private static List<String> sorted(Collection<String> values) {
+        List<String> res = new ArrayList<>(values);
+        Collections.sort(res);
+        return res;
+    }
+
+    @Test
+    static void matchesPrefixSubstringAndSuffix() {
+        TextIndex index = new TextIndex();
+        for (String v : List.of("Samsung", "Sony", "SONY", "Panasonic", "LG", "Philips")) index.add(v);
+
+        equal(List.of("SONY", "Sony"), sorted(index.match("so%")));
+        equal(List.of("Panasonic", "SONY", "Sony"), sorted(index.match("%on%")));
+        equal(List.of("Panasonic"), sorted(index.match("%nic")));
+        equal(List.of("Philips"), sorted(index.match("p%l%s")));
+        equal(List.of("LG"), sorted(index.match("lg")));
+        equal(List.of(), index.match("%xyz%"));
+
+        index.remove("Sony");
+        equal(List.of("SONY"), sorted(index.match("%ony")));
+        index.remove("SONY");
+        equal(List.of(), index.match("%ony"));
+        equal(List.of("Panasonic"), sorted(index.match("%aso%")));
+    }
+
+    @Test
+    static void likeMatchesLikePatternSemantics() {
+        check(TextIndex.like("a%c", "abc"), "a%c ~ abc");
+        check(TextIndex.like("%", ""), "% ~ пустая строка");
+        check(!TextIndex.like("ab%ba", "aba"), "части шаблона не перекрываются");
+        check(TextIndex.like("%АБВ%", "эабвгд"), "без учёта регистра");
+    }
+
+    @Test
+    static void searchLikeMatchesBruteForceAfterChanges() throws Exception {
+        Database db = new Database(dir() + "/db");
+        List<Record> records = sample(2000, 1);
+        db.addRecords(records);
+        db.update("name", "Новинка", "supplier", "sup4");
+        for (int id = 1; id <= 2000; id += 7) db.deleteById(id);
+
+        for (String pattern : List.of("item1%", "%tem2%", "%5", "%НОВ%", "item%9%")) {
+            List<Record> expected = new ArrayList<>();
+            for (Record r : db.getAll())
+                if (TextIndex.like(pattern, r.name)) expected.add(r);
+            equal(rows(expected), rows(db.searchLike("name", pattern)), pattern);
+        }
+        equal(rows(db.search("supplier", "sup1")), rows(db.searchLike("supplier", "SUP1")));
+    }
+
+    @Test
+    static void searchWithLikeOperatorUsesTextIndex() throws Exception {
+        String file = dir() + "/db";
+        List<Record> records = new ArrayList<>();
+        for (int id = 1; id <= 30_000; id++) records.add(new Record(id, "n" + id, id % 50, 1, "sup" + id % 20));
+        Database saved = new Database(file);
+        saved.addRecords(records);
+        saved.save();
+
+        Database db = new Database(file);
+        db.load();
+        int pages = db.getUnloadedPages();
+        check(pages > 4, "страницы не загружены при load(): " + pages);
+
+        // Текстовый индекс из снимка находит значения, загружаются только страницы найденных записей
+        List<Record> expected = records.stream().filter(r -> TextIndex.like("n1234%", r.name)).toList();
+        equal(rows(expected), rows(db.search("name", "n1234%", "LIKE")));
+        check(db.getUnloadedPages() > pages / 2, "полного просмотра не было: " + db.getUnloadedPages() + " из " + pages);
+        equal(rows(records.stream().filter(r -> r.supplier.equals("sup7")).toList()), rows(db.search("supplier", "%P7", "like")));
+
+        // LIKE по id сравнивает строку id, а не разбирает шаблон как число
+        equal(rows(records.stream().filter(r -> String.valueOf(r.id).startsWith("12")).toList()),
+                rows(db.search("id", "12%", "LIKE")));
+    }
+
+    @Test
+    static void suggestReturnsDistinctPrefixValues() throws Exception {
+        Database db = new Database(dir() + "/db");
+        db.addRecord(new Record(1, "Телевизор", 1, 1, "Sony"));
+        db.addRecord(new Record(2, "Телефон", 1, 1, "Sony"));
+        db.addRecord(new Record(3, "Телефон", 1, 1, "LG"));
+        db.addRecord(new Record(4, "Монитор", 1, 1, "LG"));
+
+        equal(List.of("Телевизор", "Телефон"), sorted(db.suggest("name", "тел", 10)));
+        equal(1, db.suggest("name", "тел", 1).size());
+        equal(List.of("Sony"), db.suggest("supplier", "s", 10));
+    }
+}
@@ -0,0 +1,217 @@
+package model;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static model.Tests.*;
+
+// Дисковое хранилище: B+деревья, переиспользование страниц и восстановление после сбоя
+public class TreeStoreTest {
+
+    private static final SecretKeySpec KEY = new SecretKeySpec("1234567890ABCDEF".getBytes(), "AES");
+
+    public static void main(String[] args) {
+        Tests.run(TreeStoreTest.class);
+    }
+
+    private static TreeStore open(File f) throws IOException {
+        return TreeStore.open(f, KEY, new BufferPool(BufferPool.MIN_PAGES), new StringDictionary());
+    }
+
+    private static List<Record> all(TreeStore store) {
+        List<Record> res = new ArrayList<>();
+        List<Record> batch;
+        for (long id = Integer.MIN_VALUE; !(batch = store.scan(id, Integer.MAX_VALUE, 500)).isEmpty(); ) {
+            res.addAll(batch);
+            id = batch.get(batch.size() - 1).id + 1L;
+        }
+        return res;
+    }
+
+    @Test
+    static void matchesModelAndSurvivesReopen() throws Exception {
+        File f = new File(dir(), "db.tree");
+        Map<Integer, Record> model = new TreeMap<>();
+        Random rnd = new Random(1);
+
+        try (TreeStore store = open(f)) {
+            equal(TreeFile.VERSION, StorageFormat.version(f));
+            for (int i = 0; i < 30_000; i++) {
+                int id = rnd.nextInt(5000);
+                if (rnd.nextInt(3) == 0) {
+                    store.remove(id);
+                    model.remove(id);
+                } else {
+                    Record r = new Record(id, "item" + rnd.nextInt(50), i, id, "sup" + rnd.nextInt(10));
+                    store.put(r);
+                    model.put(id, r);
+                }
+                if (i % 7000 == 0) store.flush();
+            }
+            equal(rows(model.values()), rows(all(store)));
+            equal((long) model.size(), store.size());
+            store.flush();
+        }
+
+        try (TreeStore store = open(f)) {
+            equal(rows(model.values()), rows(all(store)));
+            List<Record> range = new ArrayList<>();
+            for (Record r : model.values()) if (r.id >= 1000 && r.id <= 2000) range.add(r);
+            equal(rows(range), rows(store.scan(1000, 2000, 5000)));
+            for (String name : List.of("item1", "item42")) {
+                Set<Integer> expected = new TreeSet<>();
+                for (Record r : model.values()) if (r.name.equals(name)) expected.add(r.id);
+                Set<Integer> found = new TreeSet<>();
+                for (int id : store.byName(name)) if (store.get(id).name.equals(name)) found.add(id);
+                equal(expected, found, name);
+            }
+        }
+    }
+
+    @Test
+    static void freedPagesAreReused() throws Exception {
+        File f = new File(dir(), "db.tree");
+        int free;
+        try (TreeStore store = open(f)) {
+            long length = 0;
+            for (int round = 0; round < 4; round++) {
+                for (Record r : sample(10_000, 1)) store.put(r);
+                store.flush();
+                for (int id = 1; id <= 10_000; id++) store.remove(id);
+                store.flush();
+                equal(0L, store.size());
+                equal(List.of(), all(store));
+                for (int root : store.file.roots) equal(0, root, "опустевшее дерево освобождено");
+
+                // Копии при записи занимают место один раз, дальше страницы берутся из свободных
+                if (round == 0) length = store.length();
+                else equal(length, store.length(), "файл не растёт, раунд " + round);
+            }
+            free = store.freePages();
+            check(free > 0, "освобождённые страницы в списке свободных");
+        }
+
+        // После открытия свободные страницы находятся обходом деревьев
+        try (TreeStore store = open(f)) {
+            equal(free, store.freePages());
+        }
+    }
+
+    @Test
+    static void emptyLeavesAreUnlinked() throws Exception {
+        File f = new File(dir(), "db.tree");
+        try (TreeStore store = open(f)) {
+            for (Record r : sample(5000, 1)) store.put(r);
+            store.flush();
+            // Удаляется середина: листья внутри диапазона пустеют и уходят из дерева
+            for (int id = 1000; id <= 4000; id++) store.remove(id);
+            store.flush();
+
+            List<Record> left = all(store);
+            equal(1999, left.size());
+            equal(999, store.scan(1, 4500, 999).get(998).id);
+            equal(4001, store.scan(999, 10_000, 2).get(1).id);
+        }
+        try (TreeStore store = open(f)) {
+            check(store.freePages() > 50, "страницы опустевших листьев свободны: " + store.freePages());
+        }
+    }
+
+    @Test
+    static void crashKeepsLastCheckpoint() throws Exception {
+        File f = new File(dir(), "db.tree");
+        List<Record> committed;
+        try (TreeStore store = open(f)) {
+            for (Record r : sample(8000, 1)) store.put(r);
+            store.flush();
+            committed = all(store);
+
+            // Изменения после checkpoint не помещаются в пул и частично пишутся при вытеснении
+            for (int id = 1; id <= 8000; id += 2) store.remove(id);
+            for (Record r : sample(3000, 2)) store.put(new Record(r.id + 10_000, r.name, r.quantity, r.price, r.supplier));
+            for (int id = 2; id <= 8000; id += 4) store.put(new Record(id, "changed", 1, 1, "x"));
+            // close без flush — как падение процесса
+        }
+
+        try (TreeStore store = open(f)) {
+            equal(rows(committed), rows(all(store)));
+            equal(8000L, store.size());
+
+            // После восстановления хранилище работает дальше
+            store.put(new Record(20_000, "after", 1, 1, "s"));
+            store.remove(1);
+            store.flush();
+        }
+        try (TreeStore store = open(f)) {
+            equal(8000L, store.size());
+            equal("after", store.get(20_000).name);
+            check(store.get(1) == null, "удалённая запись");
+        }
+    }
+
+    @Test
+    static void tornMetaPageFallsBackToPreviousCheckpoint() throws Exception {
+        File f = new File(dir(), "db.tree");
+        List<Record> first;
+        try (TreeStore store = open(f)) {
+            for (Record r : sample(3000, 1)) store.put(r);
+            store.flush();
+            first = all(store);
+            for (int id = 1; id <= 1500; id++) store.remove(id);
+            store.flush();
+        }
+
+        // Последнее поколение (4-е после двух начальных) лежит в слоте 0
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek(StorageFormat.HEADER_SIZE + 40);
+            raf.write(0);
+            raf.write(0);
+        }
+        try (TreeStore store = open(f)) {
+            equal(rows(first), rows(all(store)));
+        }
+    }
+
+    @Test
+    static void legacyFileIsMigrated() throws Exception {
+        File f = new File(dir(), "db.tree");
+        writeLegacy(f, List.of(new Record(1, "tv", 5, 100, "Sony"), new Record(7, "radio", 2, 10, "LG")));
+        equal(TreeFile.LEGACY_VERSION, StorageFormat.version(f));
+
+        try (TreeStore store = open(f)) {
+            equal(TreeFile.VERSION, StorageFormat.version(f));
+            equal(List.of("1;tv;5;100.0;Sony", "7;radio;2;10.0;LG"), rows(all(store)));
+            equal(List.of(7), store.bySupplier("LG"));
+        }
+        check(!new File(f + ".tmp").exists(), "временный файл удалён");
+    }
+
+    // Файл версии 3: служебная страница 0 и лист записей на странице 1, индексы пусты
+    private static void writeLegacy(File f, List<Record> records) throws IOException {
+        ByteBuffer leaf = ByteBuffer.allocate(TreeFile.PAGE_SIZE);
+        leaf.put((byte) 1).put((byte) 0).putShort((short) records.size()).putInt(0);
+        for (Record r : records) {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(buf)) {
+                out.writeUTF(r.name);
+                out.writeInt(r.quantity);
+                out.writeDouble(r.price);
+                out.writeUTF(r.supplier);
+            }
+            leaf.putLong(r.id).putShort((short) buf.size()).put(buf.toByteArray());
+        }
+        ByteBuffer meta = ByteBuffer.allocate(TreeFile.PAGE_SIZE);
+        meta.putInt(2).putInt(1).putInt(0).putInt(0).putLong(records.size()).putLong(0).putLong(0);
+
+        try (TreeFile tf = TreeFile.open(f, KEY)) {
+            tf.writePage(0, meta.array());
+            tf.writePage(1, leaf.array());
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek(StorageFormat.MAGIC.length);
+            raf.write(TreeFile.LEGACY_VERSION);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+#!/bin/sh
+# Сборка и запуск тестов без сборщика:
+#   test/run.sh                     # все классы *Test из test/
+#   test/run.sh model.ShardTest     # отдельные классы
+# Каждый класс выполняется в своём временном каталоге: туда пишутся файлы баз и operations.log
+set -e
+root=$(cd "$(dirname "$0")/.." && pwd)
+out=$(mktemp -d)
+trap 'rm -rf "$out"' EXIT
+
+javac -encoding UTF-8 -d "$out/classes" $(find "$root" -name '*.java' -not -path '*/.git/*')
+
+if [ $# -eq 0 ]; then
+    set -- $(cd "$root/test" && find . -name '?*Test.java' | sed 's|^\./||; s|\.java$||; s|/|.|g' | sort)
+fi
+
+failed=0
+for test in "$@"; do
+    mkdir -p "$out/work/$test"
+    (cd "$out/work/$test" && java -ea -Dfile.encoding=UTF-8 -cp "$out/classes" "$test") || failed=1
+done
+exit $failed
@@ -0,0 +1,95 @@
+package tools;
+
+import model.Database;
+import model.Test;
+import model.Tests;
+
+import java.util.*;
+
+import static model.Tests.*;
+
+// Нагрузочный тест: гистограмма задержек, распределение Ципфа и проверка инвариантов после прогона
+public class LoadGeneratorTest {
+
+    public static void main(String[] args) {
+        Tests.run(LoadGeneratorTest.class);
+    }
+
+    private static Map<String, String> opts(String... pairs) {
+        Map<String, String> res = new HashMap<>();
+        for (String p : pairs) res.put(p.substring(0, p.indexOf('=')), p.substring(p.indexOf('=') + 1));
+        return res;
+    }
+
+    @Test
+    static void histogramPercentilesAreWithinBucketPrecision() {
+        LoadGenerator.Histogram a = new LoadGenerator.Histogram();
+        LoadGenerator.Histogram b = new LoadGenerator.Histogram();
+        for (long v = 1; v <= 100_000; v++) (v % 2 == 0 ? a : b).record(v * 1000);
+        a.add(b);
+
+        for (double p : new double[]{50, 90, 99, 99.9}) {
+            double exact = p * 1000 * 1000;
+            long found = a.percentile(p);
+            check(found >= exact && found <= exact * 1.07, "p" + p + ": " + found + " вместо ~" + (long) exact);
+        }
+        equal(100_000_000L, a.percentile(100));
+
+        LoadGenerator.Histogram small = new LoadGenerator.Histogram();
+        for (long v = 1; v <= 16; v++) small.record(v);
+        equal(8L, small.percentile(50), "малые значения хранятся точно");
+    }
+
+    @Test
+    static void zipfFavoursLowRanks() {
+        LoadGenerator.Zipf zipf = new LoadGenerator.Zipf(1000, 1.0);
+        Random rnd = new Random(1);
+        int[] counts = new int[1001];
+        for (int i = 0; i < 200_000; i++) {
+            int rank = zipf.next(rnd);
+            check(rank >= 1 && rank <= 1000, "ранг в пределах: " + rank);
+            counts[rank]++;
+        }
+        double ratio = counts[1] / (double) counts[2];
+        check(ratio > 1.8 && ratio < 2.2, "ранг 1 вдвое чаще ранга 2: " + ratio);
+        check(counts[1] > 10 * counts[100], "горячие товары");
+    }
+
+    @Test
+    static void shortRunKeepsInvariants() throws Exception {
+        Database db = new Database(dir() + "/load.db");
+        LoadGenerator load = new LoadGenerator(db, opts("threads=4", "records=2000", "seconds=2", "report=1"));
+        check(load.run(), "инварианты после прогона в памяти");
+        equal(3, load.checks, "проверка на каждом отчёте и в конце");
+
+        Database disk = Database.onDisk(dir() + "/load.db", 2, 64);
+        try {
+            check(new LoadGenerator(disk, opts("threads=2", "records=1000", "seconds=1", "report=1",
+                    "mix=add:5,search:20,sell:40,supply:20,update:10,save:5")).run(), "инварианты на диске");
+        } finally {
+            disk.close();
+        }
+    }
+
+    @Test
+    static void unaccountedChangeIsReported() throws Exception {
+        Database db = new Database(dir() + "/load.db");
+        LoadGenerator load = new LoadGenerator(db, opts("threads=2", "records=500", "seconds=1", "report=1", "mix=search:1"));
+
+        // Поставка мимо генератора: сумма остатков разойдётся с учтёнными операциями
+        Thread outside = new Thread(() -> {
+            while (db.getTotalRecords() < 500) Thread.onSpinWait();
+            db.supply(1, 5);
+        });
+        outside.start();
+        check(!load.run(), "нарушение найдено");
+        outside.join();
+    }
+
+    @Test
+    static void invalidMixIsRejected() throws Exception {
+        Database db = new Database(dir() + "/load.db");
+        fails(IllegalArgumentException.class, () -> new LoadGenerator(db, opts("mix=fly:1")));
+        fails(IllegalArgumentException.class, () -> new LoadGenerator(db, opts("mix=sell:0")));
+    }
+}
@@ -0,0 +1,377 @@
+package tools;
+
+import model.Database;
+import model.Record;
+import model.Snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Нагрузочный и длительный (soak) тест базы без GUI: N потоков выполняют смесь операций
+// над синтетическим каталогом, обращения к товарам распределены по Ципфу (горячие товары).
+// Запуск: java -cp out tools.LoadGenerator [параметр=значение ...]
+//   threads=8 records=100000 seconds=30 skew=0.99 report=5 disk=0 seed=42
+//   mix=add:5,search:30,sell:40,supply:15,update:8,save:2   (веса операций)
+// disk=N — дисковое хранилище с буферным пулом из N страниц, 0 — хранение в памяти.
+// Каждые report секунд потоки приостанавливаются и проверяются инварианты: остатки неотрицательны,
+// сумма остатков сходится с принятыми операциями, число записей и результаты поиска по индексам
+// совпадают с просмотром таблицы. Печатаются пропускная способность (без времени проверок), память
+// и число нарушений, в конце — перцентили задержек по операциям и последняя проверка.
+// Код выхода 1, если найдены нарушения
+public class LoadGenerator {
+
+    private static final String[] OPS = {"add", "search", "sell", "supply", "update", "save"};
+
+    private static final String[] WORDS = {
+            "Телевизор", "Ноутбук", "Смартфон", "USB кабель", "Наушники", "Монитор",
+            "Клавиатура", "Мышь", "Роутер", "Колонка", "Планшет", "Зарядка"
+    };
+
+    private static final int SUPPLIERS = 200;
+
+    // Гистограмма задержек: 16 интервалов на каждую степень двойки (точность ~6%)
+    static final class Histogram {
+        private final long[] counts = new long[64 * 16];
+        private long total;
+        private long max;
+
+        void record(long nanos) {
+            counts[index(Math.max(1, nanos))]++;
+            total++;
+            max = Math.max(max, nanos);
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+
+        long percentile(double p) {
+            long rank = (long) Math.ceil(total * p / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) return Math.min(upper(i), max);
+            }
+            return max;
+        }
+
+        private static int index(long v) {
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            if (exp < 4) return (int) v;
+            return exp * 16 + (int) ((v >>> (exp - 4)) & 15);
+        }
+
+        private static long upper(int i) {
+            int exp = i / 16;
+            if (exp < 4) return i;
+            return ((16L + i % 16 + 1) << (exp - 4)) - 1;
+        }
+    }
+
+    // Ципф: вероятность товара ранга k пропорциональна 1 / k^skew
+    static final class Zipf {
+        private final double[] cdf;
+
+        Zipf(int n, double skew) {
+            cdf = new double[n];
+            double sum = 0;
+            for (int k = 1; k <= n; k++) {
+                sum += 1 / Math.pow(k, skew);
+                cdf[k - 1] = sum;
+            }
+            for (int k = 0; k < n; k++) cdf[k] /= sum;
+        }
+
+        // Ранг от 1 до n
+        int next(Random rnd) {
+            int i = Arrays.binarySearch(cdf, rnd.nextDouble());
+            return (i < 0 ? -i - 1 : i) + 1;
+        }
+    }
+
+    private final Database db;
+    private final int threads;
+    private final int records;
+    private final long seconds;
+    private final int report;
+    private final Zipf zipf;
+    private final int[] mix;
+    private final int mixTotal;
+    private final long seed;
+
+    private final AtomicInteger nextId;
+    private final LongAdder[] done = new LongAdder[OPS.length];
+    private final LongAdder errors = new LongAdder();
+    // Ожидаемая сумма остатков по принятым операциям
+    private final LongAdder expectedQuantity = new LongAdder();
+    private final List<String> violations = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean running = true;
+    // Операции идут под чтением, проверка на отчёте — под записью: она видит согласованное состояние
+    private final ReadWriteLock pause = new ReentrantReadWriteLock();
+    int checks;
+
+    LoadGenerator(Database db, Map<String, String> opts) {
+        this.db = db;
+        this.threads = Integer.parseInt(opts.getOrDefault("threads", "8"));
+        this.records = Integer.parseInt(opts.getOrDefault("records", "100000"));
+        this.seconds = Long.parseLong(opts.getOrDefault("seconds", "30"));
+        this.report = Integer.parseInt(opts.getOrDefault("report", "5"));
+        this.seed = Long.parseLong(opts.getOrDefault("seed", "42"));
+        this.zipf = new Zipf(records, Double.parseDouble(opts.getOrDefault("skew", "0.99")));
+        this.nextId = new AtomicInteger(records + 1);
+
+        mix = new int[OPS.length];
+        for (String part : opts.getOrDefault("mix", "add:5,search:30,sell:40,supply:15,update:8,save:2").split(",")) {
+            String[] kv = part.split(":");
+            int op = Arrays.asList(OPS).indexOf(kv[0].trim());
+            if (op < 0) throw new IllegalArgumentException("Неизвестная операция: " + kv[0]);
+            mix[op] = Integer.parseInt(kv[1].trim());
+        }
+        mixTotal = Arrays.stream(mix).sum();
+        if (mixTotal <= 0) throw new IllegalArgumentException("Пустая смесь операций");
+
+        for (int i = 0; i < OPS.length; i++) done[i] = new LongAdder();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            if (eq < 0) throw new IllegalArgumentException("Параметр вида имя=значение: " + a);
+            opts.put(a.substring(0, eq), a.substring(eq + 1));
+        }
+
+        Path dir = Files.createTempDirectory("load-test");
+        String file = dir.resolve("load.db").toString();
+        int diskPages = Integer.parseInt(opts.getOrDefault("disk", "0"));
+        Database db = diskPages > 0
+                ? Database.onDisk(file, Database.DEFAULT_SHARDS, diskPages)
+                : new Database(file);
+
+        boolean ok;
+        try {
+            ok = new LoadGenerator(db, opts).run();
+        } finally {
+            db.close();
+            for (File f : Objects.requireNonNull(dir.toFile().listFiles())) f.delete();
+            dir.toFile().delete();
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    boolean run() throws InterruptedException {
+        System.out.printf("Каталог: %d записей, потоков: %d, длительность: %d с%n", records, threads, seconds);
+        long t = System.nanoTime();
+        db.addRecords(catalog());
+        for (Record r : db.getAll()) expectedQuantity.add(r.quantity);
+        System.out.printf("Каталог загружен за %.1f мс%n%n", (System.nanoTime() - t) / 1e6);
+
+        Histogram[][] latency = new Histogram[threads][OPS.length];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            Histogram[] own = latency[i];
+            for (int op = 0; op < OPS.length; op++) own[op] = new Histogram();
+            Random rnd = new Random(seed + i);
+            workers[i] = new Thread(() -> work(rnd, own), "load-" + i);
+            workers[i].start();
+        }
+
+        System.out.printf("%6s %12s %12s %10s %10s%n", "Время", "Операций/с", "Всего", "Heap, МБ", "Нарушений");
+        long start = System.nanoTime();
+        long end = start + seconds * 1_000_000_000L;
+        long last = 0, from = start, paused = 0;
+        while (System.nanoTime() < end) {
+            // Последний интервал короче report: делится на прошедшее время, а не на report
+            Thread.sleep(Math.min(report * 1000L, Math.max(1, (end - System.nanoTime() + 999_999) / 1_000_000)));
+            pause.writeLock().lock();
+            long now = System.nanoTime();
+            long total = total();
+            try {
+                verify();
+            } finally {
+                pause.writeLock().unlock();
+            }
+            System.out.printf("%5ds %12.0f %12d %10.1f %10d%n",
+                    (now - start - paused) / 1_000_000_000L,
+                    (total - last) / ((now - from) / 1e9), total, heapMb(), violations.size());
+            last = total;
+            from = System.nanoTime();
+            paused += from - now;
+            // Время проверки не входит в длительность прогона
+            end += from - now;
+        }
+
+        running = false;
+        for (Thread w : workers) w.join();
+        double elapsed = (System.nanoTime() - start - paused) / 1e9;
+
+        System.out.printf("%n%-8s %10s %10s %10s %10s %10s %10s %10s%n",
+                "Операция", "Число", "Оп/с", "p50, мкс", "p90, мкс", "p99, мкс", "p99.9, мкс", "max, мкс");
+        for (int op = 0; op < OPS.length; op++) {
+            Histogram h = new Histogram();
+            for (Histogram[] own : latency) h.add(own[op]);
+            if (h.total == 0) continue;
+            System.out.printf("%-8s %10d %10.0f %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    OPS[op], h.total, h.total / elapsed,
+                    h.percentile(50) / 1e3, h.percentile(90) / 1e3, h.percentile(99) / 1e3,
+                    h.percentile(99.9) / 1e3, h.max / 1e3);
+        }
+        System.out.printf("%nВсего: %d операций за %.1f с (%.0f оп/с), ошибок: %d, heap: %.1f МБ%n",
+                total(), elapsed, total() / elapsed, errors.sum(), heapMb());
+
+        verify();
+        if (violations.isEmpty()) {
+            System.out.println("Нарушений инвариантов нет");
+            return true;
+        }
+        System.out.println("Нарушения инвариантов (" + violations.size() + "):");
+        violations.stream().limit(20).forEach(v -> System.out.println("  " + v));
+        return false;
+    }
+
+    private void work(Random rnd, Histogram[] latency) {
+        while (running) {
+            int op = pick(rnd);
+            pause.readLock().lock();
+            long t = System.nanoTime();
+            try {
+                execute(op, rnd);
+            } catch (Exception e) {
+                errors.increment();
+                violations.add(OPS[op] + ": " + e);
+            } finally {
+                pause.readLock().unlock();
+            }
+            latency[op].record(System.nanoTime() - t);
+            done[op].increment();
+        }
+    }
+
+    private int pick(Random rnd) {
+        int x = rnd.nextInt(mixTotal);
+        for (int op = 0; op < OPS.length; op++) {
+            x -= mix[op];
+            if (x < 0) return op;
+        }
+        return OPS.length - 1;
+    }
+
+    private void execute(int op, Random rnd) throws IOException {
+        int id = zipf.next(rnd);
+        switch (OPS[op]) {
+            case "add" -> {
+                Record r = generate(nextId.getAndIncrement(), rnd);
+                if (db.addRecord(r)) expectedQuantity.add(r.quantity);
+            }
+            case "search" -> {
+                switch (rnd.nextInt(4)) {
+                    case 0 -> db.search("id", String.valueOf(id));
+                    case 1 -> db.search("supplier", supplier(rnd.nextInt(SUPPLIERS)));
+                    case 2 -> db.search("price", String.valueOf(rnd.nextInt(1000)), ">");
+                    default -> db.search("id", String.valueOf(id), ">=");
+                }
+            }
+            case "sell" -> {
+                int amount = 1 + rnd.nextInt(5);
+                if (db.sell(id, amount)) expectedQuantity.add(-amount);
+            }
+            case "supply" -> {
+                int amount = 1 + rnd.nextInt(20);
+                if (db.supply(id, amount)) expectedQuantity.add(amount);
+            }
+            // Цена не входит в сумму остатков, поэтому update не меняет ожидаемое значение
+            case "update" -> db.update("price", String.valueOf(rnd.nextInt(100_000) / 100.0), "id", String.valueOf(id));
+            case "save" -> db.save();
+        }
+    }
+
+    private long total() {
+        long sum = 0;
+        for (LongAdder a : done) sum += a.sum();
+        return sum;
+    }
+
+    private void checkStock() {
+        try (Snapshot snap = db.snapshot()) {
+            snap.stream()
+                    .filter(r -> r.quantity < 0)
+                    .limit(10)
+                    .forEach(r -> violations.add("Отрицательный остаток: " + r));
+        }
+    }
+
+    // При остановленных потоках: сверка итогов и индексов с просмотром таблицы
+    private void verify() {
+        checks++;
+        checkStock();
+
+        List<Record> all = db.getAll();
+        if (all.size() != db.getTotalRecords())
+            violations.add("Число записей: счётчик " + db.getTotalRecords() + ", в таблице " + all.size());
+
+        long quantity = all.stream().mapToLong(r -> r.quantity).sum();
+        if (quantity != expectedQuantity.sum())
+            violations.add("Сумма остатков " + quantity + ", ожидалось " + expectedQuantity.sum());
+
+        Map<String, Integer> bySupplier = new HashMap<>();
+        Map<String, Integer> byName = new HashMap<>();
+        for (Record r : all) {
+            bySupplier.merge(r.supplier, 1, Integer::sum);
+            byName.merge(r.name, 1, Integer::sum);
+        }
+        for (Map.Entry<String, Integer> e : bySupplier.entrySet()) {
+            int found = db.search("supplier", e.getKey()).size();
+            if (found != e.getValue())
+                violations.add("Индекс supplier=" + e.getKey() + ": " + found + " вместо " + e.getValue());
+        }
+        byName.entrySet().stream().limit(1000).forEach(e -> {
+            int found = db.search("name", e.getKey()).size();
+            if (found != e.getValue())
+                violations.add("Индекс name=" + e.getKey() + ": " + found + " вместо " + e.getValue());
+        });
+
+        List<Record> sorted = db.getSorted("id");
+        for (int i = 1; i < sorted.size(); i++)
+            if (sorted.get(i - 1).id >= sorted.get(i).id) {
+                violations.add("getSorted(id) не упорядочен на позиции " + i);
+                break;
+            }
+    }
+
+    private List<Record> catalog() {
+        Random rnd = new Random(seed);
+        List<Record> res = new ArrayList<>(records);
+        for (int id = 1; id <= records; id++) res.add(generate(id, rnd));
+        return res;
+    }
+
+    private static Record generate(int id, Random rnd) {
+        return new Record(
+                id,
+                WORDS[rnd.nextInt(WORDS.length)] + " " + (1000 + rnd.nextInt(9000)),
+                rnd.nextInt(500),
+                Math.round(rnd.nextDouble() * 100_000) / 100.0,
+                supplier(rnd.nextInt(SUPPLIERS))
+        );
+    }
+
+    private static String supplier(int i) {
+        return "Поставщик " + i;
+    }
+
+    private static double heapMb() {
+        MemoryMXBean mem = ManagementFactory.getMemoryMXBean();
+        return mem.getHeapMemoryUsage().getUsed() / (1024.0 * 1024.0);
+    }
+}
@@ -0,0 +1,87 @@
+package tools;
+
+import model.Compression;
+import model.Database;
+import model.Record;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Сравнение размера файлов и времени save/load для разных типов сжатия.
+// Запуск: java -cp out tools.StorageBenchmark [кол-во записей] [повторов]
+public class StorageBenchmark {
+
+    private static final String[] WORDS = {
+            "Телевизор", "Ноутбук", "Смартфон", "USB кабель", "Наушники", "Монитор",
+            "Клавиатура", "Мышь", "Роутер", "Колонка", "Планшет", "Зарядка"
+    };
+
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        List<Record> data = generate(rows);
+        Path dir = Files.createTempDirectory("storage-bench");
+
+        System.out.printf("Записей: %d, повторов: %d, каталог: %s%n%n", rows, runs, dir);
+        System.out.printf("%-10s %14s %10s %12s %12s%n", "Формат", "Размер, байт", "Сжатие", "Save, мс", "Load, мс");
+
+        long baseline = -1;
+        for (Compression c : Compression.values()) {
+            String file = dir.resolve("bench-" + c.name().toLowerCase() + ".db").toString();
+
+            Database db = new Database(file);
+            db.setCompression(c);
+            db.addRecords(data);
+
+            long save = Long.MAX_VALUE;
+            for (int i = 0; i < runs; i++) {
+                long t = System.nanoTime();
+                db.save();
+                save = Math.min(save, System.nanoTime() - t);
+            }
+
+            // Страничные файлы load() подключает лениво, а старый формат читает целиком: для честного
+            // сравнения время включает чтение всех записей
+            long load = Long.MAX_VALUE;
+            for (int i = 0; i < runs; i++) {
+                Database copy = new Database(file);
+                long t = System.nanoTime();
+                copy.load();
+                int loaded = copy.getAll().size();
+                load = Math.min(load, System.nanoTime() - t);
+                if (loaded != rows)
+                    throw new IllegalStateException("Загружено " + loaded + " записей вместо " + rows);
+            }
+
+            long size = db.getStorageSize();
+            if (baseline < 0) baseline = size;
+
+            System.out.printf("%-10s %14d %9.2fx %12.1f %12.1f%n",
+                    c, size, (double) baseline / size, save / 1e6, load / 1e6);
+        }
+
+        for (File f : dir.toFile().listFiles()) f.delete();
+        dir.toFile().delete();
+    }
+
+    private static List<Record> generate(int rows) {
+        Random rnd = new Random(42);
+        List<Record> res = new ArrayList<>(rows);
+        for (int id = 1; id <= rows; id++) {
+            res.add(new Record(
+                    id,
+                    WORDS[rnd.nextInt(WORDS.length)] + " " + (1000 + rnd.nextInt(9000)),
+                    rnd.nextInt(500),
+                    Math.round(rnd.nextDouble() * 100_000) / 100.0,
+                    "Поставщик " + rnd.nextInt(200)
+            ));
+        }
+        return res;
+    }
+}